@@ -0,0 +1,93 @@
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.BitmaskKernel;
+
+
+public class BitmaskKernelTest {
+
+	@Test
+	public void test() {
+		Random random = new Random(42);
+		// Odd lengths check the tail after the last full word
+		for (int length : new int[] { 256, 2048, 4096, 4099, 13 }) {
+			for (int changes : new int[] { 0, 1, 7, 100, length }) {
+				byte[] source = new byte[length];
+				random.nextBytes(source);
+				byte[] dest = source.clone();
+				for (int i = 0; i < changes; i++) {
+					dest[random.nextInt(length)] ^= 1 + random.nextInt(255);
+				}
+
+				byte[] mask = new byte[(length + 7) / 8];
+				int count = BitmaskKernel.diff(source, dest, mask);
+				assertEquals(BitmaskKernel.countBits(mask), count);
+
+				byte[] values = new byte[count];
+				BitmaskKernel.gather(dest, mask, values);
+
+				int v = 0;
+				int bit = -1;
+				for (int i = 0; i < length; i++) {
+					assertEquals(source[i] != dest[i], BitmaskKernel.isBitSet(mask, i));
+					if (source[i] != dest[i]) {
+						bit = BitmaskKernel.nextSetBit(mask, bit + 1);
+						assertEquals(i, bit);
+						assertEquals(dest[i], values[v++]);
+					}
+				}
+				assertEquals(-1, BitmaskKernel.nextSetBit(mask, bit + 1));
+
+				byte[] patched = source.clone();
+				BitmaskKernel.scatter(values, mask, patched);
+				assertArrayEquals(dest, patched);
+			}
+		}
+	}
+
+	@Test
+	public void testInts() {
+		int[] source = new int[256];
+		int[] dest = new int[256];
+		dest[0] = 64;
+		dest[9] = 70;
+		dest[255] = 12;
+
+		byte[] mask = new byte[32];
+		int[] values = new int[BitmaskKernel.diff(source, dest, mask)];
+		assertEquals(3, values.length);
+		BitmaskKernel.gather(dest, mask, values);
+		assertArrayEquals(new int[] { 64, 70, 12 }, values);
+
+		BitmaskKernel.scatter(values, mask, source);
+		assertArrayEquals(dest, source);
+	}
+
+	@Test
+	public void testNibbles() {
+		Random random = new Random(42);
+		byte[] source = new byte[2048];
+		random.nextBytes(source);
+		byte[] dest = source.clone();
+		for (int i = 0; i < 500; i++) {
+			int n = random.nextInt(4096);
+			BitmaskKernel.setNibble(dest, n, BitmaskKernel.getNibble(dest, n) ^ (1 + random.nextInt(15)));
+		}
+
+		byte[] mask = new byte[512];
+		int count = BitmaskKernel.diffNibbles(source, dest, mask);
+		for (int n = 0; n < 4096; n++) {
+			assertEquals(BitmaskKernel.getNibble(source, n) != BitmaskKernel.getNibble(dest, n), BitmaskKernel.isBitSet(mask, n));
+		}
+
+		byte[] values = new byte[(count + 1) / 2];
+		BitmaskKernel.gatherNibbles(dest, mask, values);
+		byte[] patched = source.clone();
+		BitmaskKernel.scatterNibbles(values, mask, patched);
+		assertArrayEquals(dest, patched);
+	}
+
+}
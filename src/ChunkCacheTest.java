@@ -0,0 +1,122 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.model.ChunkCache;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+
+
+public class ChunkCacheTest {
+
+	@Test
+	public void testEviction() {
+		ChunkCache cache = new ChunkCache(4 * ChunkCache.BLOCK_BYTES);
+		byte[] large = payload(ChunkCache.BLOCK_BYTES * 2 + 1, 1);
+		cache.put("r.0.0.mca", 1, 10, large);
+		cache.put("r.0.0.mca", 2, 10, payload(10, 2));
+		assertEquals(4 * ChunkCache.BLOCK_BYTES, cache.getUsedBytes());
+		assertArrayEquals(large, cache.get("r.0.0.mca", 1, 10));
+		assertNull(cache.get("r.0.0.mca", 1, 11));
+		assertNull(cache.get("r.1.0.mca", 1, 10));
+
+		// Chunk 2 is now the least recently used
+		cache.put("r.0.0.mca", 3, 10, payload(100, 3));
+		assertNull(cache.get("r.0.0.mca", 2, 10));
+		assertArrayEquals(large, cache.get("r.0.0.mca", 1, 10));
+		assertArrayEquals(payload(100, 3), cache.get("r.0.0.mca", 3, 10));
+
+		// Too large to ever fit
+		cache.put("r.0.0.mca", 4, 10, payload(ChunkCache.BLOCK_BYTES * 4 + 1, 4));
+		assertNull(cache.get("r.0.0.mca", 4, 10));
+		assertEquals(2, cache.getNumberOfChunks());
+	}
+
+	@Test
+	public void testRegion() throws Exception {
+		ChunkCache cache = new ChunkCache(16 * 1024 * 1024);
+		File file = new File("destination/r.0.0.mca");
+		Region region = new Region(file, true);
+		region.setChunkCache(cache);
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				if (region.hasChunk(x, z)) {
+					region.getChunk(x, z);
+					region.releaseChunk(x, z);
+				}
+			}
+		}
+		region.close();
+		assertEquals(region.getNumberOfChunks(), cache.getNumberOfChunks());
+
+		// A copy of the file is read from its own sectors, and cached apart from the original
+		File copy = new File(Files.createTempDirectory("cache").toFile(), "r.0.0.mca");
+		Files.copy(file.toPath(), copy.toPath());
+		Region cached = new Region(copy, true);
+		cached.setChunkCache(cache);
+		Region expected = new Region(file, true);
+		assertArrayEquals(expected.getRawChunk(0, 4), cached.getRawChunk(0, 4));
+		assertEquals(region.getNumberOfChunks() + 1, cache.getNumberOfChunks());
+		expected.close();
+		cached.close();
+	}
+
+	@Test
+	public void testWorlds() throws Exception {
+		// The same region in two worlds, with the same timestamps but other contents
+		File first = new File(Files.createTempDirectory("world").toFile(), "r.0.0.mca");
+		File second = new File(Files.createTempDirectory("world").toFile(), "r.0.0.mca");
+		Files.copy(new File("source/r.0.0.mca").toPath(), first.toPath());
+		Files.copy(new File("destination/r.0.0.mca").toPath(), second.toPath());
+		byte[] timestamps = new byte[RegionHeader.SECTOR_BYTES];
+		try (RandomAccessFile in = new RandomAccessFile(first, "r")) {
+			in.seek(RegionHeader.SECTOR_BYTES);
+			in.readFully(timestamps);
+		}
+		try (RandomAccessFile out = new RandomAccessFile(second, "rw")) {
+			out.seek(RegionHeader.SECTOR_BYTES);
+			out.write(timestamps);
+		}
+
+		ChunkCache cache = new ChunkCache(16 * 1024 * 1024);
+		Region[] regions = { new Region(first, true), new Region(second, true) };
+		Region[] expected = { new Region(first, true), new Region(second, true) };
+		int differ = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			for (Region region : regions) {
+				region.setChunkCache(cache);
+			}
+			for (int z = 0; z < 32; z++) {
+				for (int x = 0; x < 32; x++) {
+					for (int i = 0; i < regions.length; i++) {
+						if (regions[i].hasChunk(x, z)) {
+							assertArrayEquals(expected[i].getRawChunk(x, z), regions[i].getRawChunk(x, z));
+						}
+					}
+					if (pass == 0 && regions[0].hasChunk(x, z) && regions[1].hasChunk(x, z)
+							&& !Arrays.equals(regions[0].getRawChunk(x, z), regions[1].getRawChunk(x, z))) {
+						differ++;
+					}
+				}
+			}
+		}
+		assertTrue(differ > 0);
+		for (int i = 0; i < regions.length; i++) {
+			regions[i].close();
+			expected[i].close();
+		}
+	}
+
+	private byte[] payload(int length, int value) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) (i + value);
+		}
+		return payload;
+	}
+}
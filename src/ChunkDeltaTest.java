@@ -1,15 +1,29 @@
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
+import org.jnbt.ByteArrayTag;
 import org.jnbt.CompoundTag;
+import org.jnbt.ByteTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.LongTag;
 import org.jnbt.NBTUtils;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
 import org.junit.Test;
 
 import com.cusackj.mcad.delta.ChunkDelta;
 import com.cusackj.mcad.delta.SectionDelta;
+import com.cusackj.mcad.delta.VerificationPolicy;
 import com.cusackj.mcad.model.Chunk;
 import com.cusackj.mcad.model.Region;
+import com.cusackj.utils.HashUtils;
 
 
 public class ChunkDeltaTest {
@@ -33,4 +47,182 @@ public class ChunkDeltaTest {
 		assertEquals(NBTUtils.writeTagToBytes(destC.getTag()).length, NBTUtils.writeTagToBytes(sourceMutate.getTag()).length);
 	}
 
+	@Test
+	public void testFieldMask() {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		Chunk sourceC = r.getChunk(0, 4);
+		
+		// Only the times change, as they do for every chunk that is loaded
+		CompoundTag destTag = (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceC.getTag()));
+		Map<String, Tag> level = ((CompoundTag) destTag.getValue().get("Level")).getValue();
+		level.put("LastUpdate", new LongTag("LastUpdate", ((LongTag) level.get("LastUpdate")).getValue() + 40));
+		level.put("InhabitedTime", new LongTag("InhabitedTime", ((LongTag) level.get("InhabitedTime")).getValue() + 40));
+		Chunk destC = new Chunk(destTag, 0, 4, 0);
+		
+		ChunkDelta cd = new ChunkDelta(new ChunkDelta(sourceC, destC).getBytes());
+		assertTrue(cd.getLengthInBytes() < 64);
+		
+		Chunk sourceMutate = new Chunk((CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceC.getTag())), 0, 4, 0);
+		cd.applyDelta(sourceMutate);
+		assertArrayEquals(NBTUtils.writeTagToBytes(destC.getTag()), NBTUtils.writeTagToBytes(sourceMutate.getTag()));
+		assertTrue(cd.verify(sourceMutate));
+	}
+
+	@Test
+	public void testOtherTags() {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		Chunk sourceC = r.getChunk(0, 4);
+
+		// Tags a chunk delta has no field for, in the chunk and in its level
+		CompoundTag sourceTag = (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceC.getTag()));
+		sourceTag.getValue().put("DataVersion", new IntTag("DataVersion", 1343));
+		Map<String, Tag> masks = new HashMap<>();
+		masks.put("AIR", new ByteArrayTag("AIR", new byte[8192]));
+		((CompoundTag) sourceTag.getValue().get("Level")).getValue().put("CarvingMasks", new CompoundTag("CarvingMasks", masks));
+
+		CompoundTag destTag = (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceTag));
+		destTag.getValue().put("DataVersion", new IntTag("DataVersion", 1519));
+		CompoundTag destMasks = (CompoundTag) ((CompoundTag) destTag.getValue().get("Level")).getValue().get("CarvingMasks");
+		((ByteArrayTag) destMasks.getValue().get("AIR")).getValue()[4000] = 1;
+
+		ChunkDelta cd = new ChunkDelta(new ChunkDelta(new Chunk(sourceTag, 0, 4, 0), new Chunk(destTag, 0, 4, 0)).getBytes());
+		assertTrue(cd.getLengthInBytes() < 128);
+
+		Chunk sourceMutate = new Chunk((CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceTag)), 0, 4, 0);
+		cd.applyDelta(sourceMutate);
+		assertTrue(cd.verify(sourceMutate));
+
+		// A new chunk carries them whole
+		Chunk created = new Chunk(NBTUtils.createEmptyChunk(0, 4), 0, 4, 0);
+		new ChunkDelta(new ChunkDelta(new Chunk(destTag, 0, 4, 0)).getBytes()).applyDelta(created);
+		assertEquals(1519, ((IntTag) created.getTag().getValue().get("DataVersion")).getValue().intValue());
+	}
+
+	@Test
+	public void testSectionTags() {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		CompoundTag sourceTag = r.getChunk(0, 4).getTag();
+
+		// A changed section and a new one, each with Add and a tag no section delta knows about
+		CompoundTag destTag = (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceTag));
+		List<Tag> sections = ((ListTag) ((CompoundTag) destTag.getValue().get("Level")).getValue().get("Sections")).getValue();
+		Map<String, Tag> changed = ((CompoundTag) sections.get(0)).getValue();
+		byte[] add = new byte[2048];
+		add[100] = 0x12;
+		changed.put("Add", new ByteArrayTag("Add", add));
+		changed.put("Custom", new StringTag("Custom", "changed"));
+		Map<String, Tag> created = new HashMap<>();
+		created.put("Y", new ByteTag("Y", (byte) 15));
+		created.put("BlockLight", new ByteArrayTag("BlockLight", new byte[2048]));
+		created.put("Blocks", new ByteArrayTag("Blocks", new byte[4096]));
+		created.put("Data", new ByteArrayTag("Data", new byte[2048]));
+		created.put("SkyLight", new ByteArrayTag("SkyLight", new byte[2048]));
+		created.put("Add", new ByteArrayTag("Add", add.clone()));
+		created.put("Custom", new StringTag("Custom", "created"));
+		sections.add(new CompoundTag("", created));
+
+		ChunkDelta cd = new ChunkDelta(new ChunkDelta(new Chunk(sourceTag, 0, 4, 0), new Chunk(destTag, 0, 4, 0)).getBytes());
+		Chunk sourceMutate = new Chunk((CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(sourceTag)), 0, 4, 0);
+		cd.applyDelta(sourceMutate);
+		assertEquals(HashUtils.hashTag(destTag), HashUtils.hashTag(sourceMutate.getTag()));
+		assertTrue(cd.verify(sourceMutate));
+
+		// And the other way, the tags are removed again
+		ChunkDelta back = new ChunkDelta(new ChunkDelta(new Chunk(destTag, 0, 4, 0), new Chunk(sourceTag, 0, 4, 0)).getBytes());
+		back.applyDelta(sourceMutate);
+		assertEquals(HashUtils.hashTag(sourceTag), HashUtils.hashTag(sourceMutate.getTag()));
+	}
+
+	@Test
+	public void testSectionMatching() {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		CompoundTag sourceTag = r.getChunk(0, 4).getTag();
+		List<Tag> sourceSections = getSections(sourceTag);
+		assertTrue(sourceSections.size() > 2);
+
+		// The same sections in another order are matched by Y, so nothing is written for them
+		CompoundTag destTag = copy(sourceTag);
+		Collections.reverse(getSections(destTag));
+		ChunkDelta cd = new ChunkDelta(new Chunk(sourceTag, 0, 4, 0), new Chunk(destTag, 0, 4, 0), VerificationPolicy.OFF);
+		assertTrue(cd.getSectionDeltas().isEmpty());
+
+		// Only the changed section has a delta
+		destTag = copy(sourceTag);
+		CompoundTag changed = (CompoundTag) getSections(destTag).get(1);
+		((ByteArrayTag) changed.getValue().get("Blocks")).getValue()[100]++;
+		cd = new ChunkDelta(new Chunk(sourceTag, 0, 4, 0), new Chunk(destTag, 0, 4, 0), VerificationPolicy.OFF);
+		assertEquals(1, cd.getSectionDeltas().size());
+		assertEquals(((ByteTag) changed.getValue().get("Y")).getValue().intValue(), cd.getSectionDeltas().get(0).getY());
+		assertApplies(cd, sourceTag, destTag);
+
+		// A section removed at one Y and another added at a Y the source does not have, with the rest in another order
+		destTag = copy(sourceTag);
+		List<Tag> destSections = getSections(destTag);
+		CompoundTag removed = (CompoundTag) destSections.remove(0);
+		Collections.reverse(destSections);
+		CompoundTag added = copy((CompoundTag) destSections.get(0));
+		added.getValue().put("Y", new ByteTag("Y", (byte) 15));
+		destSections.add(added);
+		cd = new ChunkDelta(new Chunk(sourceTag, 0, 4, 0), new Chunk(destTag, 0, 4, 0), VerificationPolicy.OFF);
+		assertEquals(2, cd.getSectionDeltas().size());
+		assertEquals(15, cd.getSectionDeltas().get(0).getY());
+		assertEquals(((ByteTag) removed.getValue().get("Y")).getValue().intValue(), cd.getSectionDeltas().get(1).getY());
+		assertEquals(1, cd.getSectionDeltas().get(1).getLengthInBytes());
+
+		Chunk applied = new Chunk(copy(sourceTag), 0, 4, 0);
+		new ChunkDelta(cd.getBytes()).applyDelta(applied);
+		Map<Integer, Long> expected = hashSections(destTag);
+		assertEquals(expected, hashSections(applied.getTag()));
+	}
+
+	@Test
+	public void testPreviousEncoder() {
+		// Every section delta of the fixtures, as written before sections were matched by Y
+		Region src = new Region(new File("source/r.0.0.mca"));
+		Region dst = new Region(new File("destination/r.0.0.mca"));
+		ByteBuffer bytes = ByteBuffer.allocate(1 << 20);
+		int sections = 0;
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				Chunk d = dst.getChunk(x, z);
+				Chunk s = src.getChunk(x, z);
+				if (d == null || s != null && s.getLastModified() == d.getLastModified()) {
+					continue;
+				}
+				ChunkDelta cd = s == null ? new ChunkDelta(d, VerificationPolicy.OFF) : new ChunkDelta(s, d, VerificationPolicy.OFF);
+				for (SectionDelta sd : cd.getSectionDeltas()) {
+					bytes.putInt(sd.getLengthInBytes());
+					bytes.put(sd.getBytes());
+					sections++;
+				}
+			}
+		}
+		assertEquals(514, sections);
+		assertEquals(79459, bytes.position());
+		assertEquals(-1125468123590803355L, HashUtils.hash(bytes.array(), 0, bytes.position()));
+	}
+
+	private void assertApplies(ChunkDelta cd, CompoundTag sourceTag, CompoundTag destTag) {
+		Chunk applied = new Chunk(copy(sourceTag), 0, 4, 0);
+		new ChunkDelta(cd.getBytes()).applyDelta(applied);
+		assertEquals(HashUtils.hashTag(destTag), HashUtils.hashTag(applied.getTag()));
+	}
+
+	/** @return The hash of each section by its Y. */
+	private Map<Integer, Long> hashSections(CompoundTag chunk) {
+		Map<Integer, Long> hashes = new HashMap<>();
+		for (Tag section : getSections(chunk)) {
+			hashes.put(((ByteTag) ((CompoundTag) section).getValue().get("Y")).getValue().intValue(), HashUtils.hashTag(section));
+		}
+		return hashes;
+	}
+
+	private List<Tag> getSections(CompoundTag chunk) {
+		return ((ListTag) ((CompoundTag) chunk.getValue().get("Level")).getValue().get("Sections")).getValue();
+	}
+
+	private CompoundTag copy(CompoundTag tag) {
+		return (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(tag));
+	}
+
 }
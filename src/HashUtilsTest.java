@@ -0,0 +1,62 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+import org.junit.Test;
+
+import com.cusackj.mcad.model.Region;
+import com.cusackj.utils.HashUtils;
+
+
+public class HashUtilsTest {
+
+	@Test
+	public void testCompoundOrder() {
+		Map<String, Tag> forwards = new LinkedHashMap<>();
+		Map<String, Tag> backwards = new LinkedHashMap<>();
+		for (int i = 0; i < 10; i++) {
+			forwards.put("Tag" + i, new IntTag("Tag" + i, i));
+			backwards.put("Tag" + (9 - i), new IntTag("Tag" + (9 - i), 9 - i));
+		}
+		assertEquals(HashUtils.hashTag(new CompoundTag("", forwards)), HashUtils.hashTag(new CompoundTag("", backwards)));
+
+		// A chunk read back keeps its hash, whatever order its compounds come out in
+		CompoundTag chunk = new Region(new File("source/r.0.0.mca")).getChunk(0, 4).getTag();
+		assertEquals(HashUtils.hashTag(chunk), HashUtils.hashTag(NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(chunk))));
+	}
+
+	@Test
+	public void testValues() {
+		CompoundTag chunk = new Region(new File("source/r.0.0.mca")).getChunk(0, 4).getTag();
+		long hash = HashUtils.hashTag(chunk);
+		Map<String, Tag> level = ((CompoundTag) chunk.getValue().get("Level")).getValue();
+		level.put("xPos", new IntTag("xPos", ((IntTag) level.get("xPos")).getValue() + 1));
+		assertTrue(hash != HashUtils.hashTag(chunk));
+
+		// The order of list entries does matter
+		List<Tag> entries = new ArrayList<>();
+		entries.add(new StringTag("", "a"));
+		entries.add(new StringTag("", "b"));
+		long list = HashUtils.hashTag(new ListTag("", StringTag.class, entries));
+		entries.add(entries.remove(0));
+		assertTrue(list != HashUtils.hashTag(new ListTag("", StringTag.class, entries)));
+
+		// The same values under other names are other contents
+		Map<String, Tag> a = new LinkedHashMap<>();
+		a.put("A", new IntTag("A", 1));
+		Map<String, Tag> b = new LinkedHashMap<>();
+		b.put("B", new IntTag("B", 1));
+		assertTrue(HashUtils.hashTag(new CompoundTag("", a)) != HashUtils.hashTag(new CompoundTag("", b)));
+	}
+
+}
@@ -0,0 +1,48 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import org.jnbt.NBTUtils;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.DeltaFormat;
+import com.cusackj.mcad.delta.IndexedRegionDelta;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.model.Region;
+
+
+public class IndexedRegionDeltaTest {
+
+	@Test
+	public void test() throws Exception {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		Region r2 = new Region(new File("destination/r.0.0.mca"));
+
+		RegionDelta delta = new RegionDelta(r, r2);
+		File mcad = File.createTempFile("r.0.0", ".mcad");
+		mcad.deleteOnExit();
+		delta.writeToIndexedFile(mcad);
+		assertTrue(DeltaFormat.isIndexed(mcad));
+
+		IndexedRegionDelta indexed = new IndexedRegionDelta(mcad);
+		assertArrayEquals(delta.getChangedChunkBits(), indexed.getChangedChunkBits());
+
+		// Read the chunk deltas back in reverse, each one should come out of the index on its own
+		List<ChunkDelta> expected = delta.getChunkDeltas();
+		int i = expected.size() - 1;
+		for (int bit = 32 * 32 - 1; bit >= 0; bit--) {
+			ChunkDelta cd = indexed.getChunkDelta(bit % 32, bit / 32);
+			if (cd != null) {
+				assertArrayEquals(expected.get(i).getBytes(), cd.getBytes());
+				i--;
+			}
+		}
+		assertEquals(-1, i);
+
+		indexed.applyChunkDelta(r, 0, 4);
+		assertEquals(NBTUtils.writeTagToBytes(r2.getChunk(0, 4).getTag()).length, NBTUtils.writeTagToBytes(r.getChunk(0, 4).getTag()).length);
+	}
+
+}
@@ -0,0 +1,143 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.utils.HashUtils;
+
+
+public class LazyRegionTest {
+
+	@Test
+	public void testNonOrigin() throws Exception {
+		diffAndApply("r.1.0.mca");
+	}
+
+	@Test
+	public void testNegative() throws Exception {
+		diffAndApply("r.-1.-2.mca");
+	}
+
+	@Test
+	public void testUnnamedInPlace() throws Exception {
+		File mcad = new File(Files.createTempDirectory("delta").toFile(), "r.1.0.mcad");
+		File src = new File(Files.createTempDirectory("source").toFile(), "r.1.0.mca");
+		Files.copy(new File("source/r.0.0.mca").toPath(), src.toPath());
+		Files.copy(new File("destination/r.0.0.mca").toPath(), new File(mcad.getParentFile(), "r.1.0.mca").toPath());
+		RegionDelta.writeDelta(src, new File(mcad.getParentFile(), "r.1.0.mca"), mcad, new DiffOptions());
+
+		// A backup copy does not say which region it is, so its chunks can not be given their positions
+		File backup = new File(src.getParentFile(), "r.1.0.mca.bak");
+		Files.copy(src.toPath(), backup.toPath());
+		byte[] before = Files.readAllBytes(backup.toPath());
+		try {
+			RegionDelta.applyInPlace(backup, mcad);
+			fail("The region position of " + backup.getName() + " is not known");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains(backup.getName()));
+		}
+		assertArrayEquals(before, Files.readAllBytes(backup.toPath()));
+	}
+
+	@Test
+	public void testConcurrentDecode() throws Exception {
+		final Region region = new Region(new File("destination/r.0.0.mca"), true);
+		List<Callable<Chunk>> tasks = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			tasks.add(new Callable<Chunk>() {
+				@Override
+				public Chunk call() {
+					return region.getChunk(0, 4);
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Chunk>> futures = executor.invokeAll(tasks);
+		executor.shutdown();
+		// However many threads decoded it, only one copy is kept
+		for (Future<Chunk> future : futures) {
+			assertSame(region.getChunk(0, 4), future.get());
+		}
+		region.close();
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		Region region = new Region(new File("destination/r.0.0.mca"), true);
+		Region expected = new Region(new File("destination/r.0.0.mca"));
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				if (region.hasChunk(x, z)) {
+					assertNotNull(region.getRawChunk(x, z));
+					assertEquals(HashUtils.hashTag(expected.getChunk(x, z).getTag()), HashUtils.hashTag(region.getChunk(x, z).getTag()));
+					region.releaseChunk(x, z);
+				}
+			}
+		}
+		region.close();
+
+		// The file the chunks were read from is not opened again
+		try {
+			region.getRawChunk(0, 4);
+			fail("A closed region read a chunk");
+		} catch (IOException e) {
+		}
+		assertTrue(region.hasChunk(0, 4));
+		assertNull(region.getChunk(0, 4));
+	}
+
+	/** The fixture regions copied to other coordinates, diffed and applied lazily. */
+	private void diffAndApply(String name) throws Exception {
+		File src = new File(Files.createTempDirectory("source").toFile(), name);
+		File dst = new File(Files.createTempDirectory("destination").toFile(), name);
+		Files.copy(new File("source/r.0.0.mca").toPath(), src.toPath());
+		Files.copy(new File("destination/r.0.0.mca").toPath(), dst.toPath());
+
+		File mcad = new File(Files.createTempDirectory("delta").toFile(), name + "d");
+		RegionDelta.writeDelta(src, dst, mcad, new DiffOptions());
+
+		File out = new File(Files.createTempDirectory("out").toFile(), name);
+		Region region = new Region(src, true);
+		RegionDelta.applyChain(region, Arrays.asList(mcad)).write(out);
+		region.close();
+		assertRegionsEqual(dst, out);
+
+		RegionDelta.applyInPlace(src, mcad);
+		assertRegionsEqual(dst, src);
+	}
+
+	private void assertRegionsEqual(File expectedFile, File actualFile) throws Exception {
+		Region expected = new Region(expectedFile, true);
+		Region actual = new Region(actualFile, true);
+		assertTrue(expected.getNumberOfChunks() > 0);
+		assertEquals(expected.getNumberOfChunks(), actual.getNumberOfChunks());
+		for (int z = expected.getZ() * 32; z < expected.getZ() * 32 + 32; z++) {
+			for (int x = expected.getX() * 32; x < expected.getX() * 32 + 32; x++) {
+				assertEquals(expected.hasChunk(x, z), actual.hasChunk(x, z));
+				if (!expected.hasChunk(x, z)) {
+					continue;
+				}
+				assertEquals(expected.getChunkTimestamp(x, z), actual.getChunkTimestamp(x, z));
+				assertEquals(HashUtils.hashTag(expected.getChunk(x, z).getTag()), HashUtils.hashTag(actual.getChunk(x, z).getTag()));
+				expected.releaseChunk(x, z);
+				actual.releaseChunk(x, z);
+			}
+		}
+		expected.close();
+		actual.close();
+	}
+}
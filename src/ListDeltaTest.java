@@ -0,0 +1,74 @@
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.ListDelta;
+
+
+public class ListDeltaTest {
+
+	@Test
+	public void test() {
+		List<Tag> sourceEntries = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			sourceEntries.add(tileEntity(i, 64, i * 2, "Chest"));
+		}
+		ListTag source = new ListTag("TileEntities", CompoundTag.class, sourceEntries);
+
+		// Remove one, change one, add one and move one
+		List<Tag> destEntries = new ArrayList<>(sourceEntries);
+		destEntries.remove(10);
+		destEntries.set(20, tileEntity(21, 64, 42, "Furnace"));
+		destEntries.add(tileEntity(100, 70, 3, "Sign"));
+		destEntries.add(destEntries.remove(0));
+		ListTag dest = new ListTag("TileEntities", CompoundTag.class, destEntries);
+
+		ListDelta delta = new ListDelta(source, dest, ListDelta.POSITION_KEY);
+		assertTrue(delta.getLengthInBytes() < new ListDelta(dest).getLengthInBytes());
+
+		ByteBuffer bb = ByteBuffer.allocate(delta.getLengthInBytes());
+		delta.write(bb);
+		bb.flip();
+		ListDelta read = new ListDelta(bb);
+
+		CompoundTag level = level(source);
+		read.applyTo(level, "TileEntities");
+		assertArrayEquals(NBTUtils.writeTagToBytes(dest), NBTUtils.writeTagToBytes(level.getValue().get("TileEntities")));
+	}
+
+	@Test
+	public void testAbsent() {
+		ListTag source = new ListTag("TileTicks", CompoundTag.class, new ArrayList<Tag>());
+		CompoundTag level = level(source);
+		new ListDelta(source, null, ListDelta.POSITION_KEY).applyTo(level, "TileTicks");
+		assertNull(level.getValue().get("TileTicks"));
+	}
+
+	private CompoundTag tileEntity(int x, int y, int z, String id) {
+		Map<String, Tag> values = new HashMap<>();
+		values.put("x", new IntTag("x", x));
+		values.put("y", new IntTag("y", y));
+		values.put("z", new IntTag("z", z));
+		values.put("id", new StringTag("id", id));
+		return new CompoundTag("", values);
+	}
+
+	private CompoundTag level(ListTag list) {
+		Map<String, Tag> values = new HashMap<>();
+		values.put(list.getName(), list);
+		return new CompoundTag("Level", values);
+	}
+
+}
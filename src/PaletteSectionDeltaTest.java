@@ -0,0 +1,160 @@
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.BlockStatesKernel;
+import com.cusackj.mcad.delta.PaletteSectionDelta;
+
+
+public class PaletteSectionDeltaTest {
+
+	@Test
+	public void testKernel() {
+		Random random = new Random(3);
+		for (boolean spanning : new boolean[] { false, true }) {
+			for (int bits = 4; bits <= 14; bits++) {
+				long[] states = new long[BlockStatesKernel.getLength(bits, spanning)];
+				int[] expected = new int[BlockStatesKernel.ENTRIES];
+				for (int i = 0; i < expected.length; i++) {
+					expected[i] = random.nextInt(1 << bits);
+					BlockStatesKernel.set(states, bits, spanning, i, expected[i]);
+				}
+				for (int i = 0; i < expected.length; i++) {
+					assertEquals(expected[i], BlockStatesKernel.get(states, bits, spanning, i));
+				}
+			}
+		}
+		assertEquals(256, BlockStatesKernel.getLength(4, false));
+		assertEquals(342, BlockStatesKernel.getLength(5, false));
+		assertEquals(320, BlockStatesKernel.getLength(5, true));
+	}
+
+	@Test
+	public void test() {
+		for (boolean spanning : new boolean[] { false, true }) {
+			List<String> palette = blocks(10);
+			long[] source = pack(palette.size(), randomEntries(palette.size(), 1), spanning);
+
+			// A few blocks placed
+			int[] entries = unpack(source, palette.size(), spanning);
+			entries[5] = 3;
+			entries[4000] = 9;
+			long[] dest = pack(palette.size(), entries, spanning);
+
+			PaletteSectionDelta delta = roundTrip(new PaletteSectionDelta(palette(palette), source, spanning, palette(palette), dest, spanning));
+			assertTrue(delta.getLengthInBytes() < 32);
+			assertApplies(delta, palette, source, spanning, palette, entries);
+		}
+	}
+
+	@Test
+	public void testRemap() {
+		List<String> sourcePalette = blocks(16);
+		int[] entries = randomEntries(sourcePalette.size(), 2);
+		long[] source = pack(sourcePalette.size(), entries, false);
+
+		// A new block goes at the front of the palette, which no longer fits in 4 bits, and one is placed
+		List<String> destPalette = new ArrayList<>(sourcePalette);
+		destPalette.add(0, "minecraft:glowstone");
+		int[] destEntries = new int[entries.length];
+		for (int i = 0; i < entries.length; i++) {
+			destEntries[i] = entries[i] + 1;
+		}
+		destEntries[100] = 0;
+		long[] dest = pack(destPalette.size(), destEntries, false);
+		assertEquals(5, BlockStatesKernel.getBits(destPalette.size()));
+
+		PaletteSectionDelta delta = roundTrip(new PaletteSectionDelta(palette(sourcePalette), source, false, palette(destPalette), dest, false));
+		assertTrue(delta.getLengthInBytes() < 128);
+		assertApplies(delta, sourcePalette, source, false, destPalette, destEntries);
+
+		// From spanning to padded, as when a world is upgraded to 1.16
+		long[] spanningSource = pack(sourcePalette.size(), entries, true);
+		delta = roundTrip(new PaletteSectionDelta(palette(sourcePalette), spanningSource, true, palette(destPalette), dest, false));
+		assertTrue(delta.getLengthInBytes() < 128);
+		assertApplies(delta, sourcePalette, spanningSource, true, destPalette, destEntries);
+	}
+
+	private void assertApplies(PaletteSectionDelta delta, List<String> sourcePalette, long[] source, boolean sourceSpanning, List<String> destPalette,
+			int[] destEntries) {
+		Map<String, Tag> values = new HashMap<>();
+		values.put("Palette", palette(sourcePalette));
+		CompoundTag section = new CompoundTag("", values);
+		long[] result = delta.applyTo(section, source.clone());
+
+		List<Tag> resultPalette = ((ListTag) section.getValue().get("Palette")).getValue();
+		assertEquals(destPalette.size(), resultPalette.size());
+		for (int i = 0; i < destPalette.size(); i++) {
+			assertEquals(destPalette.get(i), ((CompoundTag) resultPalette.get(i)).getValue().get("Name").getValue());
+		}
+		int bits = BlockStatesKernel.getBits(destPalette.size());
+		for (int i = 0; i < destEntries.length; i++) {
+			assertEquals(destEntries[i], BlockStatesKernel.get(result, bits, false, i));
+		}
+	}
+
+	private PaletteSectionDelta roundTrip(PaletteSectionDelta delta) {
+		ByteBuffer bb = ByteBuffer.allocate(delta.getLengthInBytes());
+		delta.write(bb);
+		assertFalse(bb.hasRemaining());
+		bb.flip();
+		return new PaletteSectionDelta(bb);
+	}
+
+	private List<String> blocks(int count) {
+		List<String> blocks = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			blocks.add("minecraft:block_" + i);
+		}
+		return blocks;
+	}
+
+	private ListTag palette(List<String> blocks) {
+		List<Tag> entries = new ArrayList<>();
+		for (String block : blocks) {
+			Map<String, Tag> values = new HashMap<>();
+			values.put("Name", new StringTag("Name", block));
+			entries.add(new CompoundTag("", values));
+		}
+		return new ListTag("Palette", CompoundTag.class, entries);
+	}
+
+	private int[] randomEntries(int paletteSize, long seed) {
+		Random random = new Random(seed);
+		int[] entries = new int[BlockStatesKernel.ENTRIES];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = random.nextInt(paletteSize);
+		}
+		return entries;
+	}
+
+	private long[] pack(int paletteSize, int[] entries, boolean spanning) {
+		int bits = BlockStatesKernel.getBits(paletteSize);
+		long[] states = new long[BlockStatesKernel.getLength(bits, spanning)];
+		for (int i = 0; i < entries.length; i++) {
+			BlockStatesKernel.set(states, bits, spanning, i, entries[i]);
+		}
+		return states;
+	}
+
+	private int[] unpack(long[] states, int paletteSize, boolean spanning) {
+		int bits = BlockStatesKernel.getBits(paletteSize);
+		int[] entries = new int[BlockStatesKernel.ENTRIES];
+		for (int i = 0; i < entries.length; i++) {
+			entries[i] = BlockStatesKernel.get(states, bits, spanning, i);
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,130 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.utils.HashUtils;
+
+
+public class RegionDeltaChainTest {
+
+	@Test
+	public void test() throws Exception {
+		File dir = Files.createTempDirectory("chain").toFile();
+		File a = new File("source/r.0.0.mca");
+		File b = new File("destination/r.0.0.mca");
+
+		// A chunk that already changed from a to b, and one that was created from a to b
+		Region region = new Region(b, true);
+		Region source = new Region(a, true);
+		int[] changed = null;
+		int[] created = null;
+		int[] removed = null;
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				if (!region.hasChunk(x, z)) {
+					continue;
+				}
+				if (!source.hasChunk(x, z)) {
+					created = created == null ? new int[] { x, z } : created;
+				} else if (source.getChunkTimestamp(x, z) != region.getChunkTimestamp(x, z)) {
+					changed = changed == null ? new int[] { x, z } : changed;
+				} else if (removed == null) {
+					removed = new int[] { x, z };
+				}
+			}
+		}
+		source.close();
+		long timestamp = region.getNewestTimestamp() + 100;
+		changeBlock(region, changed, timestamp);
+		changeBlock(region, created, timestamp);
+		region.removeChunk(removed[0], removed[1]);
+		File c = new File(dir, "r.0.0.mca");
+		region.write(c);
+		region.close();
+
+		File ab = new File(dir, "ab.mcad");
+		File bc = new File(dir, "bc.mcad");
+		RegionDelta.writeDelta(a, b, ab, new DiffOptions());
+		RegionDelta.writeDelta(b, c, bc, new DiffOptions());
+
+		RegionDelta squashed = RegionDelta.squash(Arrays.asList(RegionDelta.read(ab), RegionDelta.read(bc)));
+		assertTrue(getChunkDelta(squashed, changed).isChain());
+		assertTrue(getChunkDelta(squashed, created).isRaw());
+		assertEquals(0, getChunkDelta(squashed, removed).getLengthInBytes());
+
+		File squashedFile = new File(dir, "ac.mcad");
+		squashed.writeToFile(squashedFile);
+		File out = new File(Files.createTempDirectory("chain").toFile(), "r.0.0.mca");
+		Region applied = new Region(a, true);
+		RegionDelta.applyChain(applied, Arrays.asList(squashedFile)).write(out);
+		applied.close();
+		assertRegionsEqual(c, out);
+
+		out = new File(Files.createTempDirectory("chain").toFile(), "r.0.0.mca");
+		applied = new Region(a, true);
+		RegionDelta.applyChain(applied, Arrays.asList(ab, bc)).write(out);
+		applied.close();
+		assertRegionsEqual(c, out);
+
+		try {
+			RegionDelta.applyChain(new Region(a, true), Arrays.asList(bc, ab));
+			fail("The deltas are out of order");
+		} catch (IOException e) {
+		}
+	}
+
+	/** Changes the first block of the chunk's first section. */
+	private void changeBlock(Region region, int[] position, long timestamp) {
+		Chunk chunk = region.getChunk(position[0], position[1]);
+		CompoundTag level = (CompoundTag) chunk.getTag().getValue().get("Level");
+		List<?> sections = ((ListTag) level.getValue().get("Sections")).getValue();
+		byte[] blocks = ((ByteArrayTag) ((CompoundTag) sections.get(0)).getValue().get("Blocks")).getValue();
+		blocks[0]++;
+		chunk.setLastModified(timestamp);
+		region.setChunk(chunk);
+	}
+
+	private ChunkDelta getChunkDelta(RegionDelta delta, int[] position) {
+		int bit = position[0] + position[1] * 32;
+		int index = 0;
+		for (int i = 0; i < bit; i++) {
+			if ((delta.getChangedChunkBits()[i / 8] & 1 << (i % 8)) != 0) {
+				index++;
+			}
+		}
+		return delta.getChunkDeltas().get(index);
+	}
+
+	private void assertRegionsEqual(File expectedFile, File actualFile) throws IOException {
+		Region expected = new Region(expectedFile, true);
+		Region actual = new Region(actualFile, true);
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				assertEquals(expected.hasChunk(x, z), actual.hasChunk(x, z));
+				if (!expected.hasChunk(x, z)) {
+					continue;
+				}
+				assertEquals(expected.getChunkTimestamp(x, z), actual.getChunkTimestamp(x, z));
+				assertEquals(HashUtils.hashTag(expected.getChunk(x, z).getTag()), HashUtils.hashTag(actual.getChunk(x, z).getTag()));
+				expected.releaseChunk(x, z);
+				actual.releaseChunk(x, z);
+			}
+		}
+		expected.close();
+		actual.close();
+	}
+}
@@ -0,0 +1,218 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.jnbt.NBTUtils;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.delta.RegionDeltaReader;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+import com.cusackj.utils.HashUtils;
+
+
+public class RegionDeltaReaderTest {
+
+	@Test
+	public void test() throws Exception {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		Region r2 = new Region(new File("destination/r.0.0.mca"));
+
+		RegionDelta delta = new RegionDelta(r, r2);
+		File mcad = File.createTempFile("r.0.0", ".mcad");
+		mcad.deleteOnExit();
+		delta.writeToFile(mcad);
+
+		RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+		assertArrayEquals(delta.getChangedChunkBits(), reader.getChangedChunkBits());
+
+		List<ChunkDelta> expected = delta.getChunkDeltas();
+		int i = 0;
+		while (reader.hasNext()) {
+			assertArrayEquals(expected.get(i).getBytes(), reader.next().getBytes());
+			i++;
+		}
+		reader.close();
+		assertEquals(expected.size(), i);
+
+		reader = new RegionDeltaReader(new FileInputStream(mcad));
+		reader.applyTo(r);
+		reader.close();
+
+		assertEquals(r2.getNumberOfChunks(), r.getNumberOfChunks());
+		assertEquals(NBTUtils.writeTagToBytes(r2.getChunk(0, 4).getTag()).length, NBTUtils.writeTagToBytes(r.getChunk(0, 4).getTag()).length);
+	}
+
+	@Test
+	public void testStreamed() throws Exception {
+		File src = new File("source/r.0.0.mca");
+		File dst = new File("destination/r.0.0.mca");
+		File streamed = File.createTempFile("r.0.0", ".mcad");
+		streamed.deleteOnExit();
+		RegionDelta.writeDelta(src, dst, streamed, new DiffOptions());
+
+		File buffered = File.createTempFile("r.0.0", ".mcad");
+		buffered.deleteOnExit();
+		new RegionDelta(src, dst, new DiffOptions()).writeToFile(buffered);
+
+		// Written a chunk at a time, the file is the same as one written from the whole delta
+		assertArrayEquals(Files.readAllBytes(buffered.toPath()), Files.readAllBytes(streamed.toPath()));
+	}
+
+	@Test
+	public void testRawChunks() throws Exception {
+		// Every chunk of the destination is new
+		File dir = Files.createTempDirectory("raw").toFile();
+		File empty = new File(dir, "r.0.0.mca");
+		Files.write(empty.toPath(), new byte[8192]);
+		File dst = new File("destination/r.0.0.mca");
+		File mcad = new File(dir, "r.0.0.mcad");
+		RegionDelta.writeDelta(empty, dst, mcad, new DiffOptions());
+
+		RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+		while (reader.hasNext()) {
+			assertTrue(reader.next().isRaw());
+		}
+		reader.close();
+
+		reader = new RegionDeltaReader(new FileInputStream(mcad));
+		File out = new File(Files.createTempDirectory("raw").toFile(), "r.0.0.mca");
+		reader.applyTo(new Region(empty, true)).write(out);
+		reader.close();
+
+		Region expected = new Region(dst, true);
+		Region actual = new Region(out, true);
+		assertEquals(expected.getNumberOfChunks(), actual.getNumberOfChunks());
+		assertArrayEquals(expected.getRawChunk(0, 4), actual.getRawChunk(0, 4));
+		assertEquals(expected.getChunkTimestamp(0, 4), actual.getChunkTimestamp(0, 4));
+		assertEquals(HashUtils.hashTag(expected.getChunk(0, 4).getTag()), HashUtils.hashTag(actual.getChunk(0, 4).getTag()));
+	}
+
+	@Test
+	public void testFullChunkThreshold() throws Exception {
+		// At 0 every changed chunk is written whole
+		File src = new File("source/r.0.0.mca");
+		File dst = new File("destination/r.0.0.mca");
+		File dir = Files.createTempDirectory("full").toFile();
+		File mcad = new File(dir, "r.0.0.mcad");
+		DiffOptions options = new DiffOptions();
+		options.setFullChunkThreshold(0);
+		RegionDelta.writeDelta(src, dst, mcad, options);
+
+		RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+		while (reader.hasNext()) {
+			assertTrue(reader.next().isRaw());
+		}
+		reader.close();
+
+		reader = new RegionDeltaReader(new FileInputStream(mcad));
+		Region actual = reader.applyTo(new Region(src, true));
+		reader.close();
+
+		Region expected = new Region(dst, true);
+		for (int x = 0; x < 32; x++) {
+			for (int z = 0; z < 32; z++) {
+				if (expected.hasChunk(x, z)) {
+					assertArrayEquals(expected.getRawChunk(x, z), actual.getRawChunk(x, z));
+				}
+			}
+		}
+	}
+
+
+	@Test
+	public void testFailedDiff() throws Exception {
+		// An executor that rejects every task makes the diff fail part way through
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		executor.shutdown();
+		for (boolean indexed : new boolean[] { false, true }) {
+			File mcad = new File(Files.createTempDirectory("failed").toFile(), "r.0.0.mcad");
+			DiffOptions options = new DiffOptions(executor);
+			options.setIndexed(indexed);
+			try {
+				RegionDelta.writeDelta(new File("source/r.0.0.mca"), new File("destination/r.0.0.mca"), mcad, options);
+				fail("The executor was shut down");
+			} catch (RejectedExecutionException e) {
+			}
+			assertFalse(mcad.exists());
+		}
+	}
+
+	@Test
+	public void testFailedTask() throws Exception {
+		File src = new File("source/r.0.0.mca");
+		File dst = new File(Files.createTempDirectory("failed").toFile(), "r.0.0.mca");
+		Files.copy(new File("destination/r.0.0.mca").toPath(), dst.toPath());
+
+		// The first chunk diffed from the destination can not be decoded
+		Region source = new Region(src, true);
+		Region dest = new Region(dst, true);
+		int failing = -1;
+		int index = 0;
+		for (int z = 0; z < 32 && failing < 0; z++) {
+			for (int x = 0; x < 32 && failing < 0; x++) {
+				boolean changed = source.hasChunk(x, z) && dest.hasChunk(x, z) && source.getChunkTimestamp(x, z) != dest.getChunkTimestamp(x, z);
+				if (!changed && source.hasChunk(x, z) == dest.hasChunk(x, z)) {
+					continue;
+				}
+				if (dest.hasChunk(x, z)) {
+					failing = index;
+					try (RandomAccessFile file = new RandomAccessFile(dst, "rw")) {
+						file.seek((long) new RegionHeader(dst).getSectorOffset(RegionHeader.getIndex(x, z)) * RegionHeader.SECTOR_BYTES + 4);
+						file.write(new byte[64]);
+					}
+				}
+				index++;
+			}
+		}
+		source.close();
+		dest.close();
+
+		// Tracks every task the diff submits
+		final List<Future<?>> submitted = new ArrayList<>();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(3, 3, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()) {
+			@Override
+			protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+				RunnableFuture<T> future = super.newTaskFor(callable);
+				synchronized (submitted) {
+					submitted.add(future);
+				}
+				return future;
+			}
+		};
+		File mcad = new File(dst.getParentFile(), "r.0.0.mcad");
+		try {
+			RegionDelta.writeDelta(src, dst, mcad, new DiffOptions(executor));
+			fail("A chunk could not be decoded");
+		} catch (IllegalStateException e) {
+		} finally {
+			executor.shutdown();
+		}
+		assertFalse(mcad.exists());
+
+		// Two tasks in flight for each of the pool's threads, none of which is left running
+		synchronized (submitted) {
+			assertEquals(failing + 3 * 2, submitted.size());
+			for (Future<?> future : submitted) {
+				assertTrue(future.isDone());
+			}
+		}
+	}
+}
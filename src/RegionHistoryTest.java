@@ -0,0 +1,99 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.RegionHistory;
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.utils.HashUtils;
+
+
+public class RegionHistoryTest {
+
+	@Test
+	public void test() throws Exception {
+		File a = new File("source/r.0.0.mca");
+		File b = new File("destination/r.0.0.mca");
+		File c = new File(Files.createTempDirectory("history").toFile(), "r.0.0.mca");
+		File d = new File(Files.createTempDirectory("history").toFile(), "r.0.0.mca");
+		long timestampB = new Region(b, true).getNewestTimestamp();
+		writeChangedBlock(b, c, timestampB + 100);
+		writeChangedBlock(c, d, timestampB + 200);
+
+		File dir = Files.createTempDirectory("history").toFile();
+		RegionHistory history = new RegionHistory(dir);
+		history.setMaxChainLength(2);
+		assertTrue(history.append(a));
+		assertTrue(history.append(b));
+		assertFalse(history.append(b));
+		assertTrue(history.append(c));
+		assertTrue(history.append(d));
+
+		// Reopened from the index, the third delta in a row is stored as a keyframe
+		history = new RegionHistory(dir);
+		List<RegionHistory.Version> versions = history.getVersions();
+		assertEquals(4, versions.size());
+		assertTrue(versions.get(0).isKeyframe());
+		assertFalse(versions.get(1).isKeyframe());
+		assertFalse(versions.get(2).isKeyframe());
+		assertTrue(versions.get(3).isKeyframe());
+
+		File out = new File(Files.createTempDirectory("history").toFile(), "r.0.0.mca");
+		history.restore(timestampB + 150, out);
+		assertRegionsEqual(c, out);
+		history.restore(versions.get(3).getTimestamp(), out);
+		assertArrayEquals(Files.readAllBytes(d.toPath()), Files.readAllBytes(out.toPath()));
+
+		try {
+			history.restore(versions.get(0).getTimestamp() - 1, out);
+			fail("There is no version that old");
+		} catch (IOException e) {
+		}
+	}
+
+	@Test
+	public void testKeyframeThreshold() throws Exception {
+		RegionHistory history = new RegionHistory(Files.createTempDirectory("history").toFile());
+		history.setKeyframeThreshold(0);
+		history.append(new File("source/r.0.0.mca"));
+		history.append(new File("destination/r.0.0.mca"));
+		assertTrue(history.getVersions().get(1).isKeyframe());
+	}
+
+	/** Writes a copy of the region with the first block of one chunk changed. */
+	private void writeChangedBlock(File from, File to, long timestamp) throws IOException {
+		Region region = new Region(from, true);
+		Chunk chunk = region.getChunk(0, 4);
+		CompoundTag level = (CompoundTag) chunk.getTag().getValue().get("Level");
+		List<?> sections = ((ListTag) level.getValue().get("Sections")).getValue();
+		((ByteArrayTag) ((CompoundTag) sections.get(0)).getValue().get("Blocks")).getValue()[0]++;
+		chunk.setLastModified(timestamp);
+		region.setChunk(chunk);
+		region.write(to);
+		region.close();
+	}
+
+	private void assertRegionsEqual(File expectedFile, File actualFile) throws IOException {
+		Region expected = new Region(expectedFile, true);
+		Region actual = new Region(actualFile, true);
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				assertEquals(expected.hasChunk(x, z), actual.hasChunk(x, z));
+				if (expected.hasChunk(x, z)) {
+					assertEquals(expected.getChunkTimestamp(x, z), actual.getChunkTimestamp(x, z));
+				}
+			}
+		}
+		assertEquals(HashUtils.hashTag(expected.getChunk(0, 4).getTag()), HashUtils.hashTag(actual.getChunk(0, 4).getTag()));
+		expected.close();
+		actual.close();
+	}
+}
@@ -0,0 +1,188 @@
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.BitmaskKernel;
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+import com.cusackj.mcad.model.RegionPatcher;
+import com.cusackj.utils.HashUtils;
+
+
+public class RegionPatcherTest {
+
+	@Test
+	public void test() throws Exception {
+		File dir = Files.createTempDirectory("patch").toFile();
+		File mcad = new File(dir, "r.0.0.mcad");
+		RegionDelta.writeDelta(new File("source/r.0.0.mca"), new File("destination/r.0.0.mca"), mcad, new DiffOptions());
+
+		File region = new File(dir, "r.0.0.mca");
+		Files.copy(new File("source/r.0.0.mca").toPath(), region.toPath());
+		RegionDelta.applyInPlace(region, mcad);
+		assertFalse(new File(dir, "r.0.0.mca.journal").exists());
+
+		Region expected = new Region(new File("destination/r.0.0.mca"), true);
+		Region actual = new Region(region, true);
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				assertEquals(expected.hasChunk(x, z), actual.hasChunk(x, z));
+				if (expected.hasChunk(x, z)) {
+					assertEquals(expected.getChunkTimestamp(x, z), actual.getChunkTimestamp(x, z));
+					assertEquals(HashUtils.hashTag(expected.getChunk(x, z).getTag()), HashUtils.hashTag(actual.getChunk(x, z).getTag()));
+					expected.releaseChunk(x, z);
+					actual.releaseChunk(x, z);
+				}
+			}
+		}
+		expected.close();
+		actual.close();
+	}
+
+	@Test
+	public void testMismatch() throws Exception {
+		File dir = Files.createTempDirectory("patch").toFile();
+		File mcad = new File(dir, "r.0.0.mcad");
+		RegionDelta.writeDelta(new File("source/r.0.0.mca"), new File("destination/r.0.0.mca"), mcad, new DiffOptions());
+
+		// Not the region the delta was diffed from
+		File region = new File(dir, "r.0.0.mca");
+		Files.copy(new File("destination/r.0.0.mca").toPath(), region.toPath());
+		assertNotApplied(region, mcad);
+
+		// The same timestamps, but a chunk the delta changes has other contents
+		RegionDelta delta = RegionDelta.read(mcad);
+		int bit = -1;
+		for (ChunkDelta cd : delta.getChunkDeltas()) {
+			bit = BitmaskKernel.nextSetBit(delta.getChangedChunkBits(), bit + 1);
+			if (!cd.isRaw() && !cd.isTouch() && cd.getLengthInBytes() > 0) {
+				break;
+			}
+		}
+		Region source = new Region(new File("source/r.0.0.mca"), true);
+		Chunk chunk = source.getChunk(bit % 32, bit / 32);
+		CompoundTag level = (CompoundTag) chunk.getTag().getValue().get("Level");
+		level.getValue().put("Extra", new IntTag("Extra", 1));
+		source.setChunk(chunk);
+		Files.delete(region.toPath());
+		source.write(region);
+		source.close();
+		assertNotApplied(region, mcad);
+	}
+
+	private void assertNotApplied(File region, File mcad) throws Exception {
+		byte[] before = Files.readAllBytes(region.toPath());
+		try {
+			RegionDelta.applyInPlace(region, mcad);
+			fail("The delta does not apply to this region");
+		} catch (IOException e) {
+		}
+		assertArrayEquals(before, Arrays.copyOf(Files.readAllBytes(region.toPath()), before.length));
+		assertEquals(new RegionHeader(region).getNewestTimestamp(), new RegionHeader(ByteBuffer.wrap(before)).getNewestTimestamp());
+		assertFalse(new File(region.getPath() + ".journal").exists());
+	}
+
+	@Test
+	public void testSectors() throws Exception {
+		File region = File.createTempFile("r.0.0", ".mca");
+		Files.write(region.toPath(), new byte[RegionHeader.HEADER_BYTES]);
+
+		RegionPatcher patcher = new RegionPatcher(region);
+		patcher.writePayload(0, 0, payload(5000, 1), 10);
+		patcher.writePayload(1, 0, payload(100, 2), 11);
+		patcher.commit();
+		assertEquals(RegionHeader.HEADER_BYTES + 3 * RegionHeader.SECTOR_BYTES, region.length());
+
+		// The smaller chunk can not go where the first one was until the header no longer points there
+		patcher.writePayload(0, 0, payload(100, 3), 12);
+		patcher.commit();
+		assertEquals(RegionHeader.HEADER_BYTES + 4 * RegionHeader.SECTOR_BYTES, region.length());
+		patcher.writePayload(1, 0, payload(6000, 4), 13);
+		patcher.commit();
+		assertEquals(RegionHeader.HEADER_BYTES + 4 * RegionHeader.SECTOR_BYTES, region.length());
+		patcher.close();
+
+		patcher = new RegionPatcher(region);
+		assertArrayEquals(payload(100, 3), patcher.readPayload(0, 0));
+		assertArrayEquals(payload(6000, 4), patcher.readPayload(1, 0));
+		assertEquals(13, patcher.getTimestamp(1, 0));
+
+		// Changes that were never committed are not seen
+		patcher.writePayload(0, 0, payload(100, 5), 14);
+		patcher.removeChunk(1, 0);
+		patcher.close();
+		patcher = new RegionPatcher(region);
+		assertArrayEquals(payload(100, 3), patcher.readPayload(0, 0));
+		assertTrue(patcher.hasChunk(1, 0));
+		patcher.close();
+	}
+
+	@Test
+	public void testJournal() throws Exception {
+		File region = File.createTempFile("r.0.0", ".mca");
+		Files.write(region.toPath(), new byte[RegionHeader.HEADER_BYTES]);
+		RegionPatcher patcher = new RegionPatcher(region);
+		patcher.writePayload(0, 0, payload(100, 1), 10);
+		patcher.commit();
+		patcher.close();
+		byte[] before = Arrays.copyOf(Files.readAllBytes(region.toPath()), RegionHeader.HEADER_BYTES);
+
+		patcher = new RegionPatcher(region);
+		patcher.writePayload(0, 0, payload(100, 2), 11);
+		patcher.commit();
+		patcher.close();
+		byte[] after = Arrays.copyOf(Files.readAllBytes(region.toPath()), RegionHeader.HEADER_BYTES);
+
+		// A crash after the journal was written, before the new header was
+		File journal = new File(region.getPath() + ".journal");
+		writeHeader(region, before);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(journal));
+		out.writeInt(0x4D43414A);
+		out.write(after);
+		out.writeLong(HashUtils.hash(after));
+		out.close();
+		patcher = new RegionPatcher(region);
+		assertArrayEquals(payload(100, 2), patcher.readPayload(0, 0));
+		patcher.close();
+		assertFalse(journal.exists());
+
+		// A crash while the journal was being written
+		writeHeader(region, before);
+		out = new DataOutputStream(new FileOutputStream(journal));
+		out.writeInt(0x4D43414A);
+		out.write(after, 0, 100);
+		out.close();
+		patcher = new RegionPatcher(region);
+		assertArrayEquals(payload(100, 1), patcher.readPayload(0, 0));
+		patcher.close();
+		assertFalse(journal.exists());
+	}
+
+	private void writeHeader(File region, byte[] header) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(region, "rw");
+		file.write(header);
+		file.close();
+	}
+
+	private byte[] payload(int length, int value) {
+		byte[] payload = new byte[length];
+		Arrays.fill(payload, (byte) value);
+		payload[0] = 2;
+		return payload;
+	}
+}
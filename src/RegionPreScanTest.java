@@ -0,0 +1,167 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.delta.RegionDeltaReader;
+import com.cusackj.mcad.delta.RegionPreScan;
+import com.cusackj.mcad.delta.RegionPreScan.ChunkChange;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+
+
+public class RegionPreScanTest {
+
+	@Test
+	public void testIdentical() throws Exception {
+		File src = new File("source/r.0.0.mca");
+		RegionPreScan scan = new RegionPreScan(src, copy(src), true);
+		assertTrue(scan.isIdentical());
+		assertArrayEquals(new byte[128], scan.getChangedChunkBits());
+		assertEquals(scan.getSourceTimestamp(), scan.getDestTimestamp());
+
+		// Nothing is decoded or written for the chunks
+		RegionDelta delta = new RegionDelta(src, copy(src), new DiffOptions());
+		assertTrue(delta.getChunkDeltas().isEmpty());
+		assertArrayEquals(new byte[128], delta.getChangedChunkBits());
+	}
+
+	@Test
+	public void testHeaders() throws Exception {
+		// Classified from the headers alone, as a diff of the decoded regions does
+		File src = new File("source/r.0.0.mca");
+		File dst = new File("destination/r.0.0.mca");
+		RegionPreScan scan = new RegionPreScan(src, dst);
+		Region source = new Region(src, true);
+		Region dest = new Region(dst, true);
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				ChunkChange expected;
+				if (source.hasChunk(x, z) && dest.hasChunk(x, z)) {
+					expected = source.getChunkTimestamp(x, z) == dest.getChunkTimestamp(x, z) ? ChunkChange.UNCHANGED : ChunkChange.CHANGED;
+				} else if (dest.hasChunk(x, z)) {
+					expected = ChunkChange.CREATED;
+				} else {
+					expected = source.hasChunk(x, z) ? ChunkChange.REMOVED : ChunkChange.ABSENT;
+				}
+				assertEquals(expected, scan.getChange(x, z));
+			}
+		}
+		assertEquals(source.getNewestTimestamp(), scan.getSourceTimestamp());
+		assertEquals(dest.getNewestTimestamp(), scan.getDestTimestamp());
+		source.close();
+		dest.close();
+		assertArrayEquals(new RegionDelta(new Region(src), new Region(dst)).getChangedChunkBits(), scan.getChangedChunkBits());
+	}
+
+	@Test
+	public void testTimestampOnly() throws Exception {
+		// A chunk saved again, only its timestamp differs
+		File src = new File("source/r.0.0.mca");
+		File dst = copy(src);
+		try (RandomAccessFile file = new RandomAccessFile(dst, "rw")) {
+			file.seek(RegionHeader.SECTOR_BYTES + RegionHeader.getIndex(3, 4) * 4);
+			file.writeInt(12345);
+		}
+		int index = RegionHeader.getIndex(3, 4);
+
+		// The headers alone can not tell it was not changed
+		RegionPreScan scan = new RegionPreScan(src, dst);
+		assertEquals(ChunkChange.CHANGED, scan.getChange(3, 4));
+		assertTrue(scan.isFlagged(index));
+		assertFalse(scan.isIdentical());
+		byte[] bits = new byte[128];
+		bits[index / 8] |= 1 << (index % 8);
+		assertArrayEquals(bits, scan.getChangedChunkBits());
+
+		scan = new RegionPreScan(src, dst, true);
+		assertEquals(ChunkChange.TOUCHED, scan.getChange(3, 4));
+		assertArrayEquals(bits, scan.getChangedChunkBits());
+	}
+
+	@Test
+	public void testContentCheck() throws Exception {
+		File src = new File("source/r.0.0.mca");
+		File dst = copy(src);
+
+		// Chunk 0, 4 is saved again unchanged, chunk 1, 4 is changed
+		int touched = RegionHeader.getIndex(0, 4);
+		int changed = RegionHeader.getIndex(1, 4);
+		try (RandomAccessFile file = new RandomAccessFile(dst, "rw")) {
+			file.seek(RegionHeader.SECTOR_BYTES + touched * 4);
+			file.writeInt(12345);
+			file.seek(RegionHeader.SECTOR_BYTES + changed * 4);
+			file.writeInt(12345);
+			RegionHeader header = new RegionHeader(dst);
+			file.seek(header.getSectorOffset(changed) * RegionHeader.SECTOR_BYTES + 10);
+			file.write(0);
+		}
+
+		assertEquals(ChunkChange.CHANGED, new RegionPreScan(src, dst).getChange(0, 4));
+
+		RegionPreScan scan = new RegionPreScan(src, dst, true);
+		assertEquals(ChunkChange.TOUCHED, scan.getChange(0, 4));
+		assertEquals(ChunkChange.CHANGED, scan.getChange(1, 4));
+		assertEquals(ChunkChange.UNCHANGED, scan.getChange(2, 4));
+		assertFalse(scan.isIdentical());
+	}
+
+	@Test
+	public void testTouch() throws Exception {
+		File src = new File("source/r.0.0.mca");
+		File dst = copy(src);
+		try (RandomAccessFile file = new RandomAccessFile(dst, "rw")) {
+			file.seek(RegionHeader.SECTOR_BYTES + RegionHeader.getIndex(0, 4) * 4);
+			file.writeInt(12345);
+		}
+
+		DiffOptions options = new DiffOptions();
+		options.setContentCheck(true);
+		File mcad = File.createTempFile("r.0.0", ".mcad");
+		mcad.deleteOnExit();
+		RegionDelta.writeDelta(src, dst, mcad, options);
+
+		RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+		ChunkDelta delta = reader.next();
+		assertTrue(delta.isTouch());
+		assertEquals(5, delta.getBytes().length);
+		assertFalse(reader.hasNext());
+		reader.close();
+
+		Region r = new Region(src, true);
+		reader = new RegionDeltaReader(new FileInputStream(mcad));
+		reader.applyTo(r);
+		reader.close();
+		assertEquals(12345, r.getChunkTimestamp(0, 4));
+
+		// The touched chunk was not decoded, and is written out as it was stored
+		byte[] stored = new Region(src, true).getRawChunk(0, 4);
+		assertArrayEquals(stored, r.getRawChunk(0, 4));
+		File out = new File(Files.createTempDirectory("prescan").toFile(), "r.0.0.mca");
+		r.write(out);
+		Region written = new Region(out, true);
+		assertArrayEquals(stored, written.getRawChunk(0, 4));
+		assertEquals(12345, written.getChunkTimestamp(0, 4));
+		assertEquals(12345, r.getChunk(0, 4).getLastModified());
+		written.close();
+		r.close();
+	}
+
+	/** Copies a region file to r.0.0.mca in a new temporary directory. */
+	private File copy(File src) throws Exception {
+		File dir = Files.createTempDirectory("prescan").toFile();
+		dir.deleteOnExit();
+		File dst = new File(dir, src.getName());
+		dst.deleteOnExit();
+		Files.copy(src.toPath(), dst.toPath());
+		return dst;
+	}
+
+}
@@ -0,0 +1,57 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+import com.cusackj.mcad.model.RegionReader;
+import com.cusackj.utils.HashUtils;
+
+
+public class RegionReaderTest {
+
+	@Test
+	public void test() throws Exception {
+		File file = new File("destination/r.0.0.mca");
+		RegionReader reader = new RegionReader(file);
+		RegionHeader header = new RegionHeader(file);
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			for (int i = 0; i < RegionHeader.CHUNKS; i++) {
+				assertEquals(header.getTimestamp(i), reader.getHeader().getTimestamp(i));
+				ByteBuffer payload = reader.getPayload(i);
+				if (payload == null) {
+					assertFalse(header.hasChunk(i));
+					continue;
+				}
+				byte[] bytes = new byte[payload.remaining()];
+				payload.get(bytes);
+				assertArrayEquals(header.readPayload(in, i), bytes);
+			}
+		}
+
+		// Chunks read in parallel are the same as those read one at a time through the lazy path
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		List<Chunk> chunks = reader.readChunks(0, 0, null, executor);
+		executor.shutdown();
+		Region region = new Region(file, true);
+		assertEquals(region.getNumberOfChunks(), chunks.size());
+		for (Chunk c : chunks) {
+			assertEquals(region.getChunkTimestamp(c.getX(), c.getZ()), c.getLastModified());
+			assertEquals(HashUtils.hashTag(region.getChunk(c.getX(), c.getZ()).getTag()), HashUtils.hashTag(c.getTag()));
+			region.releaseChunk(c.getX(), c.getZ());
+		}
+		region.close();
+
+		byte[] mask = new byte[RegionHeader.CHUNKS / 8];
+		mask[0] = 1;
+		assertEquals(header.hasChunk(0) ? 1 : 0, reader.readChunks(0, 0, mask, null).size());
+	}
+}
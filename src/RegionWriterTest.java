@@ -0,0 +1,81 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+import com.cusackj.mcad.model.RegionWriter;
+import com.cusackj.utils.HashUtils;
+
+
+public class RegionWriterTest {
+
+	@Test
+	public void testLayout() throws Exception {
+		RegionWriter writer = new RegionWriter();
+		writer.setPayload(5, payload(100), 10);
+		writer.setPayload(1, payload(RegionHeader.SECTOR_BYTES - 4), 11);
+		writer.setPayload(2, payload(RegionHeader.SECTOR_BYTES), 12);
+		File file = File.createTempFile("r.0.0", ".mca");
+		writer.write(file);
+
+		// Consecutive sectors in index order, right after the header
+		assertEquals(RegionHeader.HEADER_BYTES + 4 * RegionHeader.SECTOR_BYTES, file.length());
+		RegionHeader header = new RegionHeader(file);
+		assertEquals(2, header.getSectorOffset(1));
+		assertEquals(1, header.getSectorCount(1));
+		assertEquals(3, header.getSectorOffset(2));
+		assertEquals(2, header.getSectorCount(2));
+		assertEquals(5, header.getSectorOffset(5));
+		assertEquals(12, header.getTimestamp(2));
+		assertFalse(header.hasChunk(0));
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			assertArrayEquals(payload(RegionHeader.SECTOR_BYTES), header.readPayload(in, 2));
+		}
+	}
+
+	@Test
+	public void testRegion() throws Exception {
+		File source = new File("destination/r.0.0.mca");
+		File serial = new File(Files.createTempDirectory("writer").toFile(), "r.0.0.mca");
+		File parallel = new File(Files.createTempDirectory("writer").toFile(), "r.0.0.mca");
+		Region region = new Region(source);
+		region.write(serial);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		region.write(parallel, executor);
+		executor.shutdown();
+		assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+
+		// A lazy region copies the stored payloads rather than deflating them again
+		region = new Region(source, true);
+		region.write(parallel);
+		region.close();
+		Region expected = new Region(source, true);
+		Region actual = new Region(parallel, true);
+		for (int z = 0; z < 32; z++) {
+			for (int x = 0; x < 32; x++) {
+				assertEquals(expected.hasChunk(x, z), actual.hasChunk(x, z));
+				assertArrayEquals(expected.getRawChunk(x, z), actual.getRawChunk(x, z));
+				assertEquals(expected.getChunkTimestamp(x, z), actual.getChunkTimestamp(x, z));
+			}
+		}
+		assertEquals(HashUtils.hashTag(expected.getChunk(0, 4).getTag()), HashUtils.hashTag(actual.getChunk(0, 4).getTag()));
+		expected.close();
+		actual.close();
+	}
+
+	private byte[] payload(int length) {
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++) {
+			payload[i] = (byte) i;
+		}
+		payload[0] = 2;
+		return payload;
+	}
+}
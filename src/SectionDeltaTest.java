@@ -2,11 +2,13 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 
+import org.jnbt.ByteArrayTag;
 import org.jnbt.CompoundTag;
 import org.jnbt.ListTag;
 import org.jnbt.NBTUtils;
 import org.junit.Test;
 
+import com.cusackj.mcad.delta.BitmaskKernel;
 import com.cusackj.mcad.delta.SectionDelta;
 import com.cusackj.mcad.model.Chunk;
 import com.cusackj.mcad.model.Region;
@@ -36,6 +38,57 @@ public class SectionDeltaTest {
 		assertArrayEquals(NBTUtils.writeTagToBytes(dest), NBTUtils.writeTagToBytes(sourceMutate));
 	}
 	
+	@Test
+	public void testEncodings() {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		CompoundTag source = getSection(r.getChunk(0, 4).getTag());
+		
+		// One block, a run of blocks, every other block and every block changed, one for each encoding
+		for (int[] edit : new int[][] { { 1, 1 }, { 300, 1 }, { 1500, 2 }, { 4096, 1 } }) {
+			CompoundTag dest = copy(source);
+			byte[] blocks = ((ByteArrayTag) dest.getValue().get("Blocks")).getValue();
+			for (int i = 0; i < edit[0]; i++) {
+				blocks[(1000 + i * edit[1]) % blocks.length]++;
+			}
+			
+			SectionDelta delta = new SectionDelta(source, dest, false);
+			SectionDelta read = new SectionDelta(delta.getBytes());
+			assertEquals(delta.getLengthInBytes(), read.getBytes().length);
+			
+			CompoundTag sourceMutate = copy(source);
+			read.applyDelta(sourceMutate);
+			assertArrayEquals(NBTUtils.writeTagToBytes(dest), NBTUtils.writeTagToBytes(sourceMutate));
+		}
+	}
+	
+	@Test
+	public void testNibbleEncodings() {
+		Region r = new Region(new File("source/r.0.0.mca"));
+		CompoundTag source = getSection(r.getChunk(0, 4).getTag());
+		
+		// Scattered nibbles and every fourth nibble, which the nibble index list and bitmap encode smaller than the byte ones
+		for (int[] edit : new int[][] { { 20, 37 }, { 1000, 4 } }) {
+			CompoundTag dest = copy(source);
+			byte[] data = ((ByteArrayTag) dest.getValue().get("Data")).getValue();
+			for (int i = 0; i < edit[0]; i++) {
+				int n = (1001 + i * edit[1]) % (data.length * 2);
+				BitmaskKernel.setNibble(data, n, BitmaskKernel.getNibble(data, n) + 1);
+			}
+			
+			SectionDelta delta = new SectionDelta(source, dest, false);
+			SectionDelta read = new SectionDelta(delta.getBytes());
+			assertEquals(delta.getLengthInBytes(), read.getBytes().length);
+			
+			CompoundTag sourceMutate = copy(source);
+			read.applyDelta(sourceMutate);
+			assertArrayEquals(NBTUtils.writeTagToBytes(dest), NBTUtils.writeTagToBytes(sourceMutate));
+		}
+	}
+	
+	private CompoundTag copy(CompoundTag tag){
+		return (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(tag));
+	}
+	
 	private CompoundTag getSection(CompoundTag chunk){
 		CompoundTag level =(CompoundTag) chunk.getValue().get("Level");
 		ListTag l = (ListTag) level.getValue().get("Sections");
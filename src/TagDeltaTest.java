@@ -0,0 +1,87 @@
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.IntArrayTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.TagDelta;
+
+
+public class TagDeltaTest {
+
+	@Test
+	public void test() {
+		CompoundTag source = structures();
+		CompoundTag dest = copy(source);
+
+		// Change one nested value, one array element and one list entry, remove a tag and add one
+		Map<String, Tag> values = dest.getValue();
+		CompoundTag start = (CompoundTag) ((CompoundTag) values.get("Starts")).getValue().get("Village");
+		start.getValue().put("ChunkX", new IntTag("ChunkX", 7));
+		((IntArrayTag) values.get("Heightmap")).getValue()[100] = 90;
+		List<Tag> children = ((ListTag) start.getValue().get("Children")).getValue();
+		children.set(3, new StringTag("", "Well"));
+		values.remove("Old");
+		values.put("DataVersion", new IntTag("DataVersion", 1343));
+
+		TagDelta delta = new TagDelta(source, dest);
+		assertTrue(delta.getLengthInBytes() < NBTUtils.writeTagToBytes(dest).length / 4);
+
+		ByteBuffer bb = ByteBuffer.allocate(delta.getLengthInBytes());
+		delta.write(bb);
+		assertFalse(bb.hasRemaining());
+		bb.flip();
+
+		CompoundTag target = copy(source);
+		new TagDelta(bb).applyTo(target);
+		assertArrayEquals(NBTUtils.writeTagToBytes(dest), NBTUtils.writeTagToBytes(target));
+
+		assertTrue(new TagDelta(source, copy(source)).isEmpty());
+	}
+
+	@Test
+	public void testNoSource() {
+		CompoundTag dest = structures();
+		TagDelta delta = new TagDelta(null, dest);
+
+		CompoundTag target = new CompoundTag("Structures", new HashMap<String, Tag>());
+		delta.applyTo(target);
+		assertArrayEquals(NBTUtils.writeTagToBytes(dest), NBTUtils.writeTagToBytes(target));
+	}
+
+	private CompoundTag structures() {
+		List<Tag> children = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			children.add(new StringTag("", "House" + i));
+		}
+		Map<String, Tag> village = new HashMap<>();
+		village.put("ChunkX", new IntTag("ChunkX", 3));
+		village.put("Children", new ListTag("Children", StringTag.class, children));
+		Map<String, Tag> starts = new HashMap<>();
+		starts.put("Village", new CompoundTag("Village", village));
+
+		Map<String, Tag> values = new HashMap<>();
+		values.put("Starts", new CompoundTag("Starts", starts));
+		values.put("Heightmap", new IntArrayTag("Heightmap", new int[256]));
+		values.put("CarvingMask", new ByteArrayTag("CarvingMask", new byte[8192]));
+		values.put("Old", new StringTag("Old", "removed"));
+		return new CompoundTag("Structures", values);
+	}
+
+	private CompoundTag copy(CompoundTag tag) {
+		return (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(tag));
+	}
+
+}
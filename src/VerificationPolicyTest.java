@@ -0,0 +1,140 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.BitmaskKernel;
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.delta.VerificationPolicy;
+import com.cusackj.mcad.model.Region;
+
+
+public class VerificationPolicyTest {
+
+	@Test
+	public void testPolicies() {
+		int sampled = 0;
+		for (int z = -32; z < 32; z++) {
+			for (int x = -32; x < 32; x++) {
+				assertTrue(VerificationPolicy.FULL.shouldVerify(x, z));
+				assertFalse(VerificationPolicy.OFF.shouldVerify(x, z));
+				if (VerificationPolicy.SAMPLED.shouldVerify(x, z)) {
+					sampled++;
+				}
+				// Picked from the position alone, so a run is repeatable
+				assertEquals(VerificationPolicy.SAMPLED.shouldVerify(x, z), VerificationPolicy.SAMPLED.shouldVerify(x, z));
+			}
+		}
+		int expected = 64 * 64 / VerificationPolicy.SAMPLE_RATE;
+		assertTrue(sampled > expected / 2 && sampled < expected * 2);
+		assertEquals(VerificationPolicy.SAMPLED, new DiffOptions().getVerificationPolicy());
+	}
+
+	@Test
+	public void testDiffOptions() throws Exception {
+		File dir = Files.createTempDirectory("verify").toFile();
+		byte[] written = null;
+		for (VerificationPolicy policy : VerificationPolicy.values()) {
+			DiffOptions options = new DiffOptions();
+			options.setVerificationPolicy(policy);
+			options.setFullChunkThreshold(Double.POSITIVE_INFINITY);
+			File mcad = new File(dir, policy + ".mcad");
+
+			// Each chunk delta that is re-applied reports on its length
+			PrintStream out = System.out;
+			ByteArrayOutputStream report = new ByteArrayOutputStream();
+			System.setOut(new PrintStream(report, true));
+			try {
+				RegionDelta.writeDelta(new File("source/r.0.0.mca"), new File("destination/r.0.0.mca"), mcad, options);
+			} finally {
+				System.setOut(out);
+			}
+			int verified = 0;
+			for (String line : report.toString().split("\n")) {
+				if (line.startsWith("Chunk delta is") && line.contains("valid in length")) {
+					verified++;
+				}
+			}
+
+			int deltas = 0;
+			int sampled = 0;
+			RegionDelta delta = RegionDelta.read(mcad);
+			int bit = -1;
+			for (ChunkDelta cd : delta.getChunkDeltas()) {
+				bit = BitmaskKernel.nextSetBit(delta.getChangedChunkBits(), bit + 1);
+				if (!cd.isRaw() && !cd.isTouch() && cd.getLengthInBytes() > 0) {
+					deltas++;
+					if (VerificationPolicy.SAMPLED.shouldVerify(bit % 32, bit / 32)) {
+						sampled++;
+					}
+				}
+			}
+			assertTrue(deltas > 0);
+			switch (policy) {
+			case OFF:
+				assertEquals(0, verified);
+				break;
+			case SAMPLED:
+				assertEquals(sampled, verified);
+				break;
+			case FULL:
+				assertEquals(deltas, verified);
+				break;
+			}
+
+			// Verifying changes nothing that is written
+			if (written != null) {
+				assertArrayEquals(written, Files.readAllBytes(mcad.toPath()));
+			}
+			written = Files.readAllBytes(mcad.toPath());
+		}
+	}
+
+	@Test
+	public void testTampered() throws Exception {
+		File dir = Files.createTempDirectory("verify").toFile();
+		File mcad = new File(dir, "r.0.0.mcad");
+		DiffOptions options = new DiffOptions();
+		options.setFullChunkThreshold(Double.POSITIVE_INFINITY);
+		RegionDelta.writeDelta(new File("source/r.0.0.mca"), new File("destination/r.0.0.mca"), mcad, options);
+
+		// Flip a bit of the first delta record's destination hash, after its kind and timestamp
+		RegionDelta delta = RegionDelta.read(mcad);
+		List<ChunkDelta> deltas = new ArrayList<>(delta.getChunkDeltas());
+		for (int i = 0; i < deltas.size(); i++) {
+			ChunkDelta cd = deltas.get(i);
+			if (!cd.isRaw() && !cd.isTouch() && cd.getLengthInBytes() > 0) {
+				byte[] record = cd.getBytes();
+				record[5] ^= 1;
+				deltas.set(i, new ChunkDelta(record));
+				break;
+			}
+		}
+		File tampered = new File(dir, "tampered.mcad");
+		new RegionDelta(delta.getSourceTimestamp(), delta.getDestTimestamp(), deltas, delta.getChangedChunkBits()).writeToFile(tampered);
+
+		Region region = new Region(new File("source/r.0.0.mca"), true);
+		try {
+			RegionDelta.applyChain(region, Arrays.asList(tampered));
+			fail("A chunk that does not match its destination hash was applied");
+		} catch (IllegalStateException e) {
+		} finally {
+			region.close();
+		}
+
+		// The untouched delta still applies
+		region = new Region(new File("source/r.0.0.mca"), true);
+		RegionDelta.applyChain(region, Arrays.asList(mcad));
+		region.close();
+	}
+
+}
@@ -0,0 +1,86 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import com.cusackj.mcad.delta.DiffOptions;
+import com.cusackj.mcad.delta.WorldDelta;
+import com.cusackj.mcad.delta.WorldManifest;
+import com.cusackj.mcad.delta.WorldManifest.RegionChange;
+import com.cusackj.mcad.model.Region;
+import com.cusackj.utils.HashUtils;
+
+
+public class WorldDeltaTest {
+
+	@Test
+	public void test() throws Exception {
+		File source = Files.createTempDirectory("world").toFile();
+		File dest = Files.createTempDirectory("world").toFile();
+		File sourceRegions = new File(source, "region");
+		File destRegions = new File(dest, "region");
+		sourceRegions.mkdir();
+		destRegions.mkdir();
+
+		File sourceRegion = new File("source/r.0.0.mca");
+		File destRegion = new File("destination/r.0.0.mca");
+		// Changed at the origin, at positive and at negative coordinates, unchanged, created and removed
+		copy(sourceRegion, new File(sourceRegions, "r.0.0.mca"));
+		copy(destRegion, new File(destRegions, "r.0.0.mca"));
+		copy(sourceRegion, new File(sourceRegions, "r.2.1.mca"));
+		copy(destRegion, new File(destRegions, "r.2.1.mca"));
+		copy(sourceRegion, new File(sourceRegions, "r.-2.-1.mca"));
+		copy(destRegion, new File(destRegions, "r.-2.-1.mca"));
+		copy(sourceRegion, new File(sourceRegions, "r.1.0.mca"));
+		copy(sourceRegion, new File(destRegions, "r.1.0.mca"));
+		copy(destRegion, new File(destRegions, "r.-1.0.mca"));
+		copy(sourceRegion, new File(sourceRegions, "r.0.-1.mca"));
+
+		File deltaDir = Files.createTempDirectory("delta").toFile();
+		WorldManifest manifest = new WorldDelta(2, 4 * 1024 * 1024).writeDelta(source, dest, deltaDir, new DiffOptions());
+		assertEquals(6, manifest.getEntries().size());
+		assertEquals(3, manifest.count(RegionChange.CHANGED));
+		assertEquals(1, manifest.count(RegionChange.UNCHANGED));
+		assertEquals(1, manifest.count(RegionChange.CREATED));
+		assertEquals(1, manifest.count(RegionChange.REMOVED));
+		assertFalse(new File(deltaDir, "r.1.0.mcad").exists());
+
+		long unchangedModified = new File(sourceRegions, "r.1.0.mca").lastModified();
+		manifest = new WorldDelta(2, 4 * 1024 * 1024).applyDelta(deltaDir, source);
+		assertEquals(6, manifest.getEntries().size());
+
+		assertFalse(new File(sourceRegions, "r.0.-1.mca").exists());
+		assertEquals(unchangedModified, new File(sourceRegions, "r.1.0.mca").lastModified());
+		assertArrayEquals(Files.readAllBytes(destRegion.toPath()), Files.readAllBytes(new File(sourceRegions, "r.-1.0.mca").toPath()));
+
+		for (String name : new String[] { "r.0.0.mca", "r.2.1.mca", "r.-2.-1.mca" }) {
+			assertRegionsEqual(new File(destRegions, name), new File(sourceRegions, name));
+		}
+	}
+
+	private static void assertRegionsEqual(File expectedFile, File actualFile) throws Exception {
+		Region expected = new Region(expectedFile, true);
+		Region actual = new Region(actualFile, true);
+		assertEquals(expected.getNumberOfChunks(), actual.getNumberOfChunks());
+		for (int z = expected.getZ() * 32; z < expected.getZ() * 32 + 32; z++) {
+			for (int x = expected.getX() * 32; x < expected.getX() * 32 + 32; x++) {
+				assertEquals(expected.hasChunk(x, z), actual.hasChunk(x, z));
+				if (!expected.hasChunk(x, z)) {
+					continue;
+				}
+				assertEquals(expected.getChunkTimestamp(x, z), actual.getChunkTimestamp(x, z));
+				assertEquals(HashUtils.hashTag(expected.getChunk(x, z).getTag()), HashUtils.hashTag(actual.getChunk(x, z).getTag()));
+				expected.releaseChunk(x, z);
+				actual.releaseChunk(x, z);
+			}
+		}
+		expected.close();
+		actual.close();
+	}
+
+	private static void copy(File from, File to) throws Exception {
+		Files.copy(from.toPath(), to.toPath());
+	}
+}
@@ -0,0 +1,196 @@
+package com.cusackj.mcad.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.ByteTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.jnbt.Tag;
+
+import com.cusackj.mcad.delta.BitmaskKernel;
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+
+/** Compares the BitmaskKernel with the byte at a time loops SectionDelta used before, on the section arrays of two real
+ * region files.
+ *
+ * Usage: DeltaKernelBenchmark source.mca destination.mca [iterations] */
+public class DeltaKernelBenchmark {
+	private static final String[] ARRAYS = { "BlockLight", "Blocks", "Data", "SkyLight" };
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.out.println("Paths to a source and destination .mca file required!");
+			return;
+		}
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		Region src = new Region(new File(args[0]));
+		Region dst = new Region(new File(args[1]));
+		System.setOut(out);
+
+		// Every array of every section that exists in both regions, in source/destination pairs
+		List<byte[]> sources = new ArrayList<>();
+		List<byte[]> dests = new ArrayList<>();
+		for (int x = src.getX() * 32; x < src.getX() * 32 + 32; x++) {
+			for (int z = src.getZ() * 32; z < src.getZ() * 32 + 32; z++) {
+				Chunk s = src.getChunk(x, z);
+				Chunk d = dst.getChunk(x, z);
+				if (s != null && d != null) {
+					addSections(s, d, sources, dests);
+				}
+			}
+		}
+		int changed = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			if (!Arrays.equals(sources.get(i), dests.get(i))) {
+				changed++;
+			}
+		}
+
+		// Check both produce the same masks, values and patched arrays before timing anything
+		for (int i = 0; i < sources.size(); i++) {
+			byte[] s = sources.get(i);
+			byte[] d = dests.get(i);
+			byte[] legacyMask = new byte[s.length / 8];
+			byte[] legacyValues = legacyDiff(s, d, legacyMask);
+			byte[] mask = new byte[s.length / 8];
+			byte[] values = new byte[BitmaskKernel.diff(s, d, mask)];
+			BitmaskKernel.gather(d, mask, values);
+			byte[] patched = s.clone();
+			BitmaskKernel.scatter(values, mask, patched);
+			if (!Arrays.equals(legacyMask, mask) || !Arrays.equals(legacyValues, values) || !Arrays.equals(d, patched)) {
+				throw new IllegalStateException("BitmaskKernel differs from the legacy loops on array " + i);
+			}
+		}
+
+		long legacyDiff = Long.MAX_VALUE, kernelDiff = Long.MAX_VALUE, legacyApply = Long.MAX_VALUE, kernelApply = Long.MAX_VALUE;
+		for (int it = 0; it < iterations; it++) {
+			legacyDiff = Math.min(legacyDiff, timeDiff(sources, dests, true));
+			kernelDiff = Math.min(kernelDiff, timeDiff(sources, dests, false));
+			legacyApply = Math.min(legacyApply, timeApply(sources, dests, true));
+			kernelApply = Math.min(kernelApply, timeApply(sources, dests, false));
+		}
+
+		System.out.println("*********************************************************************************");
+		System.out.println(sources.size() + " section arrays, " + changed + " of them changed, best of " + iterations + " runs");
+		System.out.println("diff  legacy: " + legacyDiff / 1000 + "us, kernel: " + kernelDiff / 1000 + "us (" + String.format("%.2f", legacyDiff / (double) kernelDiff) + "x)");
+		System.out.println("apply legacy: " + legacyApply / 1000 + "us, kernel: " + kernelApply / 1000 + "us (" + String.format("%.2f", legacyApply / (double) kernelApply) + "x)");
+		System.out.println("*********************************************************************************");
+	}
+
+	private static void addSections(Chunk s, Chunk d, List<byte[]> sources, List<byte[]> dests) {
+		for (Tag sourceTag : getSections(s)) {
+			CompoundTag sourceSection = (CompoundTag) sourceTag;
+			for (Tag destTag : getSections(d)) {
+				CompoundTag destSection = (CompoundTag) destTag;
+				if (((ByteTag) sourceSection.getValue().get("Y")).getValue().equals(((ByteTag) destSection.getValue().get("Y")).getValue())) {
+					for (String name : ARRAYS) {
+						sources.add(((ByteArrayTag) sourceSection.getValue().get(name)).getValue());
+						dests.add(((ByteArrayTag) destSection.getValue().get(name)).getValue());
+					}
+				}
+			}
+		}
+	}
+
+	private static List<Tag> getSections(Chunk c) {
+		CompoundTag level = (CompoundTag) c.getTag().getValue().get("Level");
+		return ((ListTag) level.getValue().get("Sections")).getValue();
+	}
+
+	private static long timeDiff(List<byte[]> sources, List<byte[]> dests, boolean legacy) {
+		long start = System.nanoTime();
+		int sink = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			byte[] s = sources.get(i);
+			byte[] d = dests.get(i);
+			byte[] mask = new byte[s.length / 8];
+			if (legacy) {
+				sink += legacyDiff(s, d, mask).length;
+			} else {
+				byte[] values = new byte[BitmaskKernel.diff(s, d, mask)];
+				BitmaskKernel.gather(d, mask, values);
+				sink += values.length;
+			}
+		}
+		long time = System.nanoTime() - start;
+		return sink < 0 ? -1 : time;
+	}
+
+	private static long timeApply(List<byte[]> sources, List<byte[]> dests, boolean legacy) {
+		// Build the deltas up front, only the patching is timed
+		List<byte[]> masks = new ArrayList<>();
+		List<byte[]> values = new ArrayList<>();
+		List<byte[]> targets = new ArrayList<>();
+		for (int i = 0; i < sources.size(); i++) {
+			byte[] mask = new byte[sources.get(i).length / 8];
+			values.add(legacyDiff(sources.get(i), dests.get(i), mask));
+			masks.add(mask);
+			targets.add(sources.get(i).clone());
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < targets.size(); i++) {
+			if (legacy) {
+				legacyApply(values.get(i), masks.get(i), targets.get(i));
+			} else {
+				BitmaskKernel.scatter(values.get(i), masks.get(i), targets.get(i));
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/** SectionDelta.calculateDeltaArray before the kernel. */
+	private static byte[] legacyDiff(byte[] source, byte[] dest, byte[] changeArray) {
+		int arrayLength = 0;
+		for (int i = 0; i < source.length; i++) {
+			if (source[i] != dest[i]) {
+				int bit = i % 8;
+				changeArray[(int) Math.floor(i / 8d)] |= 1 << bit;
+				arrayLength += 1;
+			}
+		}
+		byte[] changeValues = new byte[arrayLength];
+		int bit = 0;
+		for (int i = 0; i < arrayLength; i++) {
+			while (!legacyIsBitSet(changeArray, bit)) {
+				bit++;
+			}
+			changeValues[i] = dest[bit];
+			bit++;
+		}
+		return changeValues;
+	}
+
+	/** SectionDelta.applyDeltaArray before the kernel. */
+	private static void legacyApply(byte[] changeValues, byte[] changeArray, byte[] dest) {
+		int bit = 0;
+		for (int i = 0; i < changeValues.length; i++) {
+			while (!legacyIsBitSet(changeArray, bit)) {
+				bit++;
+			}
+			dest[bit] = changeValues[i];
+			bit++;
+		}
+	}
+
+	private static boolean legacyIsBitSet(byte[] target, int bitOffset) {
+		int index = (int) Math.floor(bitOffset / 8);
+		int bitIndex = bitOffset % 8;
+		byte result = (byte) ((target[index] >> bitIndex) & 1);
+		return result == 1;
+	}
+}
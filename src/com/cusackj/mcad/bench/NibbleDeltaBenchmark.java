@@ -0,0 +1,273 @@
+package com.cusackj.mcad.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.Tag;
+
+import com.cusackj.mcad.delta.BitmaskKernel;
+import com.cusackj.mcad.delta.SectionDelta;
+import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.Region;
+
+/** Places a torch in every section of a region and compares SectionDelta, which can encode Data, BlockLight and SkyLight
+ * per nibble, with the byte encodings it used before, for both delta size and apply time. The byte encodings are rebuilt
+ * here.
+ *
+ * Usage: NibbleDeltaBenchmark source.mca [iterations] */
+public class NibbleDeltaBenchmark {
+	private static final String[] ARRAYS = { "BlockLight", "Blocks", "Data", "SkyLight" };
+	private static final int TORCH = 50;
+	private static final int TORCH_LIGHT = 14;
+
+	public static void main(String[] args) {
+		if (args.length < 1) {
+			System.out.println("Path to a source .mca file required!");
+			return;
+		}
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+		}));
+		Region src = new Region(new File(args[0]));
+
+		Random random = new Random(42);
+		List<CompoundTag> sources = new ArrayList<>();
+		List<CompoundTag> dests = new ArrayList<>();
+		for (int x = src.getX() * 32; x < src.getX() * 32 + 32; x++) {
+			for (int z = src.getZ() * 32; z < src.getZ() * 32 + 32; z++) {
+				Chunk c = src.getChunk(x, z);
+				if (c == null) {
+					continue;
+				}
+				CompoundTag level = (CompoundTag) c.getTag().getValue().get("Level");
+				for (Tag section : ((ListTag) level.getValue().get("Sections")).getValue()) {
+					CompoundTag dest = copy((CompoundTag) section);
+					placeTorch(dest, random.nextInt(16), random.nextInt(16), random.nextInt(16));
+					sources.add((CompoundTag) section);
+					dests.add(dest);
+				}
+			}
+		}
+
+		// Build both kinds of delta up front, only the patching is timed
+		List<SectionDelta> deltas = new ArrayList<>();
+		List<ByteArrayDelta[]> byteDeltas = new ArrayList<>();
+		long nibbleSize = 0;
+		long byteSize = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			SectionDelta delta = new SectionDelta(new SectionDelta(sources.get(i), dests.get(i), false).getBytes());
+			deltas.add(delta);
+			nibbleSize += delta.getLengthInBytes();
+
+			ByteArrayDelta[] byteDelta = new ByteArrayDelta[ARRAYS.length];
+			byteSize += 1;
+			for (int a = 0; a < ARRAYS.length; a++) {
+				byteDelta[a] = new ByteArrayDelta(getArray(sources.get(i), ARRAYS[a]), getArray(dests.get(i), ARRAYS[a]));
+				byteSize += byteDelta[a].size;
+			}
+			byteDeltas.add(byteDelta);
+		}
+
+		// Check the nibble encodings produce the destination before timing anything
+		for (int i = 0; i < sources.size(); i++) {
+			CompoundTag target = copy(sources.get(i));
+			deltas.get(i).applyDelta(target);
+			if (!Arrays.equals(NBTUtils.writeTagToBytes(target), NBTUtils.writeTagToBytes(dests.get(i)))) {
+				throw new IllegalStateException("Section delta " + i + " does not produce the destination section");
+			}
+		}
+		System.setOut(out);
+
+		long byteApply = Long.MAX_VALUE, nibbleApply = Long.MAX_VALUE;
+		for (int it = 0; it < iterations; it++) {
+			byteApply = Math.min(byteApply, timeByteApply(sources, byteDeltas));
+			nibbleApply = Math.min(nibbleApply, timeNibbleApply(sources, deltas));
+		}
+
+		System.out.println("*********************************************************************************");
+		System.out.println(sources.size() + " sections with a torch placed, best of " + iterations + " runs");
+		System.out.println("size  bytes: " + byteSize + " bytes, nibbles: " + nibbleSize + " bytes (" + String.format("%.1f", 100 - nibbleSize * 100d / byteSize) + "% smaller)");
+		System.out.println("apply bytes: " + byteApply / 1000 + "us, nibbles: " + nibbleApply / 1000 + "us (" + String.format("%.2f", byteApply / (double) nibbleApply) + "x)");
+		System.out.println("*********************************************************************************");
+	}
+
+	/** Places a torch, and floods BlockLight out from it through air the way the game does, one level less per block. */
+	private static void placeTorch(CompoundTag section, int x, int y, int z) {
+		byte[] blocks = getArray(section, "Blocks");
+		byte[] blockLight = getArray(section, "BlockLight");
+		blocks[index(x, y, z)] = (byte) TORCH;
+		BitmaskKernel.setNibble(getArray(section, "Data"), index(x, y, z), 5);
+		BitmaskKernel.setNibble(blockLight, index(x, y, z), TORCH_LIGHT);
+
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		queue.add(index(x, y, z));
+		int[][] neighbours = { { 1, 0, 0 }, { -1, 0, 0 }, { 0, 1, 0 }, { 0, -1, 0 }, { 0, 0, 1 }, { 0, 0, -1 } };
+		while (!queue.isEmpty()) {
+			int i = queue.poll();
+			int level = BitmaskKernel.getNibble(blockLight, i) - 1;
+			if (level <= 0) {
+				continue;
+			}
+			for (int[] n : neighbours) {
+				int nx = (i & 15) + n[0], ny = (i >> 8) + n[1], nz = (i >> 4 & 15) + n[2];
+				if (nx < 0 || ny < 0 || nz < 0 || nx > 15 || ny > 15 || nz > 15) {
+					continue;
+				}
+				int ni = index(nx, ny, nz);
+				if (blocks[ni] == 0 && BitmaskKernel.getNibble(blockLight, ni) < level) {
+					BitmaskKernel.setNibble(blockLight, ni, level);
+					queue.add(ni);
+				}
+			}
+		}
+	}
+
+	private static int index(int x, int y, int z) {
+		return y * 256 + z * 16 + x;
+	}
+
+	private static long timeByteApply(List<CompoundTag> sources, List<ByteArrayDelta[]> byteDeltas) {
+		List<CompoundTag> targets = copyArrays(sources);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < targets.size(); i++) {
+			for (int a = 0; a < ARRAYS.length; a++) {
+				byteDeltas.get(i)[a].apply(getArray(targets.get(i), ARRAYS[a]));
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long timeNibbleApply(List<CompoundTag> sources, List<SectionDelta> deltas) {
+		List<CompoundTag> targets = copyArrays(sources);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < targets.size(); i++) {
+			deltas.get(i).applyDelta(targets.get(i));
+		}
+		return System.nanoTime() - start;
+	}
+
+	/** Copies of the sections with their own arrays to patch. */
+	private static List<CompoundTag> copyArrays(List<CompoundTag> sources) {
+		List<CompoundTag> targets = new ArrayList<>();
+		for (CompoundTag source : sources) {
+			Map<String, Tag> sectionMap = new HashMap<>(source.getValue());
+			for (String name : ARRAYS) {
+				sectionMap.put(name, new ByteArrayTag(name, getArray(source, name).clone()));
+			}
+			targets.add(new CompoundTag("", sectionMap));
+		}
+		return targets;
+	}
+
+	private static byte[] getArray(CompoundTag section, String name) {
+		return ((ByteArrayTag) section.getValue().get(name)).getValue();
+	}
+
+	private static CompoundTag copy(CompoundTag tag) {
+		return (CompoundTag) NBTUtils.bytesToTag(NBTUtils.writeTagToBytes(tag));
+	}
+
+	/** The smallest of the byte encodings for one array, as SectionDelta chose them before the nibble encodings. */
+	private static class ByteArrayDelta {
+		private static final int ABSENT = 0, INDICES = 1, RUNS = 2, BITMAP = 3, FULL = 4;
+
+		int encoding;
+		int size;
+		byte[] mask;
+		byte[] values;
+		int[] indices;
+		int[] runs;
+
+		ByteArrayDelta(byte[] source, byte[] dest) {
+			mask = new byte[source.length / 8];
+			values = new byte[BitmaskKernel.diff(source, dest, mask)];
+			BitmaskKernel.gather(dest, mask, values);
+			int count = values.length;
+			int runCount = BitmaskKernel.countRuns(mask);
+
+			encoding = FULL;
+			size = dest.length;
+			if (count == 0) {
+				encoding = ABSENT;
+				size = 0;
+			}
+			if (mask.length + count < size) {
+				encoding = BITMAP;
+				size = mask.length + count;
+			}
+			if (2 + runCount * 4 + count < size) {
+				encoding = RUNS;
+				size = 2 + runCount * 4 + count;
+			}
+			if (2 + count * 3 < size) {
+				encoding = INDICES;
+				size = 2 + count * 3;
+			}
+			size++;
+
+			if (encoding == FULL) {
+				values = dest.clone();
+			} else if (encoding == INDICES) {
+				indices = new int[count];
+				int i = 0;
+				for (int bit = BitmaskKernel.nextSetBit(mask, 0); bit != -1; bit = BitmaskKernel.nextSetBit(mask, bit + 1)) {
+					indices[i++] = bit;
+				}
+			} else if (encoding == RUNS) {
+				runs = new int[runCount * 2];
+				int run = -2;
+				int previous = -2;
+				for (int bit = BitmaskKernel.nextSetBit(mask, 0); bit != -1; bit = BitmaskKernel.nextSetBit(mask, bit + 1)) {
+					if (bit != previous + 1) {
+						run += 2;
+						runs[run] = bit;
+					}
+					runs[run + 1]++;
+					previous = bit;
+				}
+			}
+		}
+
+		void apply(byte[] target) {
+			switch (encoding) {
+			case INDICES:
+				for (int i = 0; i < indices.length; i++) {
+					target[indices[i]] = values[i];
+				}
+				break;
+			case RUNS:
+				int offset = 0;
+				for (int i = 0; i < runs.length; i += 2) {
+					System.arraycopy(values, offset, target, runs[i], runs[i + 1]);
+					offset += runs[i + 1];
+				}
+				break;
+			case BITMAP:
+				BitmaskKernel.scatter(values, mask, target);
+				break;
+			case FULL:
+				System.arraycopy(values, 0, target, 0, values.length);
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.cusackj.mcad.bench;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import com.cusackj.mcad.delta.ChunkDelta;
+import com.cusackj.mcad.delta.RegionDelta;
+import com.cusackj.mcad.model.Region;
+
+/** Measures how diffing a region scales with the number of threads.
+ *
+ * Usage: ParallelDiffBenchmark source.mca destination.mca [maxThreads] [iterations] */
+public class ParallelDiffBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.out.println("Paths to a source and destination .mca file required!");
+			return;
+		}
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+		int iterations = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		PrintStream out = System.out;
+		silence();
+		Region src = new Region(new File(args[0]));
+		Region dst = new Region(new File(args[1]));
+
+		// Warm up, and keep the sequential result to check the parallel ones against
+		RegionDelta expected = new RegionDelta(src, dst);
+		long sequential = time(src, dst, 1, iterations, expected);
+		System.setOut(out);
+
+		System.out.println("*********************************************************************************");
+		System.out.println("Diffed " + expected.getChunkDeltas().size() + " chunks, median of " + iterations + " runs");
+		System.out.println("sequential: " + sequential + "ms");
+		for (int threads = 2; threads <= maxThreads; threads *= 2) {
+			silence();
+			long parallel = time(src, dst, threads, iterations, expected);
+			System.setOut(out);
+			System.out.println(threads + " threads: " + parallel + "ms (" + String.format("%.2f", sequential / (double) parallel) + "x)");
+		}
+		System.out.println("*********************************************************************************");
+	}
+
+	private static long time(Region src, Region dst, int threads, int iterations, RegionDelta expected) {
+		long[] times = new long[iterations];
+		for (int i = 0; i < iterations; i++) {
+			ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+			long start = System.nanoTime();
+			RegionDelta delta = new RegionDelta(src, dst, pool);
+			times[i] = (System.nanoTime() - start) / 1000000;
+			if (pool != null) {
+				pool.shutdown();
+			}
+			if (!isIdentical(expected, delta)) {
+				throw new IllegalStateException("Delta created with " + threads + " threads differs from the sequential delta");
+			}
+		}
+		Arrays.sort(times);
+		return times[iterations / 2];
+	}
+
+	private static boolean isIdentical(RegionDelta a, RegionDelta b) {
+		if (!Arrays.equals(a.getChangedChunkBits(), b.getChangedChunkBits())) {
+			return false;
+		}
+		List<ChunkDelta> aDeltas = a.getChunkDeltas();
+		List<ChunkDelta> bDeltas = b.getChunkDeltas();
+		if (aDeltas.size() != bDeltas.size()) {
+			return false;
+		}
+		for (int i = 0; i < aDeltas.size(); i++) {
+			if (!Arrays.equals(aDeltas.get(i).getBytes(), bDeltas.get(i).getBytes())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/** The delta classes report progress per chunk, which would otherwise dominate the timings. */
+	private static void silence() {
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+}
@@ -0,0 +1,249 @@
+package com.cusackj.mcad.delta;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** The bitmask diff and patch loops shared by the section, heightmap and region deltas. Nothing is allocated apart from the
+ * array views in diff.
+ *
+ * A mask has one bit per array element, element i being bit (i % 8) of byte (i / 8). Arrays are compared a word of 8 elements
+ * at a time, so unchanged words cost a single test, and set bits are walked 64 at a time with Long.numberOfTrailingZeros
+ * rather than testing every bit. */
+public final class BitmaskKernel {
+
+	private BitmaskKernel() {
+	}
+
+	/** Sets the bit of every element that differs between source and dest. The mask must start cleared.
+	 *
+	 * @return The number of bits set. */
+	public static int diff(byte[] source, byte[] dest, byte[] mask) {
+		// Views for reading 8 elements as one long. They do not copy the arrays, and are usually optimised away entirely.
+		ByteBuffer sourceWords = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer destWords = ByteBuffer.wrap(dest).order(ByteOrder.LITTLE_ENDIAN);
+
+		int length = source.length;
+		int count = 0;
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			// Most words of a changed section are unchanged, and cost a single compare
+			if (sourceWords.getLong(i) == destWords.getLong(i)) {
+				continue;
+			}
+			int bits = 0;
+			for (int j = 0; j < 8; j++) {
+				if (source[i + j] != dest[i + j]) {
+					bits |= 1 << j;
+				}
+			}
+			mask[i >> 3] = (byte) bits;
+			count += Integer.bitCount(bits);
+		}
+		for (; i < length; i++) {
+			if (source[i] != dest[i]) {
+				mask[i >> 3] |= 1 << (i & 7);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** As diff, for int arrays such as the heightmap. */
+	public static int diff(int[] source, int[] dest, byte[] mask) {
+		int length = source.length;
+		int count = 0;
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			if (((source[i] ^ dest[i]) | (source[i + 1] ^ dest[i + 1]) | (source[i + 2] ^ dest[i + 2]) | (source[i + 3] ^ dest[i + 3])
+					| (source[i + 4] ^ dest[i + 4]) | (source[i + 5] ^ dest[i + 5]) | (source[i + 6] ^ dest[i + 6]) | (source[i + 7] ^ dest[i + 7])) == 0) {
+				continue;
+			}
+			int bits = 0;
+			for (int j = 0; j < 8; j++) {
+				if (source[i + j] != dest[i + j]) {
+					bits |= 1 << j;
+				}
+			}
+			mask[i >> 3] = (byte) bits;
+			count += Integer.bitCount(bits);
+		}
+		for (; i < length; i++) {
+			if (source[i] != dest[i]) {
+				mask[i >> 3] |= 1 << (i & 7);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** As diff, for packed 4 bit arrays such as Data and the light arrays. Nibble n is the low half of byte n / 2 when n is
+	 * even and the high half when it is odd, and the mask has one bit per nibble. */
+	public static int diffNibbles(byte[] source, byte[] dest, byte[] mask) {
+		ByteBuffer sourceWords = ByteBuffer.wrap(source).order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer destWords = ByteBuffer.wrap(dest).order(ByteOrder.LITTLE_ENDIAN);
+
+		int length = source.length;
+		int count = 0;
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			long changed = sourceWords.getLong(i) ^ destWords.getLong(i);
+			if (changed == 0) {
+				continue;
+			}
+			// 8 bytes are 16 nibbles, one bit each across 2 mask bytes
+			int bits = 0;
+			for (int j = 0; j < 16; j++) {
+				if ((changed >>> (j << 2) & 0xF) != 0) {
+					bits |= 1 << j;
+				}
+			}
+			mask[i >> 2] = (byte) bits;
+			mask[(i >> 2) + 1] = (byte) (bits >>> 8);
+			count += Integer.bitCount(bits);
+		}
+		for (int n = i << 1; n < length << 1; n++) {
+			if (getNibble(source, n) != getNibble(dest, n)) {
+				mask[n >> 3] |= 1 << (n & 7);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** As gather, for packed 4 bit arrays. The values are packed the same way, so values needs (count + 1) / 2 bytes. */
+	public static void gatherNibbles(byte[] dest, byte[] mask, byte[] values) {
+		int v = 0;
+		for (int w = 0; w < mask.length; w += 8) {
+			long bits = readWord(mask, w);
+			while (bits != 0) {
+				setNibble(values, v++, getNibble(dest, (w << 3) + Long.numberOfTrailingZeros(bits)));
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/** As scatter, for packed 4 bit arrays. */
+	public static void scatterNibbles(byte[] values, byte[] mask, byte[] target) {
+		int v = 0;
+		int count = values.length << 1;
+		for (int w = 0; w < mask.length && v < count; w += 8) {
+			long bits = readWord(mask, w);
+			while (bits != 0 && v < count) {
+				setNibble(target, (w << 3) + Long.numberOfTrailingZeros(bits), getNibble(values, v++));
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	public static int getNibble(byte[] array, int n) {
+		return array[n >> 1] >> ((n & 1) << 2) & 0xF;
+	}
+
+	public static void setNibble(byte[] array, int n, int value) {
+		int shift = (n & 1) << 2;
+		array[n >> 1] = (byte) (array[n >> 1] & ~(0xF << shift) | (value & 0xF) << shift);
+	}
+
+	/** Copies the element of dest at every set bit into values, in order. */
+	public static void gather(byte[] dest, byte[] mask, byte[] values) {
+		int v = 0;
+		for (int w = 0; w < mask.length && v < values.length; w += 8) {
+			long bits = readWord(mask, w);
+			while (bits != 0) {
+				values[v++] = dest[(w << 3) + Long.numberOfTrailingZeros(bits)];
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/** As gather, for int arrays. */
+	public static void gather(int[] dest, byte[] mask, int[] values) {
+		int v = 0;
+		for (int w = 0; w < mask.length && v < values.length; w += 8) {
+			long bits = readWord(mask, w);
+			while (bits != 0) {
+				values[v++] = dest[(w << 3) + Long.numberOfTrailingZeros(bits)];
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/** Writes values, in order, to the element of target at every set bit. Stops when values runs out. */
+	public static void scatter(byte[] values, byte[] mask, byte[] target) {
+		int v = 0;
+		for (int w = 0; w < mask.length && v < values.length; w += 8) {
+			long bits = readWord(mask, w);
+			while (bits != 0 && v < values.length) {
+				target[(w << 3) + Long.numberOfTrailingZeros(bits)] = values[v++];
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/** As scatter, for int arrays. */
+	public static void scatter(int[] values, byte[] mask, int[] target) {
+		int v = 0;
+		for (int w = 0; w < mask.length && v < values.length; w += 8) {
+			long bits = readWord(mask, w);
+			while (bits != 0 && v < values.length) {
+				target[(w << 3) + Long.numberOfTrailingZeros(bits)] = values[v++];
+				bits &= bits - 1;
+			}
+		}
+	}
+
+	/** @return The first set bit at or after fromBit, or -1 if there is none. */
+	public static int nextSetBit(byte[] mask, int fromBit) {
+		int w = (fromBit >> 3) & ~7;
+		if (w >= mask.length) {
+			return -1;
+		}
+		long bits = readWord(mask, w) & (-1L << (fromBit - (w << 3)));
+		while (bits == 0) {
+			w += 8;
+			if (w >= mask.length) {
+				return -1;
+			}
+			bits = readWord(mask, w);
+		}
+		return (w << 3) + Long.numberOfTrailingZeros(bits);
+	}
+
+	public static boolean isBitSet(byte[] mask, int bit) {
+		return (mask[bit >> 3] & (1 << (bit & 7))) != 0;
+	}
+
+	public static int countBits(byte[] mask) {
+		int count = 0;
+		for (int w = 0; w < mask.length; w += 8) {
+			count += Long.bitCount(readWord(mask, w));
+		}
+		return count;
+	}
+
+	/** @return The number of runs of consecutive set bits. */
+	public static int countRuns(byte[] mask) {
+		int runs = 0;
+		long carry = 0;
+		for (int w = 0; w < mask.length; w += 8) {
+			long bits = readWord(mask, w);
+			// A run starts at every set bit whose lower neighbour is clear
+			runs += Long.bitCount(bits & ~((bits << 1) | carry));
+			carry = bits >>> 63;
+		}
+		return runs;
+	}
+
+	/** Reads 8 mask bytes starting at offset as one little endian word, so bit n of the word is bit n of the mask. */
+	private static long readWord(byte[] mask, int offset) {
+		if (offset + 8 <= mask.length) {
+			return (mask[offset] & 0xFFL) | (mask[offset + 1] & 0xFFL) << 8 | (mask[offset + 2] & 0xFFL) << 16 | (mask[offset + 3] & 0xFFL) << 24
+					| (mask[offset + 4] & 0xFFL) << 32 | (mask[offset + 5] & 0xFFL) << 40 | (mask[offset + 6] & 0xFFL) << 48 | (mask[offset + 7] & 0xFFL) << 56;
+		}
+		long word = 0;
+		for (int i = offset; i < mask.length; i++) {
+			word |= (mask[i] & 0xFFL) << ((i - offset) << 3);
+		}
+		return word;
+	}
+}
@@ -0,0 +1,144 @@
+package com.cusackj.mcad.delta;
+
+/** Reads, writes and diffs the packed block state arrays of 1.13+ sections without unpacking them.
+ *
+ * A section has 4096 entries, each an index into the section's palette, packed into longs with the same number of bits for
+ * every entry. From 1.16 entries are padded, so none spans two longs and the top bits of each long are unused. Before that
+ * entries are spanning, packed end to end across long boundaries. Entry i is always the lowest bits first. */
+public final class BlockStatesKernel {
+	public static final int ENTRIES = 4096;
+	/** The fewest bits an entry is packed with, however small the palette is. */
+	public static final int MIN_BITS = 4;
+
+	private BlockStatesKernel() {
+	}
+
+	/** @return The number of bits an entry is packed with for a palette of this size. */
+	public static int getBits(int paletteSize) {
+		return Math.max(MIN_BITS, 32 - Integer.numberOfLeadingZeros(Math.max(paletteSize - 1, 1)));
+	}
+
+	/** @return The number of longs the entries take. */
+	public static int getLength(int bits, boolean spanning) {
+		if (spanning) {
+			return (ENTRIES * bits + 63) / 64;
+		}
+		int perLong = 64 / bits;
+		return (ENTRIES + perLong - 1) / perLong;
+	}
+
+	public static int get(long[] states, int bits, boolean spanning, int index) {
+		long mask = (1L << bits) - 1;
+		if (!spanning) {
+			int perLong = 64 / bits;
+			return (int) (states[index / perLong] >>> (index % perLong * bits) & mask);
+		}
+		long bit = (long) index * bits;
+		int word = (int) (bit >>> 6);
+		int offset = (int) (bit & 63);
+		long value = states[word] >>> offset;
+		if (offset + bits > 64) {
+			value |= states[word + 1] << (64 - offset);
+		}
+		return (int) (value & mask);
+	}
+
+	public static void set(long[] states, int bits, boolean spanning, int index, int value) {
+		long mask = (1L << bits) - 1;
+		if (!spanning) {
+			int perLong = 64 / bits;
+			int shift = index % perLong * bits;
+			int word = index / perLong;
+			states[word] = states[word] & ~(mask << shift) | (value & mask) << shift;
+			return;
+		}
+		long bit = (long) index * bits;
+		int word = (int) (bit >>> 6);
+		int offset = (int) (bit & 63);
+		states[word] = states[word] & ~(mask << offset) | (value & mask) << offset;
+		if (offset + bits > 64) {
+			int high = offset + bits - 64;
+			states[word + 1] = states[word + 1] & ~((1L << high) - 1) | (value & mask) >>> (bits - high);
+		}
+	}
+
+	/** Sets the bit of every entry of dest that differs from the remapped entry of source. The mask needs a bit for each entry
+	 * and must start cleared.
+	 *
+	 * If the palette indices are unchanged and both arrays are packed the same way, the arrays are compared a long at a time
+	 * and only the entries of changed longs are looked at.
+	 *
+	 * @param remap
+	 *            The destination palette index of each source palette index, -1 where it is not in the destination palette,
+	 *            or null if the indices are unchanged.
+	 * @return The number of bits set. */
+	public static int diff(long[] source, int sourceBits, boolean sourceSpanning, int[] remap, long[] dest, int destBits, boolean destSpanning, byte[] mask) {
+		if (remap == null && sourceBits == destBits && sourceSpanning == destSpanning) {
+			return diffWords(source, dest, destBits, destSpanning, mask);
+		}
+		int count = 0;
+		for (int i = 0; i < ENTRIES; i++) {
+			int value = get(source, sourceBits, sourceSpanning, i);
+			if (remap != null) {
+				value = value < remap.length ? remap[value] : -1;
+			}
+			if (get(dest, destBits, destSpanning, i) != value) {
+				mask[i >> 3] |= 1 << (i & 7);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static int diffWords(long[] source, long[] dest, int bits, boolean spanning, byte[] mask) {
+		long entryMask = (1L << bits) - 1;
+		int perLong = 64 / bits;
+		int count = 0;
+		for (int w = 0; w < dest.length; w++) {
+			long changed = source[w] ^ dest[w];
+			if (changed == 0) {
+				continue;
+			}
+			if (!spanning) {
+				for (int slot = 0; slot < perLong; slot++) {
+					int i = w * perLong + slot;
+					if (i < ENTRIES && (changed >>> (slot * bits) & entryMask) != 0) {
+						mask[i >> 3] |= 1 << (i & 7);
+						count++;
+					}
+				}
+				continue;
+			}
+			// Every entry with a bit in this long, the first and last may span into the neighbouring longs
+			int last = Math.min(ENTRIES - 1, (w * 64 + 63) / bits);
+			for (int i = w * 64 / bits; i <= last; i++) {
+				if (!BitmaskKernel.isBitSet(mask, i) && get(source, bits, true, i) != get(dest, bits, true, i)) {
+					mask[i >> 3] |= 1 << (i & 7);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/** Packs the entries of source into dest, each mapped to its destination palette index. Entries whose block is not in the
+	 * destination palette are left as 0.
+	 *
+	 * @param remap
+	 *            As for diff. */
+	public static void remap(long[] source, int sourceBits, boolean sourceSpanning, int[] remap, long[] dest, int destBits, boolean destSpanning) {
+		if (remap == null && sourceBits == destBits && sourceSpanning == destSpanning) {
+			System.arraycopy(source, 0, dest, 0, dest.length);
+			return;
+		}
+		for (int i = 0; i < ENTRIES; i++) {
+			int value = get(source, sourceBits, sourceSpanning, i);
+			if (remap != null) {
+				value = value < remap.length ? remap[value] : -1;
+			}
+			if (value > 0) {
+				set(dest, destBits, destSpanning, i, value);
+			}
+		}
+	}
+}
@@ -1,14 +1,14 @@
 package com.cusackj.mcad.delta;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.jnbt.ByteArrayTag;
 import org.jnbt.ByteTag;
@@ -17,13 +17,47 @@ import org.jnbt.IntArrayTag;
 import org.jnbt.IntTag;
 import org.jnbt.ListTag;
 import org.jnbt.LongTag;
-import org.jnbt.NBTOutputStream;
 import org.jnbt.NBTUtils;
 import org.jnbt.Tag;
 
 import com.cusackj.mcad.model.Chunk;
+import com.cusackj.utils.HashUtils;
+import com.cusackj.utils.VarIntUtils;
 
 public class ChunkDelta {
+	// Bits of mFieldMask, one for each field a record can leave out when it is unchanged
+	private static final int FIELD_LIGHT_POPULATED = 1;
+	private static final int FIELD_TERRAIN_POPULATED = 1 << 1;
+	private static final int FIELD_V = 1 << 2;
+	private static final int FIELD_X_POS = 1 << 3;
+	private static final int FIELD_Z_POS = 1 << 4;
+	private static final int FIELD_INHABITED_TIME = 1 << 5;
+	private static final int FIELD_LAST_UPDATE = 1 << 6;
+	private static final int FIELD_BIOMES = 1 << 7;
+	private static final int FIELD_HEIGHT_MAP = 1 << 8;
+	/** InhabitedTime and LastUpdate are written as values rather than as differences from the source. */
+	private static final int FIELD_ABSOLUTE_TIMES = 1 << 9;
+	private static final int FIELD_ALL = (1 << 9) - 1;
+	/** Tags of the chunk and its level that have no field of their own, written as TagDeltas. */
+	private static final int FIELD_OTHER_TAGS = 1 << 10;
+
+	/** The tags with their own encoding, every other tag is carried by the TagDeltas. */
+	private static final Set<String> ROOT_TAGS = new HashSet<>(Arrays.asList("Level"));
+	private static final Set<String> LEVEL_TAGS = new HashSet<>(Arrays.asList("LightPopulated", "TerrainPopulated", "V", "xPos", "zPos", "InhabitedTime",
+			"LastUpdate", "Biomes", "HeightMap", "Entities", "TileEntities", "TileTicks", "Sections"));
+
+	/** Sections in a chunk, Y 0 to 15. */
+	private static final int SECTIONS = 16;
+
+	// From VERSION_RECORD_KIND a record starts with one of these
+	private static final byte KIND_DELTA = 0;
+	/** Only the timestamp of the chunk changed, the record is the new timestamp. */
+	private static final byte KIND_TOUCH = 1;
+	/** A new chunk, the record is its timestamp and its stored payload copied from the region file. */
+	private static final byte KIND_RAW = 2;
+	/** Several deltas of the same chunk applied one after another, the record is the timestamp, a count, then each delta
+	 * record with its length. See RegionDelta.squash. */
+	private static final byte KIND_CHAIN = 3;
 
 	private class HeightMapDelta {
 		private byte[] changeArray = new byte[128];
@@ -43,14 +77,19 @@ public class ChunkDelta {
 	private LongTag mInhabitedTime;
 
 	private LongTag mLastUpdate;
+	// Differences from the source InhabitedTime and LastUpdate, written as varints
+	private long mInhabitedTimeDelta;
+	private long mLastUpdateDelta;
+	// The fields this delta sets, FIELD_ bits
+	private int mFieldMask;
 	// VARIABLE * 2 bytes
 	private ListTag mEntities;
 	private ListTag mTileEntities;
 	private ListTag mTileTicks;
 
-	private byte[] mEntitiesBytes;
-	private byte[] mTileEntitiesBytes;
-	private byte[] mTileTicksBytes;
+	private ListDelta mEntitiesDelta;
+	private ListDelta mTileEntitiesDelta;
+	private ListDelta mTileTicksDelta;
 
 	// 256 bytes
 	private ByteArrayTag mBiomes;
@@ -63,8 +102,25 @@ public class ChunkDelta {
 	// VARIABLE
 	private ArrayList<SectionDelta> mSectionDeltas = new ArrayList<>();
 
+	private TagDelta mRootTagsDelta;
+	private TagDelta mLevelTagsDelta;
+
 	private boolean isEmpty = false;
 
+	private boolean mTouch = false;
+	/** The timestamp of the destination chunk, as it is stored in the region header. */
+	private int mTimestamp;
+	/** Always set except for delta records read from before VERSION_CHUNK_TIMESTAMP. */
+	private boolean mHasTimestamp = false;
+	/** The deltas of a chain, in the order they are applied. */
+	private List<ChunkDelta> mChain;
+	/** The stored payload of a raw chunk, the compression type byte followed by the compressed NBT. */
+	private byte[] mPayload;
+
+	// 8 bytes, HashUtils.hashTag of the destination chunk, 0 if it is not known
+	private long mDestHash;
+	private boolean mHasDestHash = false;
+
 	/** Represents an empty chunk, i.e. a chunk to be deleted by the delta analyser.
 	 * 
 	 * @param chunkBytes */
@@ -72,12 +128,96 @@ public class ChunkDelta {
 		isEmpty = true;
 	}
 
-	/** Constructs a delta from no source, i.e. contains information for an entire chunk.
+	/** Represents a chunk that was saved again without changing, so only its timestamp needs to be set. Nothing is decoded to
+	 * create one, see RegionPreScan.
+	 * 
+	 * @param timestamp
+	 *            The timestamp of the destination chunk. */
+	public static ChunkDelta createTouch(long timestamp) {
+		ChunkDelta delta = new ChunkDelta();
+		delta.isEmpty = false;
+		delta.mTouch = true;
+		delta.mTimestamp = (int) timestamp;
+		delta.mHasTimestamp = true;
+		return delta;
+	}
+
+	/** Represents a new chunk by its stored payload, which is copied into the region file as it is when the delta is
+	 * applied. Nothing is decoded to create or apply one, so there is nothing to verify.
+	 * 
+	 * @param payload
+	 *            The compression type byte followed by the compressed NBT, see Region.getRawChunk.
+	 * @param timestamp
+	 *            The timestamp of the destination chunk. */
+	public static ChunkDelta createRaw(byte[] payload, long timestamp) {
+		ChunkDelta delta = new ChunkDelta();
+		delta.isEmpty = false;
+		delta.mPayload = payload;
+		delta.mTimestamp = (int) timestamp;
+		delta.mHasTimestamp = true;
+		return delta;
+	}
+
+	/** Represents several deltas of the same chunk, which are applied one after another. The chunk ends up with the timestamp
+	 * of the last one.
+	 * 
+	 * @param deltas
+	 *            Deltas or chains of deltas, in the order they are applied. Each must have a timestamp. */
+	public static ChunkDelta createChain(List<ChunkDelta> deltas) {
+		ChunkDelta chain = new ChunkDelta();
+		chain.isEmpty = false;
+		chain.mChain = new ArrayList<>();
+		for (ChunkDelta delta : deltas) {
+			if (delta.isEmpty || delta.mTouch || delta.mPayload != null) {
+				throw new IllegalArgumentException("Only deltas can be chained");
+			}
+			if (delta.mChain != null) {
+				chain.mChain.addAll(delta.mChain);
+			} else {
+				chain.mChain.add(delta);
+			}
+		}
+		ChunkDelta last = chain.mChain.get(chain.mChain.size() - 1);
+		chain.mTimestamp = last.mTimestamp;
+		chain.mHasTimestamp = last.mHasTimestamp;
+		return chain;
+	}
+
+	/** @return A copy of this record that sets the chunk to a different timestamp. */
+	public ChunkDelta withTimestamp(long timestamp) {
+		if (isEmpty) {
+			throw new IllegalStateException("A removed chunk has no timestamp");
+		}
+		if (mTouch) {
+			return createTouch(timestamp);
+		}
+		if (mPayload != null) {
+			return createRaw(mPayload, timestamp);
+		}
+		ChunkDelta copy = mChain != null ? createChain(mChain) : new ChunkDelta(getBytes());
+		copy.mTimestamp = (int) timestamp;
+		copy.mHasTimestamp = true;
+		return copy;
+	}
+
+	/** Constructs a delta from no source, i.e. contains information for an entire chunk. Verified against an empty chunk.
 	 * 
 	 * @param source */
 	public ChunkDelta(Chunk dest) {
+		this(dest, VerificationPolicy.FULL);
+	}
+
+	/** Constructs a delta from no source, i.e. contains information for an entire chunk.
+	 * 
+	 * @param policy
+	 *            Decides whether the delta is applied to an empty chunk and compared with the destination. */
+	public ChunkDelta(Chunk dest, VerificationPolicy policy) {
 		CompoundTag tDest = (CompoundTag) dest.getTag().getValue().get("Level");
 		setDestinationTags(dest);
+		mDestHash = HashUtils.hashTag(dest.getTag());
+		mHasDestHash = true;
+		mTimestamp = (int) dest.getLastModified();
+		mHasTimestamp = true;
 
 		mHeightMapDelta = new HeightMapDelta();
 		for (int i = 0; i < mHeightMapDelta.changeArray.length; i++) {
@@ -87,59 +227,49 @@ public class ChunkDelta {
 		for (int i = 0; i < mHeightMapDelta.changeValues.length; i++) {
 			mHeightMapDelta.changeValues[i] = mHeightMap.getValue()[i];
 		}
+		calculateOtherTags(null, dest.getTag());
+		calculateFieldMask(null);
 		List<Tag> destSections = ((ListTag) tDest.getValue().get("Sections")).getValue();
 		for (Tag destTag : destSections) {
 			CompoundTag destSection = (CompoundTag) destTag;
-			mSectionDeltas.add(new SectionDelta(destSection));
+			mSectionDeltas.add(new SectionDelta(destSection, policy == VerificationPolicy.FULL));
 		}
 		// printSectionDeltaReport(mSectionDeltas.size(), 0, mSectionDeltas.size(), 0);
 
-		try {
-			mEntitiesBytes = tagToBytes(mEntities);
-			mTileEntitiesBytes = tagToBytes(mTileEntities);
-			if (mTileTicks != null) {
-				mTileTicksBytes = tagToBytes(mTileTicks);
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		mEntitiesDelta = new ListDelta(mEntities);
+		mTileEntitiesDelta = new ListDelta(mTileEntities);
+		mTileTicksDelta = new ListDelta(mTileTicks);
 		// VERIFY DELTA INTEGRITY
-		CompoundTag sourceTag = NBTUtils.createEmptyChunk(getX(), getZ());
-
-		byte[] sourceBytes = NBTUtils.writeTagToBytes(sourceTag);
-		byte[] destBytes = NBTUtils.writeTagToBytes(dest.getTag());
-
-		CompoundTag sourceMutate = (CompoundTag) NBTUtils.bytesToTag(sourceBytes);
-		Chunk sourceChunkMutate = new Chunk(sourceMutate, getX(), getZ(), dest.getLastModified());
-		applyDelta(sourceChunkMutate);
-
-		byte[] sourceMutateBytes = NBTUtils.writeTagToBytes(sourceChunkMutate.getTag());
-		System.out.println("$$$$$$$$$");
-		if (destBytes.length != sourceMutateBytes.length) {
-			System.out.println("Chunk delta is invalid in length" + " " + getX() + ", " + getZ());
-		} else {
-			System.out.println("Chunk delta is valid in length");
+		if (policy.shouldVerify(getX(), getZ())) {
+			verifyAgainst(NBTUtils.createEmptyChunk(getX(), getZ()), dest);
 		}
 
-		if (Arrays.equals(destBytes, sourceMutateBytes)) {
-			System.out.println("Chunk delta is identical");
-		} else {
-			System.out.println("Chunk delta bytes are different! :(");
-		}
-		System.out.println("$$$$$$$$$");
+		releaseDestinationTags();
 	}
 
-	/** Represents the difference between 2 chunks
+	/** Represents the difference between 2 chunks, verified by applying it to a copy of the source.
 	 * 
 	 * @param chunk1
 	 *            The source chunk
 	 * @param chunk2
 	 *            The destination chunk */
 	public ChunkDelta(Chunk source, Chunk dest) {
+		this(source, dest, VerificationPolicy.FULL);
+	}
+
+	/** Represents the difference between 2 chunks
+	 * 
+	 * @param policy
+	 *            Decides whether the delta is applied to a copy of the source and compared with the destination. */
+	public ChunkDelta(Chunk source, Chunk dest, VerificationPolicy policy) {
 		CompoundTag tSource = (CompoundTag) source.getTag().getValue().get("Level");
 		CompoundTag tDest = (CompoundTag) dest.getTag().getValue().get("Level");
 
 		setDestinationTags(dest);
+		mDestHash = HashUtils.hashTag(dest.getTag());
+		mHasDestHash = true;
+		mTimestamp = (int) dest.getLastModified();
+		mHasTimestamp = true;
 
 		// Remove unchanged heightmap, section and block data
 		IntArrayTag sourceHeightMap = (IntArrayTag) tSource.getValue().get("HeightMap");
@@ -152,20 +282,26 @@ public class ChunkDelta {
 		List<Tag> sourceSections = ((ListTag) tSource.getValue().get("Sections")).getValue();
 
 		mHeightMapDelta = calculateHeightMapDelta(sourceHeights, destHeights);
-		mSectionDeltas = calculateSectionDeltas(sourceSections, destSections);
+		calculateOtherTags(source.getTag(), dest.getTag());
+		calculateFieldMask(tSource);
+		mSectionDeltas = calculateSectionDeltas(sourceSections, destSections, policy == VerificationPolicy.FULL);
 
-		try {
-			mEntitiesBytes = tagToBytes(mEntities);
-			mTileEntitiesBytes = tagToBytes(mTileEntities);
-			if (mTileTicks != null) {
-				mTileTicksBytes = tagToBytes(mTileTicks);
-			}
+		// Only the entries that were added or changed are kept
+		mEntitiesDelta = new ListDelta((ListTag) tSource.getValue().get("Entities"), mEntities, ListDelta.ENTITY_KEY);
+		mTileEntitiesDelta = new ListDelta((ListTag) tSource.getValue().get("TileEntities"), mTileEntities, ListDelta.POSITION_KEY);
+		mTileTicksDelta = new ListDelta((ListTag) tSource.getValue().get("TileTicks"), mTileTicks, ListDelta.POSITION_KEY);
 
-		} catch (IOException e) {
-			e.printStackTrace();
+		if (policy.shouldVerify(getX(), getZ())) {
+			verifyAgainst(source.getTag(), dest);
 		}
 
-		byte[] sourceBytes = NBTUtils.writeTagToBytes(source.getTag());
+		releaseDestinationTags();
+
+	}
+
+	/** Applies this delta to a copy of the source, and reports whether the result matches the destination byte for byte. */
+	private void verifyAgainst(CompoundTag sourceTag, Chunk dest) {
+		byte[] sourceBytes = NBTUtils.writeTagToBytes(sourceTag);
 		byte[] destBytes = NBTUtils.writeTagToBytes(dest.getTag());
 
 		CompoundTag sourceMutate = (CompoundTag) NBTUtils.bytesToTag(sourceBytes);
@@ -175,7 +311,7 @@ public class ChunkDelta {
 		byte[] sourceMutateBytes = NBTUtils.writeTagToBytes(sourceChunkMutate.getTag());
 		System.out.println("$$$$$$$$$");
 		if (destBytes.length != sourceMutateBytes.length) {
-			System.out.println("Chunk delta is invalid in length");
+			System.out.println("Chunk delta is invalid in length" + " " + getX() + ", " + getZ());
 		} else {
 			System.out.println("Chunk delta is valid in length");
 		}
@@ -186,161 +322,283 @@ public class ChunkDelta {
 			System.out.println("Chunk delta bytes are different! :(");
 		}
 		System.out.println("$$$$$$$$$");
+	}
 
+	/** Checks a chunk this delta has been applied to against the hash of the destination chunk. The order of compound tag
+	 * entries is not part of the hash, so this only fails if the contents differ.
+	 * 
+	 * @return true if the chunk matches, or if the delta was read from a version without destination hashes. */
+	public boolean verify(Chunk c) {
+		if (mChain != null) {
+			return mChain.get(mChain.size() - 1).verify(c);
+		}
+		return !mHasDestHash || HashUtils.hashTag(c.getTag()) == mDestHash;
 	}
 
 	public ChunkDelta(byte[] bytes) {
+		this(bytes, DeltaFormat.VERSION);
+	}
+
+	/** Reads a chunk delta record.
+	 * 
+	 * @param version
+	 *            The version of the .mcad it was read from, see DeltaFormat. */
+	public ChunkDelta(byte[] bytes, int version) {
 		if (bytes.length == 0) {
 			isEmpty = true;
 			return;
 		}
 		ByteBuffer bb = ByteBuffer.wrap(bytes);
 
-		mLightPopulated = new ByteTag("LightPopulated", bb.get());
-		mTerrainPopulated = new ByteTag("TerrainPopulated", bb.get());
-		mV = new ByteTag("V", bb.get());
+		if (version >= DeltaFormat.VERSION_RECORD_KIND) {
+			byte kind = bb.get();
+			if (kind == KIND_TOUCH) {
+				mTouch = true;
+				mTimestamp = bb.getInt();
+				mHasTimestamp = true;
+				return;
+			}
+			if (kind == KIND_RAW) {
+				mTimestamp = bb.getInt();
+				mHasTimestamp = true;
+				mPayload = Arrays.copyOfRange(bytes, bb.position(), bytes.length);
+				return;
+			}
+			if (kind == KIND_CHAIN) {
+				mTimestamp = bb.getInt();
+				mHasTimestamp = true;
+				mChain = new ArrayList<>();
+				int count = bb.getInt();
+				for (int i = 0; i < count; i++) {
+					byte[] record = new byte[bb.getInt()];
+					bb.get(record);
+					mChain.add(new ChunkDelta(record, version));
+				}
+				return;
+			}
+			if (version >= DeltaFormat.VERSION_CHUNK_TIMESTAMP) {
+				mTimestamp = bb.getInt();
+				mHasTimestamp = true;
+			}
+		}
 
-		mXPos = new IntTag("xPos", bb.getInt());
-		mZPos = new IntTag("zPos", bb.getInt());
+		if (version >= DeltaFormat.VERSION_DEST_HASH) {
+			mDestHash = bb.getLong();
+			mHasDestHash = mDestHash != 0;
+		}
 
-		mInhabitedTime = new LongTag("InhabitedTime", bb.getLong());
-		mLastUpdate = new LongTag("LastUpdate", bb.getLong());
+		if (version >= DeltaFormat.VERSION_FIELD_MASK) {
+			readFields(bb);
+		} else {
+			// Every field was written, and the times as values
+			mFieldMask = FIELD_ALL | FIELD_ABSOLUTE_TIMES;
+			mLightPopulated = new ByteTag("LightPopulated", bb.get());
+			mTerrainPopulated = new ByteTag("TerrainPopulated", bb.get());
+			mV = new ByteTag("V", bb.get());
 
-		byte[] biomeBytes = new byte[256];
-		bb.get(biomeBytes);
-		mBiomes = new ByteArrayTag("Biomes", biomeBytes);
+			mXPos = new IntTag("xPos", bb.getInt());
+			mZPos = new IntTag("zPos", bb.getInt());
 
-		// ENTITY
-		int entityLength = bb.getInt();
-		mEntitiesBytes = new byte[entityLength];
-		bb.get(mEntitiesBytes);
+			mInhabitedTime = new LongTag("InhabitedTime", bb.getLong());
+			mLastUpdate = new LongTag("LastUpdate", bb.getLong());
 
-		// TILE
-		int tileLength = bb.getInt();
-		mTileEntitiesBytes = new byte[tileLength];
-		bb.get(mTileEntitiesBytes);
+			byte[] biomeBytes = new byte[256];
+			bb.get(biomeBytes);
+			mBiomes = new ByteArrayTag("Biomes", biomeBytes);
+		}
 
-		int tileTicksLength = bb.getInt();
-		mTileTicksBytes = new byte[tileTicksLength];
-		bb.get(mTileTicksBytes);
+		if (version >= DeltaFormat.VERSION_LIST_DIFF) {
+			mEntitiesDelta = new ListDelta(bb);
+			mTileEntitiesDelta = new ListDelta(bb);
+			mTileTicksDelta = new ListDelta(bb);
+		} else {
+			mEntitiesDelta = ListDelta.readLegacy(bb);
+			mTileEntitiesDelta = ListDelta.readLegacy(bb);
+			mTileTicksDelta = ListDelta.readLegacy(bb);
+		}
 
 		// HMDELTA
-		int hmLength = bb.getInt() - 128;
 		mHeightMapDelta = new HeightMapDelta();
-		bb.get(mHeightMapDelta.changeArray);
-		mHeightMapDelta.changeValues = new int[hmLength / 4];
-		for (int i = 0; i < mHeightMapDelta.changeValues.length; i++) {
-			mHeightMapDelta.changeValues[i] = bb.getInt();
+		if (hasField(FIELD_HEIGHT_MAP)) {
+			int hmLength = bb.getInt() - 128;
+			bb.get(mHeightMapDelta.changeArray);
+			mHeightMapDelta.changeValues = new int[hmLength / 4];
+			for (int i = 0; i < mHeightMapDelta.changeValues.length; i++) {
+				mHeightMapDelta.changeValues[i] = bb.getInt();
+			}
+		} else {
+			mHeightMapDelta.changeValues = new int[0];
+		}
+
+		if (hasField(FIELD_OTHER_TAGS)) {
+			mRootTagsDelta = new TagDelta(bb);
+			mLevelTagsDelta = new TagDelta(bb);
 		}
 
 		while (bb.hasRemaining()) {
 			int length = bb.getInt();
 			byte[] sectionBytes = new byte[length];
 			bb.get(sectionBytes);
-			SectionDelta sectionData = new SectionDelta(sectionBytes);
+			SectionDelta sectionData = new SectionDelta(sectionBytes, version);
 			mSectionDeltas.add(sectionData);
 		}
 	}
 
-	private HeightMapDelta calculateHeightMapDelta(int[] sourceHeights, int[] destHeights) {
-		HeightMapDelta result = new HeightMapDelta();
-		int heightMapLength = 0;
-		for (int i = 0; i < sourceHeights.length; i++) {
-			if (sourceHeights[i] != destHeights[i]) {
-				int bit = i % 8;
-				result.changeArray[(int) Math.floor(i / 8d)] |= 1 << bit;
-				heightMapLength += 1;
+	/** Reads the fields set by a record from VERSION_FIELD_MASK on, which starts with the field mask. */
+	private void readFields(ByteBuffer bb) {
+		mFieldMask = bb.getShort() & 0xFFFF;
+		if (hasField(FIELD_LIGHT_POPULATED)) {
+			mLightPopulated = new ByteTag("LightPopulated", bb.get());
+		}
+		if (hasField(FIELD_TERRAIN_POPULATED)) {
+			mTerrainPopulated = new ByteTag("TerrainPopulated", bb.get());
+		}
+		if (hasField(FIELD_V)) {
+			mV = new ByteTag("V", bb.get());
+		}
+		if (hasField(FIELD_X_POS)) {
+			mXPos = new IntTag("xPos", bb.getInt());
+		}
+		if (hasField(FIELD_Z_POS)) {
+			mZPos = new IntTag("zPos", bb.getInt());
+		}
+		if (hasField(FIELD_INHABITED_TIME)) {
+			mInhabitedTimeDelta = VarIntUtils.getVarLong(bb);
+			if (hasField(FIELD_ABSOLUTE_TIMES)) {
+				mInhabitedTime = new LongTag("InhabitedTime", mInhabitedTimeDelta);
 			}
 		}
-		result.changeValues = new int[heightMapLength];
-		int bit = 0;
-		for (int i = 0; i < heightMapLength; i++) {
-			// loop through each bit in mHeightMapChanges
-			while (!isBitSet(result.changeArray, bit)) {
-				bit++;
+		if (hasField(FIELD_LAST_UPDATE)) {
+			mLastUpdateDelta = VarIntUtils.getVarLong(bb);
+			if (hasField(FIELD_ABSOLUTE_TIMES)) {
+				mLastUpdate = new LongTag("LastUpdate", mLastUpdateDelta);
 			}
-			result.changeValues[i] = mHeightMap.getValue()[bit];
-			bit++;
 		}
-		return result;
+		if (hasField(FIELD_BIOMES)) {
+			byte[] biomeBytes = new byte[256];
+			bb.get(biomeBytes);
+			mBiomes = new ByteArrayTag("Biomes", biomeBytes);
+		}
 	}
 
-	private ArrayList<SectionDelta> calculateSectionDeltas(List<Tag> sourceSections, List<Tag> destSections) {
-		// Match sections to each other, and compare, if there are changes create a sectionDelta.
-		class Pair {
-			CompoundTag sourceTag;
+	/** Sets a bit in mFieldMask for every destination field that differs from the source, and works out the time deltas.
+	 * 
+	 * @param tSource
+	 *            The source level tag, or null for a new chunk. */
+	private void calculateFieldMask(CompoundTag tSource) {
+		// A new chunk has nothing to take differences from
+		mFieldMask = tSource == null ? FIELD_ABSOLUTE_TIMES : 0;
+		if (isChanged(mLightPopulated, tSource)) {
+			mFieldMask |= FIELD_LIGHT_POPULATED;
+		}
+		if (isChanged(mTerrainPopulated, tSource)) {
+			mFieldMask |= FIELD_TERRAIN_POPULATED;
+		}
+		if (isChanged(mV, tSource)) {
+			mFieldMask |= FIELD_V;
+		}
+		if (isChanged(mXPos, tSource)) {
+			mFieldMask |= FIELD_X_POS;
+		}
+		if (isChanged(mZPos, tSource)) {
+			mFieldMask |= FIELD_Z_POS;
+		}
+		if (isChanged(mInhabitedTime, tSource)) {
+			mFieldMask |= FIELD_INHABITED_TIME;
+			mInhabitedTimeDelta = mInhabitedTime.getValue() - getLong(tSource, "InhabitedTime");
+		}
+		if (isChanged(mLastUpdate, tSource)) {
+			mFieldMask |= FIELD_LAST_UPDATE;
+			mLastUpdateDelta = mLastUpdate.getValue() - getLong(tSource, "LastUpdate");
+		}
+		if (isChanged(mBiomes, tSource)) {
+			mFieldMask |= FIELD_BIOMES;
+		}
+		if (tSource == null || mHeightMapDelta.changeValues.length > 0) {
+			mFieldMask |= FIELD_HEIGHT_MAP;
+		}
+		if (!mRootTagsDelta.isEmpty() || !mLevelTagsDelta.isEmpty()) {
+			mFieldMask |= FIELD_OTHER_TAGS;
+		}
+	}
 
-			CompoundTag destTag;
+	/** Diffs every tag of the chunk and its level that has no field of its own.
+	 * 
+	 * @param source
+	 *            The source chunk tag, or null for a new chunk. */
+	private void calculateOtherTags(CompoundTag source, CompoundTag dest) {
+		CompoundTag sourceLevel = source == null ? null : (CompoundTag) source.getValue().get("Level");
+		mRootTagsDelta = new TagDelta(source, dest, ROOT_TAGS);
+		mLevelTagsDelta = new TagDelta(sourceLevel, (CompoundTag) dest.getValue().get("Level"), LEVEL_TAGS);
+	}
 
-			Pair(CompoundTag sourceTag, CompoundTag destTag) {
-				this.sourceTag = sourceTag;
-				this.destTag = destTag;
-			}
+	/** @return true if the destination tag is set and the source level tag does not have an equal tag. */
+	private static boolean isChanged(Tag dest, CompoundTag tSource) {
+		if (dest == null) {
+			return false;
+		}
+		Tag source = tSource == null ? null : tSource.getValue().get(dest.getName());
+		if (source == null) {
+			return true;
 		}
+		if (dest instanceof ByteArrayTag) {
+			return !Arrays.equals(((ByteArrayTag) dest).getValue(), ((ByteArrayTag) source).getValue());
+		}
+		return !dest.getValue().equals(source.getValue());
+	}
 
-		int changedSections = 0;
-		int newSections = 0;
-		int deletedSections = 0;
+	/** @return The value of a long tag in the level tag, or 0 if either is missing. */
+	private static long getLong(CompoundTag levelTag, String name) {
+		Tag t = levelTag == null ? null : levelTag.getValue().get(name);
+		return t == null ? 0 : ((LongTag) t).getValue();
+	}
 
-		ArrayList<Pair> pairs = new ArrayList<>();
+	private boolean hasField(int field) {
+		return (mFieldMask & field) != 0;
+	}
 
-		ArrayList<SectionDelta> sectionDeltas = new ArrayList<>();
+	private HeightMapDelta calculateHeightMapDelta(int[] sourceHeights, int[] destHeights) {
+		HeightMapDelta result = new HeightMapDelta();
+		result.changeValues = new int[BitmaskKernel.diff(sourceHeights, destHeights, result.changeArray)];
+		BitmaskKernel.gather(destHeights, result.changeArray, result.changeValues);
+		return result;
+	}
 
-		// If we find a pair, create a delta from both
-		for (Tag sourceSection : sourceSections) {
-			for (Tag destSection : destSections) {
-				Pair pair = new Pair((CompoundTag) sourceSection, (CompoundTag) destSection);
-				int sourceY = ((ByteTag) pair.destTag.getValue().get("Y")).getValue();
-				int destY = ((ByteTag) pair.sourceTag.getValue().get("Y")).getValue();
+	private ArrayList<SectionDelta> calculateSectionDeltas(List<Tag> sourceSections, List<Tag> destSections, boolean verify) {
+		// Index both lists by Y, then compare the sections at each Y, if there are changes create a sectionDelta.
+		CompoundTag[] sourceByY = indexSections(sourceSections);
+		CompoundTag[] destByY = indexSections(destSections);
 
-				if (sourceY == destY) {
-					pairs.add(pair);
+		int changedSections = 0;
+		int newSections = 0;
+		int deletedSections = 0;
 
-					byte[] sBytes = NBTUtils.writeTagToBytes(pair.sourceTag);
-					byte[] dBytes = NBTUtils.writeTagToBytes(pair.destTag);
+		ArrayList<SectionDelta> sectionDeltas = new ArrayList<>();
 
-					if (!Arrays.equals(sBytes, dBytes)) {
-						SectionDelta delta = new SectionDelta(pair.sourceTag, pair.destTag);
-						sectionDeltas.add(delta);
-						changedSections++;
-					}
-				}
+		// Changed sections, in source order
+		for (Tag tag : sourceSections) {
+			CompoundTag sourceSection = (CompoundTag) tag;
+			CompoundTag destSection = destByY[getSectionY(sourceSection)];
+			if (destSection != null && !isSectionEqual(sourceSection, destSection)) {
+				sectionDeltas.add(new SectionDelta(sourceSection, destSection, verify));
+				changedSections++;
 			}
 		}
 
-		// If there is no pair matching the destination section, this is a new destination section.
+		// If there is no source section at the same Y, this is a new destination section.
 		for (Tag tag : destSections) {
 			CompoundTag destSection = (CompoundTag) tag;
-			boolean foundMatch = false;
-			for (Pair pair : pairs) {
-				int destY = ((ByteTag) destSection.getValue().get("Y")).getValue();
-				int pairY = ((ByteTag) pair.destTag.getValue().get("Y")).getValue();
-				if (destY == pairY) {
-					foundMatch = true;
-				}
-			}
-			if (!foundMatch) {
-				SectionDelta delta = new SectionDelta(destSection);
-				sectionDeltas.add(delta);
+			if (sourceByY[getSectionY(destSection)] == null) {
+				sectionDeltas.add(new SectionDelta(destSection, verify));
 				newSections++;
 			}
 		}
 
-		// If there is no pair matching the source section, the section has been removed.
+		// If there is no destination section at the same Y, the section has been removed.
 		for (Tag tag : sourceSections) {
 			CompoundTag sourceSection = (CompoundTag) tag;
-			byte sourceY = ((ByteTag) sourceSection.getValue().get("Y")).getValue();
-			boolean foundMatch = false;
-			for (Pair pair : pairs) {
-
-				byte pairY = ((ByteTag) pair.sourceTag.getValue().get("Y")).getValue();
-				if (sourceY == pairY) {
-					foundMatch = true;
-				}
-			}
-			if (!foundMatch) {
-				SectionDelta delta = new SectionDelta(sourceY);
-				sectionDeltas.add(delta);
+			if (destByY[getSectionY(sourceSection)] == null) {
+				sectionDeltas.add(new SectionDelta((byte) getSectionY(sourceSection)));
 				deletedSections++;
 			}
 		}
@@ -350,6 +608,56 @@ public class ChunkDelta {
 
 	}
 
+	/** @return The sections, at the index of their Y. */
+	private static CompoundTag[] indexSections(List<Tag> sections) {
+		CompoundTag[] byY = new CompoundTag[SECTIONS];
+		for (Tag tag : sections) {
+			byY[getSectionY((CompoundTag) tag)] = (CompoundTag) tag;
+		}
+		return byY;
+	}
+
+	private static int getSectionY(CompoundTag section) {
+		int y = ((ByteTag) section.getValue().get("Y")).getValue();
+		if (y < 0 || y >= SECTIONS) {
+			throw new IllegalArgumentException("Section Y " + y + " is outside the chunk");
+		}
+		return y;
+	}
+
+	/** Compares two sections tag by tag, with the arrays compared directly rather than serialized. */
+	private static boolean isSectionEqual(CompoundTag source, CompoundTag dest) {
+		Map<String, Tag> sourceValues = source.getValue();
+		Map<String, Tag> destValues = dest.getValue();
+		if (sourceValues.size() != destValues.size()) {
+			return false;
+		}
+		for (Map.Entry<String, Tag> entry : sourceValues.entrySet()) {
+			Tag s = entry.getValue();
+			Tag d = destValues.get(entry.getKey());
+			if (d == null || s.getClass() != d.getClass()) {
+				return false;
+			}
+			if (s instanceof ByteArrayTag) {
+				if (!Arrays.equals(((ByteArrayTag) s).getValue(), ((ByteArrayTag) d).getValue())) {
+					return false;
+				}
+			} else if (s instanceof IntArrayTag) {
+				if (!Arrays.equals(((IntArrayTag) s).getValue(), ((IntArrayTag) d).getValue())) {
+					return false;
+				}
+			} else if (s instanceof CompoundTag || s instanceof ListTag) {
+				// Not part of a vanilla section, compared the slow way
+				if (!Arrays.equals(NBTUtils.writeTagToBytes(s), NBTUtils.writeTagToBytes(d))) {
+					return false;
+				}
+			} else if (!s.getValue().equals(d.getValue())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private void printSectionDeltaReport(int totalSections, int changedSections, int newSections, int deletedSections) {
 		System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$");
 		System.out.println("Created " + totalSections + " sections deltas");
@@ -364,33 +672,75 @@ public class ChunkDelta {
 			return new byte[0];
 		}
 		ByteBuffer bb = ByteBuffer.allocate(getLengthInBytes());
+		if (mTouch) {
+			bb.put(KIND_TOUCH);
+			bb.putInt(mTimestamp);
+			return bb.array();
+		}
+		if (mPayload != null) {
+			bb.put(KIND_RAW);
+			bb.putInt(mTimestamp);
+			bb.put(mPayload);
+			return bb.array();
+		}
+		if (mChain != null) {
+			bb.put(KIND_CHAIN);
+			bb.putInt(mTimestamp);
+			bb.putInt(mChain.size());
+			for (ChunkDelta delta : mChain) {
+				byte[] record = delta.getBytes();
+				bb.putInt(record.length);
+				bb.put(record);
+			}
+			return bb.array();
+		}
 
-		bb.put(mLightPopulated.getValue()).put(mTerrainPopulated.getValue()).put(mV.getValue());
-
-		bb.putInt(mXPos.getValue()).putInt(mZPos.getValue());
-
-		bb.putLong(mInhabitedTime.getValue()).putLong(mLastUpdate.getValue());
+		bb.put(KIND_DELTA);
+		bb.putInt(mTimestamp);
+		bb.putLong(mDestHash);
 
-		bb.put(mBiomes.getValue());
+		bb.putShort((short) mFieldMask);
+		if (hasField(FIELD_LIGHT_POPULATED)) {
+			bb.put(mLightPopulated.getValue());
+		}
+		if (hasField(FIELD_TERRAIN_POPULATED)) {
+			bb.put(mTerrainPopulated.getValue());
+		}
+		if (hasField(FIELD_V)) {
+			bb.put(mV.getValue());
+		}
+		if (hasField(FIELD_X_POS)) {
+			bb.putInt(mXPos.getValue());
+		}
+		if (hasField(FIELD_Z_POS)) {
+			bb.putInt(mZPos.getValue());
+		}
+		if (hasField(FIELD_INHABITED_TIME)) {
+			VarIntUtils.putVarLong(bb, getInhabitedTimeForRecord());
+		}
+		if (hasField(FIELD_LAST_UPDATE)) {
+			VarIntUtils.putVarLong(bb, getLastUpdateForRecord());
+		}
+		if (hasField(FIELD_BIOMES)) {
+			bb.put(mBiomes.getValue());
+		}
 
-		bb.putInt(mEntitiesBytes.length);
-		bb.put(mEntitiesBytes);
+		mEntitiesDelta.write(bb);
+		mTileEntitiesDelta.write(bb);
+		mTileTicksDelta.write(bb);
 
-		bb.putInt(mTileEntitiesBytes.length);
-		bb.put(mTileEntitiesBytes);
+		if (hasField(FIELD_HEIGHT_MAP)) {
+			bb.putInt(mHeightMapDelta.changeArray.length + mHeightMapDelta.changeValues.length * 4);
+			bb.put(mHeightMapDelta.changeArray);
 
-		if (mTileTicksBytes == null) {
-			bb.putInt(0);
-		} else {
-			bb.putInt(mTileTicksBytes.length);
-			bb.put(mTileTicksBytes);
+			for (int i : mHeightMapDelta.changeValues) {
+				bb.putInt(i);
+			}
 		}
 
-		bb.putInt(mHeightMapDelta.changeArray.length + mHeightMapDelta.changeValues.length * 4);
-		bb.put(mHeightMapDelta.changeArray);
-
-		for (int i : mHeightMapDelta.changeValues) {
-			bb.putInt(i);
+		if (hasField(FIELD_OTHER_TAGS)) {
+			mRootTagsDelta.write(bb);
+			mLevelTagsDelta.write(bb);
 		}
 
 		for (SectionDelta d : mSectionDeltas) {
@@ -406,32 +756,58 @@ public class ChunkDelta {
 		if (isEmpty) {
 			return 0;
 		}
+		if (mTouch) {
+			return 1 + 4;
+		}
+		if (mPayload != null) {
+			return 1 + 4 + mPayload.length;
+		}
+		if (mChain != null) {
+			int result = 1 + 4 + 4;
+			for (ChunkDelta delta : mChain) {
+				result += 4 + delta.getLengthInBytes();
+			}
+			return result;
+		}
 		int result = 0;
 
-		result += 3 + 8 + 16 + 256;
-		result += mHeightMapDelta.changeArray.length + 4;
-		result += mHeightMapDelta.changeValues.length * 4;
+		result += 1 + 4 + 8 + 2;
+		result += Integer.bitCount(mFieldMask & (FIELD_LIGHT_POPULATED | FIELD_TERRAIN_POPULATED | FIELD_V));
+		result += Integer.bitCount(mFieldMask & (FIELD_X_POS | FIELD_Z_POS)) * 4;
+		if (hasField(FIELD_INHABITED_TIME)) {
+			result += VarIntUtils.getVarLongSize(getInhabitedTimeForRecord());
+		}
+		if (hasField(FIELD_LAST_UPDATE)) {
+			result += VarIntUtils.getVarLongSize(getLastUpdateForRecord());
+		}
+		if (hasField(FIELD_BIOMES)) {
+			result += 256;
+		}
+		if (hasField(FIELD_HEIGHT_MAP)) {
+			result += mHeightMapDelta.changeArray.length + 4;
+			result += mHeightMapDelta.changeValues.length * 4;
+		}
+		if (hasField(FIELD_OTHER_TAGS)) {
+			result += mRootTagsDelta.getLengthInBytes() + mLevelTagsDelta.getLengthInBytes();
+		}
 
 		for (SectionDelta d : mSectionDeltas) {
 			result += d.getLengthInBytes() + 4;
 		}
 
-		result += mEntitiesBytes.length + 4;
-		result += mTileEntitiesBytes.length + 4;
-		if (mTileTicksBytes == null) {
-			result += 4;
-		} else {
-			result += mTileTicksBytes.length + 4;
-		}
+		result += mEntitiesDelta.getLengthInBytes();
+		result += mTileEntitiesDelta.getLengthInBytes();
+		result += mTileTicksDelta.getLengthInBytes();
 
 		return result;
 	}
 
-	private boolean isBitSet(byte[] target, int bitOffset) {
-		int index = (int) Math.floor(bitOffset / 8);
-		int bitIndex = bitOffset % 8;
-		byte result = (byte) ((target[index] >> bitIndex) & 1);
-		return result == 1;
+	private long getInhabitedTimeForRecord() {
+		return hasField(FIELD_ABSOLUTE_TIMES) ? mInhabitedTime.getValue() : mInhabitedTimeDelta;
+	}
+
+	private long getLastUpdateForRecord() {
+		return hasField(FIELD_ABSOLUTE_TIMES) ? mLastUpdate.getValue() : mLastUpdateDelta;
 	}
 
 	private void setDestinationTags(Chunk dest) {
@@ -455,60 +831,79 @@ public class ChunkDelta {
 		mHeightMap = (IntArrayTag) tDest.getValue().get("HeightMap");
 	}
 
-	private byte[] tagToBytes(Tag t) throws IOException {
-		ByteArrayOutputStream out = new ByteArrayOutputStream();
-		NBTOutputStream outs = new NBTOutputStream(out);
-		outs.writeTag(t);
-		outs.close();
-		return out.toByteArray();
+	/** The delta only needs the serialized lists and the heightmap delta, so references to the destination chunk's tags are
+	 * dropped once they have been created. */
+	private void releaseDestinationTags() {
+		mEntities = null;
+		mTileEntities = null;
+		mTileTicks = null;
+		mHeightMap = null;
 	}
 
 	public Chunk applyDelta(Chunk c) {
+		if (mChain != null) {
+			for (ChunkDelta delta : mChain) {
+				c = delta.applyDelta(c);
+			}
+			return c;
+		}
 		// TODO clone c.
 		CompoundTag chunkTag = c.getTag();
 		CompoundTag levelTag = (CompoundTag) chunkTag.getValue().get("Level");
 
-		System.out.println("This delta has an MX of " + mXPos.getValue() + " and a MZ of " + mZPos.getValue());
+		System.out.println("This delta has an MX of " + c.getX() + " and a MZ of " + c.getZ());
 
-		// BASIC SET TAGS
+		// BASIC SET TAGS, only the fields that changed
 		// levelTag.getValue().remove("LightPopulated");
-		levelTag.getValue().put("V", mV);
-		levelTag.getValue().put("LightPopulated", mLightPopulated);
-		levelTag.getValue().put("Biomes", mBiomes);
-		levelTag.getValue().put("Entities", NBTUtils.bytesToTag(mEntitiesBytes));
-		levelTag.getValue().put("xPos", mXPos);
-		levelTag.getValue().put("LastUpdate", mLastUpdate);
-		levelTag.getValue().put("zPos", mZPos);
-		levelTag.getValue().put("TerrainPopulated", mTerrainPopulated);
+		if (hasField(FIELD_V)) {
+			levelTag.getValue().put("V", mV);
+		}
+		if (hasField(FIELD_LIGHT_POPULATED)) {
+			levelTag.getValue().put("LightPopulated", mLightPopulated);
+		}
+		if (hasField(FIELD_BIOMES)) {
+			levelTag.getValue().put("Biomes", mBiomes);
+		}
+		mEntitiesDelta.applyTo(levelTag, "Entities");
+		if (hasField(FIELD_X_POS)) {
+			levelTag.getValue().put("xPos", mXPos);
+		}
+		if (hasField(FIELD_LAST_UPDATE)) {
+			levelTag.getValue().put("LastUpdate", mLastUpdate != null ? mLastUpdate : new LongTag("LastUpdate", getLong(levelTag, "LastUpdate") + mLastUpdateDelta));
+		}
+		if (hasField(FIELD_Z_POS)) {
+			levelTag.getValue().put("zPos", mZPos);
+		}
+		if (hasField(FIELD_TERRAIN_POPULATED)) {
+			levelTag.getValue().put("TerrainPopulated", mTerrainPopulated);
+		}
 		// BASIC SET TAG
-		levelTag.getValue().put("TileEntities", NBTUtils.bytesToTag(mTileEntitiesBytes));
-		if (mTileTicksBytes != null) {
-			levelTag.getValue().put("TileTicks", NBTUtils.bytesToTag(mTileTicksBytes));
-		} else {
-			levelTag.getValue().remove("TileTicks");
+		mTileEntitiesDelta.applyTo(levelTag, "TileEntities");
+		mTileTicksDelta.applyTo(levelTag, "TileTicks");
+
+		if (hasField(FIELD_OTHER_TAGS)) {
+			mRootTagsDelta.applyTo(chunkTag);
+			mLevelTagsDelta.applyTo(levelTag);
 		}
 		
-		levelTag.getValue().put("InhabitedTime", mInhabitedTime);
+		if (hasField(FIELD_INHABITED_TIME)) {
+			levelTag.getValue().put("InhabitedTime", mInhabitedTime != null ? mInhabitedTime : new LongTag("InhabitedTime", getLong(levelTag, "InhabitedTime") + mInhabitedTimeDelta));
+		}
 		
 		// Unwrap heightmap and edit values
-		Tag heightMap = levelTag.getValue().get("HeightMap");
-		if (heightMap == null) {
-			heightMap = new IntArrayTag("HeightMap", new int[256]);
-			levelTag.getValue().put("HeightMap", heightMap);
-		}
+		if (hasField(FIELD_HEIGHT_MAP)) {
+			Tag heightMap = levelTag.getValue().get("HeightMap");
+			if (heightMap == null) {
+				heightMap = new IntArrayTag("HeightMap", new int[256]);
+				levelTag.getValue().put("HeightMap", heightMap);
+			}
 
-		int[] hmValues = ((IntArrayTag) heightMap).getValue();
+			int[] hmValues = ((IntArrayTag) heightMap).getValue();
 
-		int bit = 0;
-		for (int i = 0; i < mHeightMapDelta.changeValues.length; i++) {
-			while (!isBitSet(mHeightMapDelta.changeArray, bit)) {
-				bit++;
-			}
-			hmValues[bit] = mHeightMapDelta.changeValues[i];
-			bit++;
-		}
+			BitmaskKernel.scatter(mHeightMapDelta.changeValues, mHeightMapDelta.changeArray, hmValues);
 
-		levelTag.getValue().put("HeightMap", new IntArrayTag("HeightMap", hmValues));
+			levelTag.getValue().put("HeightMap", new IntArrayTag("HeightMap", hmValues));
+		}
 
 		//
 		//Section unwrap
@@ -541,9 +936,9 @@ public class ChunkDelta {
 					}
 				}
 			}
-			System.out.println("*&* + " + getX() + "  " + getZ() + " -> " + foundTag);
+			System.out.println("*&* + " + c.getX() + "  " + c.getZ() + " -> " + foundTag);
 			if (!foundTag) {
-				System.out.println(getX() + ", " + getZ() + " creating sections!");
+				System.out.println(c.getX() + ", " + c.getZ() + " creating sections!");
 				// Tag should be created and populated by delta
 				Map<String, Tag> sectionMap = new HashMap<>();
 				sectionMap.put("Y", new ByteTag("Y", (byte) s.getY()));
@@ -562,6 +957,42 @@ public class ChunkDelta {
 		return c;
 	}
 
+	/** @return The section deltas, changed sections first in source order, then new sections, then removed sections. */
+	public List<SectionDelta> getSectionDeltas() {
+		return mSectionDeltas;
+	}
+
+	/** @return true if only the timestamp of the chunk changed, in which case there is nothing to apply to the chunk itself. */
+	public boolean isTouch() {
+		return mTouch;
+	}
+
+	/** @return true if this is a new chunk's stored payload rather than a delta, see createRaw. */
+	public boolean isRaw() {
+		return mPayload != null;
+	}
+
+	public byte[] getPayload() {
+		return mPayload;
+	}
+
+	/** @return true if this is several deltas applied one after another, see createChain. */
+	public boolean isChain() {
+		return mChain != null;
+	}
+
+	/** @return false only for a delta read from a version that did not record the timestamp of the destination chunk. */
+	public boolean hasTimestamp() {
+		return mHasTimestamp;
+	}
+
+	/** @return The timestamp of the destination chunk, if hasTimestamp. */
+	public int getTimestamp() {
+		return mTimestamp;
+	}
+
+	/** Only known for deltas created from chunks, or read from records that set xPos. The position of a chunk delta in a
+	 * .mcad is given by the changed chunk bitmask. */
 	public int getX() {
 		return mXPos.getValue();
 	}
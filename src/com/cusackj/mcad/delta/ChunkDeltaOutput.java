@@ -0,0 +1,20 @@
+package com.cusackj.mcad.delta;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** Somewhere chunk deltas are written to as they are created, one for each set bit of the changed chunk bitmask, in bitmask
+ * order. */
+public interface ChunkDeltaOutput extends Closeable {
+
+	void write(ChunkDelta chunkDelta) throws IOException;
+
+	int getChunkDeltasWritten();
+
+	/** @return The uncompressed length of everything written so far. */
+	long getLength();
+
+	/** Closes the output after a failure. Unlike close, it does not check that a chunk delta was written for every set bit,
+	 * and what was written is incomplete. */
+	void abort() throws IOException;
+}
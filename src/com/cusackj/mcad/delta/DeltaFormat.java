@@ -0,0 +1,70 @@
+package com.cusackj.mcad.delta;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/** Constants shared by the .mcad containers.
+ *
+ * A stream .mcad is a gzip stream of the timestamps, the changed chunk bitmask and a length prefixed record for each chunk
+ * delta. From version 2 the gzip stream is preceded by STREAM_MAGIC and a version byte, version 1 files are a bare gzip
+ * stream. An indexed .mcad starts with INDEXED_MAGIC and can be read one chunk at a time, see IndexedRegionDelta.
+ * A world delta is a directory of these, one for each changed region, listed by a manifest, see WorldDelta. */
+public final class DeltaFormat {
+	/** "MCAD", the first 4 bytes of a stream .mcad from version 2. */
+	public static final int STREAM_MAGIC = 0x4D434144;
+	/** "MCAX", the first 4 bytes of an indexed .mcad. */
+	public static final int INDEXED_MAGIC = 0x4D434158;
+	/** "MCAW", the first 4 bytes of a world manifest, see WorldManifest. */
+	public static final int WORLD_MAGIC = 0x4D434157;
+	/** "MCAH", the first 4 bytes of a region history index, see RegionHistory. */
+	public static final int HISTORY_MAGIC = 0x4D434148;
+
+	/** The original chunk delta records. */
+	public static final int VERSION_LEGACY = 1;
+	/** Chunk delta records start with a hash of the destination chunk. */
+	public static final int VERSION_DEST_HASH = 2;
+	/** Each section array is written with the cheapest of several encodings, see SectionDelta. */
+	public static final int VERSION_ARRAY_ENCODING = 3;
+	/** Data, BlockLight and SkyLight can also be encoded per nibble. */
+	public static final int VERSION_NIBBLE_ENCODING = 4;
+	/** Entities, TileEntities and TileTicks are written as the changes to the source list, see ListDelta. */
+	public static final int VERSION_LIST_DIFF = 5;
+	/** Chunk delta records start with a mask of the level fields they set, and unchanged fields are left out. */
+	public static final int VERSION_FIELD_MASK = 6;
+
+	/** Chunk delta records start with a kind, either a delta or just the new timestamp of a chunk that did not change. */
+	public static final int VERSION_RECORD_KIND = 7;
+	/** New chunks can be written as their stored payload, copied from the region file without being decoded. */
+	public static final int VERSION_RAW_CHUNK = 8;
+
+	/** Tags a chunk delta has no field for are written as the changes to them, see TagDelta. */
+	public static final int VERSION_TAG_DIFF = 9;
+
+	/** Delta records carry the timestamp of the destination chunk, the region timestamps are set, and a chunk can have a
+	 * chain of deltas, see RegionDelta.squash. */
+	public static final int VERSION_CHUNK_TIMESTAMP = 10;
+
+	/** Section delta records can end with the changes to the tags of the section other than its arrays, see SectionDelta. */
+	public static final int VERSION_SECTION_TAGS = 11;
+
+	/** Version of the chunk delta records written by this build. */
+	public static final int VERSION = VERSION_SECTION_TAGS;
+
+	private DeltaFormat() {
+	}
+
+	/** @return true if the file is an indexed .mcad rather than a stream .mcad. */
+	public static boolean isIndexed(File f) throws IOException {
+		if (f.length() < 4) {
+			return false;
+		}
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			return in.readInt() == INDEXED_MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+}
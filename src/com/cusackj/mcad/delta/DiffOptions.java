@@ -0,0 +1,83 @@
+package com.cusackj.mcad.delta;
+
+import java.util.concurrent.ExecutorService;
+
+import com.cusackj.mcad.model.ChunkCache;
+
+/** Settings for creating a RegionDelta. The defaults diff on the calling thread, verify a sample of chunk deltas and write a
+ * stream .mcad. */
+public class DiffOptions {
+	private ExecutorService mExecutor = null;
+	private VerificationPolicy mVerificationPolicy = VerificationPolicy.SAMPLED;
+	private boolean mIndexed = false;
+	private boolean mContentCheck = false;
+	private double mFullChunkThreshold = 1;
+	private ChunkCache mChunkCache = null;
+
+	public DiffOptions() {
+	}
+
+	public DiffOptions(ExecutorService executor) {
+		mExecutor = executor;
+	}
+
+	/** @return The executor to diff chunks on, or null to diff them on the calling thread. */
+	public ExecutorService getExecutor() {
+		return mExecutor;
+	}
+
+	public void setExecutor(ExecutorService executor) {
+		mExecutor = executor;
+	}
+
+	public VerificationPolicy getVerificationPolicy() {
+		return mVerificationPolicy;
+	}
+
+	public void setVerificationPolicy(VerificationPolicy verificationPolicy) {
+		mVerificationPolicy = verificationPolicy;
+	}
+
+	/** @return true if an indexed .mcad should be written rather than a stream .mcad. */
+	public boolean isIndexed() {
+		return mIndexed;
+	}
+
+	public void setIndexed(boolean indexed) {
+		mIndexed = indexed;
+	}
+
+	/** @return true if chunks whose timestamp has changed are first compared by their stored payloads, so chunks that were
+	 *         only saved again are written as a timestamp rather than being decoded and diffed. Only used when diffing region
+	 *         files. */
+	public boolean isContentCheck() {
+		return mContentCheck;
+	}
+
+	public void setContentCheck(boolean contentCheck) {
+		mContentCheck = contentCheck;
+	}
+
+	/** @return How large a changed chunk's delta can be, after compression and relative to the stored destination chunk,
+	 *         before the whole chunk is written instead. At 1 the smaller of the two is written, below 1 whole chunks are
+	 *         preferred as they are much faster to apply. */
+	public double getFullChunkThreshold() {
+		return mFullChunkThreshold;
+	}
+
+	/** @param fullChunkThreshold
+	 *            Double.POSITIVE_INFINITY to always write changed chunks as deltas. */
+	public void setFullChunkThreshold(double fullChunkThreshold) {
+		mFullChunkThreshold = fullChunkThreshold;
+	}
+
+	/** @return The cache to read the chunks of region files through, or null to read them from the files. Only used when
+	 *         diffing region files. */
+	public ChunkCache getChunkCache() {
+		return mChunkCache;
+	}
+
+	public void setChunkCache(ChunkCache chunkCache) {
+		mChunkCache = chunkCache;
+	}
+}
@@ -0,0 +1,130 @@
+package com.cusackj.mcad.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.cusackj.mcad.model.Region;
+
+/** An indexed .mcad, memory mapped so that a single chunk delta can be read or applied without touching the rest of the file.
+ *
+ * Layout:
+ * <ul>
+ * <li>int INDEXED_MAGIC, byte version, long source timestamp, long destination timestamp, 128 byte changed chunk bitmask</li>
+ * <li>An index entry for each of the 1024 chunks, in bitmask order: int offset, int compressed length, int length. A removed
+ * chunk has a set bit and a length of 0.</li>
+ * <li>The chunk delta records, each deflated on its own.</li>
+ * </ul> */
+public class IndexedRegionDelta {
+	static final int HEADER_BYTES = 4 + 1 + 8 + 8 + 128;
+	static final int INDEX_ENTRY_BYTES = 12;
+	static final int INDEX_BYTES = INDEX_ENTRY_BYTES * 32 * 32;
+
+	private MappedByteBuffer mBuffer;
+
+	private int mVersion;
+	private long mSourceTimestamp;
+	private long mDestTimestamp;
+	private byte[] mChangedChunkBits = new byte[128];
+
+	public IndexedRegionDelta(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			// The mapping stays valid after the channel is closed
+			mBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+
+		if (mBuffer.getInt() != DeltaFormat.INDEXED_MAGIC) {
+			throw new IOException(f.getName() + " is not an indexed .mcad file");
+		}
+		mVersion = mBuffer.get();
+		if (mVersion > DeltaFormat.VERSION) {
+			throw new IOException(f.getName() + " is version " + mVersion + ", only up to " + DeltaFormat.VERSION + " can be read");
+		}
+		mSourceTimestamp = mBuffer.getLong();
+		mDestTimestamp = mBuffer.getLong();
+		mBuffer.get(mChangedChunkBits);
+	}
+
+	public long getSourceTimestamp() {
+		return mSourceTimestamp;
+	}
+
+	public long getDestTimestamp() {
+		return mDestTimestamp;
+	}
+
+	public byte[] getChangedChunkBits() {
+		return mChangedChunkBits;
+	}
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/** @return true if the chunk at x, z has a chunk delta, where x and z are positions in the changed chunk bitmask. */
+	public boolean hasChunkDelta(int x, int z) {
+		return BitmaskKernel.isBitSet(mChangedChunkBits, x + z * 32);
+	}
+
+	/** Reads and inflates only the chunk delta for x, z.
+	 *
+	 * @return The chunk delta, or null if the chunk has not changed. */
+	public ChunkDelta getChunkDelta(int x, int z) throws IOException {
+		if (!hasChunkDelta(x, z)) {
+			return null;
+		}
+		int entry = HEADER_BYTES + (x + z * 32) * INDEX_ENTRY_BYTES;
+		int offset = mBuffer.getInt(entry);
+		int compressedLength = mBuffer.getInt(entry + 4);
+		int length = mBuffer.getInt(entry + 8);
+
+		byte[] bytes = new byte[length];
+		if (length > 0) {
+			// A duplicate has its own position, so chunk deltas can be read from several threads
+			ByteBuffer record = mBuffer.duplicate();
+			record.position(offset);
+			byte[] compressed = new byte[compressedLength];
+			record.get(compressed);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(compressed);
+				if (inflater.inflate(bytes) != length) {
+					throw new IOException("Chunk delta " + x + ", " + z + " is truncated");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Chunk delta " + x + ", " + z + " is corrupt", e);
+			} finally {
+				inflater.end();
+			}
+		}
+		return new ChunkDelta(bytes, mVersion);
+	}
+
+	/** Applies only the chunk delta for x, z to the region. Does nothing if the chunk has not changed. */
+	public void applyChunkDelta(Region src, int x, int z) throws IOException {
+		ChunkDelta cDelta = getChunkDelta(x, z);
+		if (cDelta != null) {
+			RegionDelta.applyChunkDelta(src, cDelta, x, z, mDestTimestamp);
+		}
+	}
+
+	/** Applies every chunk delta to the region, one at a time. */
+	public Region applyTo(Region src) throws IOException {
+		int totalChunks = src.getNumberOfChunks();
+		int[] counts = new int[4];
+		for (int bit = BitmaskKernel.nextSetBit(mChangedChunkBits, 0); bit != -1; bit = BitmaskKernel.nextSetBit(mChangedChunkBits, bit + 1)) {
+			ChunkDelta cDelta = getChunkDelta(bit % 32, bit / 32);
+			counts[RegionDelta.applyChunkDelta(src, cDelta, bit % 32, bit / 32, mDestTimestamp)]++;
+		}
+		RegionDelta.printMergeReport(totalChunks, counts);
+		return src;
+	}
+}
@@ -0,0 +1,111 @@
+package com.cusackj.mcad.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/** Writes an indexed .mcad, where every chunk delta is compressed on its own and can be found through the index without
+ * reading the rest of the file. See IndexedRegionDelta for the layout.
+ *
+ * Chunk deltas must be written in bitmask order, one for each set bit. */
+public class IndexedRegionDeltaWriter implements ChunkDeltaOutput {
+
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private Deflater mDeflater = new Deflater();
+	private byte[] mDeflateBuffer = new byte[64 * 1024];
+
+	private byte[] mChangedChunkBits;
+	/** The bit of the chunk delta that was written last, -1 before the first one. */
+	private int mBit = -1;
+	private int mRemaining;
+	private int mChunkDeltasWritten = 0;
+	private long mLength = 0;
+
+	/** The index is written at the end, once every offset is known. */
+	private ByteBuffer mIndex = ByteBuffer.allocate(IndexedRegionDelta.INDEX_BYTES);
+
+	public IndexedRegionDeltaWriter(File f, long sourceTimestamp, long destTimestamp, byte[] changedChunkBits) throws IOException {
+		mFile = new RandomAccessFile(f, "rw");
+		mChannel = mFile.getChannel();
+		mChangedChunkBits = changedChunkBits;
+
+		ByteBuffer header = ByteBuffer.allocate(IndexedRegionDelta.HEADER_BYTES);
+		header.putInt(DeltaFormat.INDEXED_MAGIC);
+		header.put((byte) DeltaFormat.VERSION);
+		header.putLong(sourceTimestamp);
+		header.putLong(destTimestamp);
+		header.put(changedChunkBits);
+		header.flip();
+		try {
+			mFile.setLength(0);
+			mChannel.write(header, 0);
+			// Records start after the index
+			mChannel.position(IndexedRegionDelta.HEADER_BYTES + IndexedRegionDelta.INDEX_BYTES);
+		} catch (IOException e) {
+			abort();
+			throw e;
+		}
+
+		mRemaining = BitmaskKernel.countBits(changedChunkBits);
+	}
+
+	@Override
+	public void write(ChunkDelta chunkDelta) throws IOException {
+		if (mRemaining == 0) {
+			throw new IllegalStateException("More chunk deltas written than bits set in the bitmask");
+		}
+		mRemaining--;
+		mBit = BitmaskKernel.nextSetBit(mChangedChunkBits, mBit + 1);
+
+		byte[] bytes = chunkDelta.getBytes();
+		long offset = mChannel.position();
+		int compressedLength = 0;
+		if (bytes.length > 0) {
+			mDeflater.reset();
+			mDeflater.setInput(bytes);
+			mDeflater.finish();
+			while (!mDeflater.finished()) {
+				int n = mDeflater.deflate(mDeflateBuffer);
+				mChannel.write(ByteBuffer.wrap(mDeflateBuffer, 0, n));
+				compressedLength += n;
+			}
+		}
+
+		mIndex.position(mBit * IndexedRegionDelta.INDEX_ENTRY_BYTES);
+		mIndex.putInt((int) offset).putInt(compressedLength).putInt(bytes.length);
+
+		mLength += bytes.length;
+		mChunkDeltasWritten++;
+	}
+
+	@Override
+	public int getChunkDeltasWritten() {
+		return mChunkDeltasWritten;
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	@Override
+	public void abort() throws IOException {
+		mDeflater.end();
+		mFile.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mIndex.clear();
+		mChannel.write(mIndex, IndexedRegionDelta.HEADER_BYTES);
+		mDeflater.end();
+		mFile.close();
+		if (mRemaining != 0) {
+			throw new IllegalStateException(mRemaining + " chunk deltas missing from the file");
+		}
+	}
+}
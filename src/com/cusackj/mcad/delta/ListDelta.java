@@ -0,0 +1,253 @@
+package com.cusackj.mcad.delta;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.Tag;
+
+import com.cusackj.utils.HashUtils;
+
+/** The changes to one list of a chunk, such as Entities, TileEntities or TileTicks.
+ *
+ * Entries are matched to the source list by a key, e.g. the position of a tile entity or the UUID of an entity. The
+ * destination list is then written as a sequence of operations: copy a run of unchanged entries from the source list, or
+ * insert a serialized entry. Removed entries are simply never copied. If that is no smaller than the whole list, the whole
+ * list is written instead. */
+public class ListDelta {
+	/** The chunk has no such list. */
+	static final byte MODE_ABSENT = 0;
+	/** The whole serialized list. */
+	static final byte MODE_FULL = 1;
+	/** The list type, then a count of operations, each OP_COPY or OP_INSERT. */
+	static final byte MODE_DIFF = 2;
+
+	/** Copies a run of entries from the source list, given as a start index and a length. */
+	private static final byte OP_COPY = 0;
+	/** Inserts a serialized entry. */
+	private static final byte OP_INSERT = 1;
+
+	public static final String[] ENTITY_KEY = { "UUIDMost", "UUIDLeast" };
+	public static final String[] POSITION_KEY = { "x", "y", "z" };
+	/** Entries are matched by their contents alone. */
+	public static final String[] NO_KEY = {};
+
+	private byte mMode;
+	/** The whole serialized list, for MODE_FULL. */
+	private byte[] mListBytes;
+
+	/** The NBT type code of the list entries, for MODE_DIFF. */
+	private int mType;
+	/** The operations of MODE_DIFF, in order. A copy is a source index and a length, an insert is the serialized entry. */
+	private List<Object> mOps;
+
+	/** Writes the whole list, or nothing if it is null. */
+	public ListDelta(ListTag dest) {
+		if (dest == null) {
+			mMode = MODE_ABSENT;
+			return;
+		}
+		mMode = MODE_FULL;
+		mListBytes = NBTUtils.writeTagToBytes(dest);
+	}
+
+	/** @param key The names of the entry tags that identify an entry across both lists. */
+	public ListDelta(ListTag source, ListTag dest, String[] key) {
+		this(dest);
+		if (source == null || dest == null) {
+			return;
+		}
+
+		// Source indices of every entry, by key, in list order
+		Map<String, ArrayDeque<Integer>> sourceIndices = new HashMap<>();
+		List<Tag> sourceEntries = source.getValue();
+		byte[][] sourceBytes = new byte[sourceEntries.size()][];
+		for (int i = 0; i < sourceEntries.size(); i++) {
+			sourceBytes[i] = NBTUtils.writeTagToBytes(sourceEntries.get(i));
+			String k = getKey(sourceEntries.get(i), sourceBytes[i], key);
+			ArrayDeque<Integer> indices = sourceIndices.get(k);
+			if (indices == null) {
+				indices = new ArrayDeque<>();
+				sourceIndices.put(k, indices);
+			}
+			indices.add(i);
+		}
+
+		List<Object> ops = new ArrayList<>();
+		int[] run = null;
+		for (Tag entry : dest.getValue()) {
+			byte[] entryBytes = NBTUtils.writeTagToBytes(entry);
+			int match = findMatch(sourceIndices.get(getKey(entry, entryBytes, key)), sourceBytes, entryBytes);
+			if (match < 0) {
+				ops.add(entryBytes);
+				run = null;
+			} else if (run != null && run[0] + run[1] == match) {
+				run[1]++;
+			} else {
+				run = new int[] { match, 1 };
+				ops.add(run);
+			}
+		}
+
+		int type = NBTUtils.getTypeCode(dest.getType());
+		if (getDiffLength(ops) < getLengthInBytes()) {
+			mMode = MODE_DIFF;
+			mType = type;
+			mOps = ops;
+			mListBytes = null;
+		}
+	}
+
+	/** Reads a list delta written by write. */
+	public ListDelta(ByteBuffer bb) {
+		mMode = bb.get();
+		switch (mMode) {
+		case MODE_ABSENT:
+			break;
+		case MODE_FULL:
+			mListBytes = new byte[bb.getInt()];
+			bb.get(mListBytes);
+			break;
+		case MODE_DIFF:
+			mType = bb.get();
+			int count = bb.getInt();
+			mOps = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				if (bb.get() == OP_COPY) {
+					mOps.add(new int[] { bb.getInt(), bb.getInt() });
+				} else {
+					byte[] entryBytes = new byte[bb.getInt()];
+					bb.get(entryBytes);
+					mOps.add(entryBytes);
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown list delta mode " + mMode);
+		}
+	}
+
+	/** Reads a list written before VERSION_LIST_DIFF, a length and the whole serialized list. A length of 0 means the list is
+	 * absent. */
+	static ListDelta readLegacy(ByteBuffer bb) {
+		byte[] listBytes = new byte[bb.getInt()];
+		bb.get(listBytes);
+		ListDelta result = new ListDelta((ListTag) null);
+		if (listBytes.length > 0) {
+			result.mMode = MODE_FULL;
+			result.mListBytes = listBytes;
+		}
+		return result;
+	}
+
+	/** Finds the first unused source entry with the same key and the same contents, and marks it used.
+	 *
+	 * @return Its index, or -1 if there is none. */
+	private static int findMatch(ArrayDeque<Integer> candidates, byte[][] sourceBytes, byte[] entryBytes) {
+		if (candidates == null) {
+			return -1;
+		}
+		for (Integer i : candidates) {
+			if (Arrays.equals(sourceBytes[i], entryBytes)) {
+				candidates.remove(i);
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** @return The values of the key tags of a compound entry. Entries without any of them are keyed by their contents. */
+	private static String getKey(Tag entry, byte[] entryBytes, String[] key) {
+		if (!(entry instanceof CompoundTag)) {
+			return "#" + HashUtils.hash(entryBytes);
+		}
+		StringBuilder sb = new StringBuilder();
+		boolean found = false;
+		for (String name : key) {
+			Tag t = ((CompoundTag) entry).getValue().get(name);
+			if (t != null) {
+				found = true;
+				sb.append(t.getValue());
+			}
+			sb.append(',');
+		}
+		return found ? sb.toString() : "#" + HashUtils.hash(entryBytes);
+	}
+
+	private static int getDiffLength(List<Object> ops) {
+		int length = 1 + 1 + 4;
+		for (Object op : ops) {
+			length += op instanceof int[] ? 1 + 8 : 1 + 4 + ((byte[]) op).length;
+		}
+		return length;
+	}
+
+	public int getLengthInBytes() {
+		switch (mMode) {
+		case MODE_FULL:
+			return 1 + 4 + mListBytes.length;
+		case MODE_DIFF:
+			return getDiffLength(mOps);
+		default:
+			return 1;
+		}
+	}
+
+	public void write(ByteBuffer bb) {
+		bb.put(mMode);
+		switch (mMode) {
+		case MODE_FULL:
+			bb.putInt(mListBytes.length);
+			bb.put(mListBytes);
+			break;
+		case MODE_DIFF:
+			bb.put((byte) mType);
+			bb.putInt(mOps.size());
+			for (Object op : mOps) {
+				if (op instanceof int[]) {
+					bb.put(OP_COPY);
+					bb.putInt(((int[]) op)[0]);
+					bb.putInt(((int[]) op)[1]);
+				} else {
+					bb.put(OP_INSERT);
+					bb.putInt(((byte[]) op).length);
+					bb.put((byte[]) op);
+				}
+			}
+			break;
+		}
+	}
+
+	/** Replaces the list called name in the level tag with the destination list. */
+	public void applyTo(CompoundTag levelTag, String name) {
+		switch (mMode) {
+		case MODE_ABSENT:
+			levelTag.getValue().remove(name);
+			break;
+		case MODE_FULL:
+			levelTag.getValue().put(name, NBTUtils.bytesToTag(mListBytes));
+			break;
+		case MODE_DIFF:
+			ListTag source = (ListTag) levelTag.getValue().get(name);
+			List<Tag> sourceEntries = source == null ? new ArrayList<Tag>() : source.getValue();
+			List<Tag> entries = new ArrayList<>();
+			for (Object op : mOps) {
+				if (op instanceof int[]) {
+					int[] run = (int[]) op;
+					entries.addAll(sourceEntries.subList(run[0], run[0] + run[1]));
+				} else {
+					entries.add(NBTUtils.bytesToTag((byte[]) op));
+				}
+			}
+			levelTag.getValue().put(name, new ListTag(name, NBTUtils.getTypeClass(mType), entries));
+			break;
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package com.cusackj.mcad.delta;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.Tag;
+
+/** The changes to the block states of a 1.13+ section, a Palette list and a BlockStates array of packed palette indices.
+ *
+ * The palette is written as a ListDelta of the source palette. The source palette indices are then mapped to the
+ * destination palette by the contents of each entry, which both the diff and the apply can work out from the two palettes,
+ * so a palette that only gained, lost or reordered entries costs nothing in the block states. Only the entries that differ
+ * from the remapped source are written, with whichever encoding is smallest, see BlockStatesKernel.
+ *
+ * The NBT library has no TAG_Long_Array, so the packed arrays are passed alongside the section rather than read from it. */
+public class PaletteSectionDelta {
+	/** Every entry is the remapped source entry. */
+	static final byte ENCODING_ABSENT = 0;
+	/** A count, an unsigned short index for each changed entry, then an unsigned short value for each. */
+	static final byte ENCODING_INDICES = 1;
+	/** A bitmap of the changed entries, then an unsigned short value for each. */
+	static final byte ENCODING_BITMAP = 2;
+	/** The whole packed destination array. */
+	static final byte ENCODING_FULL = 3;
+
+	private static final int LAYOUT_SOURCE_SPANNING = 1;
+	private static final int LAYOUT_DEST_SPANNING = 2;
+
+	private static final int MASK_LENGTH = BlockStatesKernel.ENTRIES / 8;
+
+	private ListDelta mPaletteDelta;
+	private int mSourceBits;
+	private int mDestBits;
+	private int mLayout;
+
+	private byte mEncoding;
+	private int[] mIndices;
+	private byte[] mMask;
+	private int[] mValues;
+	private long[] mStates;
+
+	/** @param sourceSpanning
+	 *            true if the source entries are packed across long boundaries, as before 1.16.
+	 * @param destSpanning
+	 *            As sourceSpanning, for the destination. */
+	public PaletteSectionDelta(ListTag sourcePalette, long[] sourceStates, boolean sourceSpanning, ListTag destPalette, long[] destStates, boolean destSpanning) {
+		mPaletteDelta = new ListDelta(sourcePalette, destPalette, ListDelta.NO_KEY);
+		mSourceBits = getBits(sourceStates, sourcePalette, sourceSpanning);
+		mDestBits = getBits(destStates, destPalette, destSpanning);
+		mLayout = (sourceSpanning ? LAYOUT_SOURCE_SPANNING : 0) | (destSpanning ? LAYOUT_DEST_SPANNING : 0);
+
+		int[] remap = calculateRemap(sourcePalette.getValue(), destPalette.getValue());
+		byte[] mask = new byte[MASK_LENGTH];
+		int count = BlockStatesKernel.diff(sourceStates, mSourceBits, sourceSpanning, remap, destStates, mDestBits, destSpanning, mask);
+
+		int full = 4 + destStates.length * 8;
+		int indices = 2 + count * 4;
+		int bitmap = MASK_LENGTH + count * 2;
+		if (count == 0) {
+			mEncoding = ENCODING_ABSENT;
+		} else if (full < indices && full < bitmap) {
+			mEncoding = ENCODING_FULL;
+			mStates = destStates.clone();
+			return;
+		} else {
+			mEncoding = indices <= bitmap ? ENCODING_INDICES : ENCODING_BITMAP;
+		}
+
+		mValues = new int[count];
+		if (mEncoding == ENCODING_INDICES) {
+			mIndices = new int[count];
+		} else {
+			mMask = mask;
+		}
+		int v = 0;
+		for (int i = BitmaskKernel.nextSetBit(mask, 0); i != -1; i = BitmaskKernel.nextSetBit(mask, i + 1)) {
+			if (mIndices != null) {
+				mIndices[v] = i;
+			}
+			mValues[v++] = BlockStatesKernel.get(destStates, mDestBits, destSpanning, i);
+		}
+	}
+
+	/** Reads a palette section delta written by write. */
+	public PaletteSectionDelta(ByteBuffer bb) {
+		mPaletteDelta = new ListDelta(bb);
+		mSourceBits = bb.get();
+		mDestBits = bb.get();
+		mLayout = bb.get();
+		mEncoding = bb.get();
+		switch (mEncoding) {
+		case ENCODING_ABSENT:
+			break;
+		case ENCODING_INDICES:
+			int count = bb.getShort() & 0xFFFF;
+			mIndices = new int[count];
+			for (int i = 0; i < count; i++) {
+				mIndices[i] = bb.getShort() & 0xFFFF;
+			}
+			mValues = readValues(bb, count);
+			break;
+		case ENCODING_BITMAP:
+			mMask = new byte[MASK_LENGTH];
+			bb.get(mMask);
+			mValues = readValues(bb, BitmaskKernel.countBits(mMask));
+			break;
+		case ENCODING_FULL:
+			mStates = new long[bb.getInt()];
+			bb.asLongBuffer().get(mStates);
+			bb.position(bb.position() + mStates.length * 8);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown block states encoding " + mEncoding);
+		}
+	}
+
+	private static int[] readValues(ByteBuffer bb, int count) {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = bb.getShort() & 0xFFFF;
+		}
+		return values;
+	}
+
+	/** The bits per entry of a packed array, from its length where that is unambiguous, otherwise from the palette size. */
+	private static int getBits(long[] states, ListTag palette, boolean spanning) {
+		int bits = BlockStatesKernel.getBits(palette.getValue().size());
+		if (BlockStatesKernel.getLength(bits, spanning) == states.length) {
+			return bits;
+		}
+		for (bits = BlockStatesKernel.MIN_BITS; bits <= 32; bits++) {
+			if (BlockStatesKernel.getLength(bits, spanning) == states.length) {
+				return bits;
+			}
+		}
+		throw new IllegalArgumentException("A packed array of " + states.length + " longs does not hold " + BlockStatesKernel.ENTRIES + " entries");
+	}
+
+	/** @return The destination index of every source palette entry, -1 for entries not in the destination palette, or null
+	 *         if every entry keeps its index. */
+	private static int[] calculateRemap(List<Tag> sourcePalette, List<Tag> destPalette) {
+		Map<ByteBuffer, Integer> destIndices = new HashMap<>();
+		for (int i = destPalette.size() - 1; i >= 0; i--) {
+			destIndices.put(ByteBuffer.wrap(NBTUtils.writeTagToBytes(destPalette.get(i))), i);
+		}
+		int[] remap = new int[sourcePalette.size()];
+		boolean identity = true;
+		for (int i = 0; i < remap.length; i++) {
+			Integer index = destIndices.get(ByteBuffer.wrap(NBTUtils.writeTagToBytes(sourcePalette.get(i))));
+			remap[i] = index == null ? -1 : index;
+			identity &= remap[i] == i;
+		}
+		return identity ? null : remap;
+	}
+
+	public int getLengthInBytes() {
+		int length = mPaletteDelta.getLengthInBytes() + 4;
+		switch (mEncoding) {
+		case ENCODING_INDICES:
+			return length + 2 + mValues.length * 4;
+		case ENCODING_BITMAP:
+			return length + MASK_LENGTH + mValues.length * 2;
+		case ENCODING_FULL:
+			return length + 4 + mStates.length * 8;
+		default:
+			return length;
+		}
+	}
+
+	public void write(ByteBuffer bb) {
+		mPaletteDelta.write(bb);
+		bb.put((byte) mSourceBits);
+		bb.put((byte) mDestBits);
+		bb.put((byte) mLayout);
+		bb.put(mEncoding);
+		switch (mEncoding) {
+		case ENCODING_INDICES:
+			bb.putShort((short) mIndices.length);
+			for (int i : mIndices) {
+				bb.putShort((short) i);
+			}
+			for (int value : mValues) {
+				bb.putShort((short) value);
+			}
+			break;
+		case ENCODING_BITMAP:
+			bb.put(mMask);
+			for (int value : mValues) {
+				bb.putShort((short) value);
+			}
+			break;
+		case ENCODING_FULL:
+			bb.putInt(mStates.length);
+			for (long l : mStates) {
+				bb.putLong(l);
+			}
+			break;
+		}
+	}
+
+	/** Replaces the Palette of the section with the destination palette.
+	 *
+	 * @param states
+	 *            The packed source array, which is not changed.
+	 * @return The packed destination array. */
+	public long[] applyTo(CompoundTag section, long[] states) {
+		ListTag sourcePalette = (ListTag) section.getValue().get("Palette");
+		List<Tag> sourceEntries = sourcePalette == null ? new ArrayList<Tag>() : sourcePalette.getValue();
+		mPaletteDelta.applyTo(section, "Palette");
+		if (mEncoding == ENCODING_FULL) {
+			return mStates.clone();
+		}
+
+		boolean destSpanning = (mLayout & LAYOUT_DEST_SPANNING) != 0;
+		List<Tag> destEntries = ((ListTag) section.getValue().get("Palette")).getValue();
+		long[] result = new long[BlockStatesKernel.getLength(mDestBits, destSpanning)];
+		BlockStatesKernel.remap(states, mSourceBits, (mLayout & LAYOUT_SOURCE_SPANNING) != 0, calculateRemap(sourceEntries, destEntries), result, mDestBits,
+				destSpanning);
+
+		if (mEncoding == ENCODING_INDICES) {
+			for (int i = 0; i < mIndices.length; i++) {
+				BlockStatesKernel.set(result, mDestBits, destSpanning, mIndices[i], mValues[i]);
+			}
+		} else if (mEncoding == ENCODING_BITMAP) {
+			int v = 0;
+			for (int i = BitmaskKernel.nextSetBit(mMask, 0); i != -1; i = BitmaskKernel.nextSetBit(mMask, i + 1)) {
+				BlockStatesKernel.set(result, mDestBits, destSpanning, i, mValues[v++]);
+			}
+		}
+		return result;
+	}
+}
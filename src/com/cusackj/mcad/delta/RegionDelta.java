@@ -1,6 +1,5 @@
 package com.cusackj.mcad.delta;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -8,11 +7,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 import org.jnbt.CompoundTag;
@@ -21,7 +29,10 @@ import org.jnbt.NBTUtils;
 import org.jnbt.Tag;
 
 import com.cusackj.mcad.model.Chunk;
+import com.cusackj.mcad.model.RawRegionFile;
 import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+import com.cusackj.mcad.model.RegionPatcher;
 
 /** @author Jack Cusack */
 public class RegionDelta {
@@ -31,6 +42,15 @@ public class RegionDelta {
 			System.out.println("Path to .mca file required!");
 		}
 
+		// Optional third argument is the number of threads to diff chunks with
+		ExecutorService executor = null;
+		if (args.length > 2) {
+			int threads = Integer.parseInt(args[2]);
+			if (threads > 1) {
+				executor = new ForkJoinPool(threads);
+			}
+		}
+
 		File f = new File(args[0]);
 		if (!f.exists()) {
 			System.out.println("Could not find " + f.getAbsolutePath() + ".");
@@ -46,26 +66,32 @@ public class RegionDelta {
 			}
 		}
 
-		Region r1 = new Region(f);
 		if (f2 != null) {
-			Region r2 = new Region(f2);
-			RegionDelta delta = new RegionDelta(r1, r2);
-			
 			File mcad = new File(f2.getName() + "d");
-			delta.writeToFile(mcad);
+			writeDelta(f, f2, mcad, executor);
 			
+			Region r1 = new Region(f, null, executor);
+			Region r2 = new Region(f2, null, executor);
+
 			System.out.println("Writing expected output");
-			r2.write(new File("ExpectedOutput"));
+			r2.write(new File("ExpectedOutput"), executor);
 			System.out.println("Writing actual output");
-			delta.applyDelta(r1).write(new File(f.getName()));;
+			// Apply the delta as it is read back from the .mcad, the same way a peer would
+			RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+			reader.applyTo(r1).write(new File(f.getName()), executor);
+			reader.close();
 			
 		}
+		if (executor != null) {
+			executor.shutdown();
+		}
 	}
 
-	/** The timestamp on the region file for the source region. */
+	/** The newest chunk timestamp of the source region, which identifies the state of the region the delta applies to. 0 in
+	 * deltas written before VERSION_CHUNK_TIMESTAMP. */
 	private long mSourceTimestamp;
 
-	/** The timestamp on the region file for the destination region. */
+	/** The newest chunk timestamp of the destination region. */
 	private long mDestTimestamp;
 	/** Represents which chunks have changed.
 	 * Where a bit is set represents a changed chunk, and an entry in mChunkDeltas */
@@ -74,30 +100,19 @@ public class RegionDelta {
 	/** List of ChunkDeltas, length is however many set bits there are in mChangedChunkBits. */
 	private List<ChunkDelta> mChunkDeltas = new ArrayList<>();
 
+	/** Reads a whole .mcad stream into memory. Use RegionDeltaReader to apply one without holding every chunk delta. */
 	public RegionDelta(InputStream inputStream) throws IOException {
-		InputStream in = new GZIPInputStream(inputStream);
-		ByteArrayOutputStream byteArrayOut = new ByteArrayOutputStream();
-		while (in.available() > 0) {
-			byteArrayOut.write(in.read());
-		}
+		RegionDeltaReader reader = new RegionDeltaReader(inputStream);
 
-		ByteBuffer bb = ByteBuffer.wrap(byteArrayOut.toByteArray());
-
-		mSourceTimestamp = bb.getLong();
-		mDestTimestamp = bb.getLong();
-		bb.get(mChangedChunkBits);
+		mSourceTimestamp = reader.getSourceTimestamp();
+		mDestTimestamp = reader.getDestTimestamp();
+		mChangedChunkBits = reader.getChangedChunkBits();
 
 		mChunkDeltas = new ArrayList<>();
-
-		while (bb.remaining() >= 4) {
-
-			int chunkSize = bb.getInt();
-			byte[] chunkBytes = new byte[chunkSize];
-			bb.get(chunkBytes);
-			ChunkDelta d = new ChunkDelta(chunkBytes);
-			mChunkDeltas.add(d);
+		while (reader.hasNext()) {
+			mChunkDeltas.add(reader.next());
 		}
-
+		reader.close();
 	}
 
 	public RegionDelta(long sourceTime, long destTime, List<ChunkDelta> chunkDeltas, byte[] changedChunkBits) {
@@ -108,23 +123,207 @@ public class RegionDelta {
 	}
 
 	public RegionDelta(Region dst) {
-		calculateChunkDeltas(new Region(), dst);
+		calculateChunkDeltas(new Region(), dst, new DiffOptions());
 	}
 
 	public RegionDelta(Region src, Region dst) {
-		calculateChunkDeltas(src, dst);
+		calculateChunkDeltas(src, dst, new DiffOptions());
+	}
+
+	/** Diffs the two regions, building the chunk deltas concurrently on the given executor. The changed chunk bitmask and the
+	 * order of the chunk deltas are identical to the sequential constructor.
+	 * 
+	 * @param executor
+	 *            The executor to diff chunks on, or null to diff them on the calling thread. */
+	public RegionDelta(Region src, Region dst, ExecutorService executor) {
+		calculateChunkDeltas(src, dst, new DiffOptions(executor));
+	}
+
+	public RegionDelta(Region src, Region dst, DiffOptions options) {
+		calculateChunkDeltas(src, dst, options);
+	}
+
+	/** Diffs two region files, using their headers to decide which chunks need a delta. Chunks that have not changed are
+	 * never decoded, and nothing is decoded at all if the regions are identical. Both regions are opened lazily, so each
+	 * changed chunk is decoded when it is diffed and dropped again afterwards.
+	 * 
+	 * @param executor
+	 *            The executor to diff chunks on, or null to diff them on the calling thread. */
+	public RegionDelta(File src, File dst, ExecutorService executor) throws IOException {
+		this(src, dst, new DiffOptions(executor));
+	}
+
+	public RegionDelta(File src, File dst, DiffOptions options) throws IOException {
+		RegionPreScan scan = new RegionPreScan(src, dst, options.isContentCheck());
+		scan.printReport();
+		mSourceTimestamp = scan.getSourceTimestamp();
+		mDestTimestamp = scan.getDestTimestamp();
+		if (scan.isIdentical()) {
+			System.out.println("Regions are identical, no chunks need to be decoded");
+			return;
+		}
+
+		runChunkDiffTasks(planChunkDiffTasks(openRegion(src, options), openRegion(dst, options), options, scan), options.getExecutor());
+	}
+
+	/** Opens a region file lazily, reading its chunks through the options' chunk cache if there is one. */
+	private static Region openRegion(File f, DiffOptions options) {
+		Region region = new Region(f, true);
+		region.setChunkCache(options.getChunkCache());
+		return region;
+	}
+
+	/** Creates one chunk delta. Chunks are diffed independently of each other, so these can be run in any order. The chunks
+	 * are only decoded when the task runs, and are released from lazy regions once the delta has been created. */
+	private static class ChunkDiffTask implements Callable<ChunkDelta> {
+		private Region mSource;
+		private Region mDest;
+		private int mX;
+		private int mZ;
+		private VerificationPolicy mPolicy;
+		private double mFullChunkThreshold;
+		/** The chunk was saved again without changing, so neither chunk is decoded. */
+		private boolean mTouched;
+		/** Set once the task has run if the chunk delta was replaced by the whole chunk, as that was smaller. */
+		private boolean mReplaced = false;
+
+		ChunkDiffTask(Region source, Region dest, int x, int z, DiffOptions options) {
+			this(source, dest, x, z, options, false);
+		}
+
+		ChunkDiffTask(Region source, Region dest, int x, int z, DiffOptions options, boolean touched) {
+			mSource = source;
+			mDest = dest;
+			mX = x;
+			mZ = z;
+			mPolicy = options.getVerificationPolicy();
+			mFullChunkThreshold = options.getFullChunkThreshold();
+			mTouched = touched;
+		}
+
+		@Override
+		public ChunkDelta call() {
+			if (mTouched) {
+				return ChunkDelta.createTouch(mDest.getChunkTimestamp(mX, mZ));
+			}
+			if (!mDest.hasChunk(mX, mZ)) {
+				return new ChunkDelta();
+			}
+			if (!mSource.hasChunk(mX, mZ)) {
+				// A new chunk is copied as it is stored, if it can be written back that way
+				byte[] payload = getRawPayload(mDest, mX, mZ);
+				if (payload != null && payload[0] == RawRegionFile.COMPRESSION_DEFLATE) {
+					return ChunkDelta.createRaw(payload, mDest.getChunkTimestamp(mX, mZ));
+				}
+			}
+			Chunk destChunk = new Chunk(getChunkTag(mDest, mX, mZ), mX, mZ, mDest.getChunkTimestamp(mX, mZ));
+
+			ChunkDelta cd;
+			if (!mSource.hasChunk(mX, mZ)) {
+				cd = new ChunkDelta(destChunk, mPolicy);
+			} else {
+				Chunk sourceChunk = new Chunk(getChunkTag(mSource, mX, mZ), mX, mZ, mSource.getChunkTimestamp(mX, mZ));
+				cd = new ChunkDelta(sourceChunk, destChunk, mPolicy);
+				cd = chooseSmaller(cd);
+			}
+
+			mSource.releaseChunk(mX, mZ);
+			mDest.releaseChunk(mX, mZ);
+			return cd;
+		}
+
+		/** Compares the chunk delta with the stored destination chunk, and returns the whole chunk instead if the delta is not
+		 * enough smaller. The delta is only compressed to measure it if it is larger than the threshold before compression. */
+		private ChunkDelta chooseSmaller(ChunkDelta cd) {
+			byte[] payload = getRawPayload(mDest, mX, mZ);
+			if (payload == null || payload[0] != RawRegionFile.COMPRESSION_DEFLATE) {
+				return cd;
+			}
+			ChunkDelta full = ChunkDelta.createRaw(payload, mDest.getChunkTimestamp(mX, mZ));
+			double limit = full.getLengthInBytes() * mFullChunkThreshold;
+			if (cd.getLengthInBytes() < limit || getCompressedLength(cd.getBytes()) < limit) {
+				return cd;
+			}
+			mReplaced = true;
+			return full;
+		}
+	}
+
+	/** @return The length of the bytes after deflating them, as they would be in a .mcad. */
+	private static int getCompressedLength(byte[] bytes) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			byte[] buffer = new byte[4096];
+			int length = 0;
+			while (!deflater.finished()) {
+				length += deflater.deflate(buffer);
+			}
+			return length;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/** Counts how each chunk was encoded, for the report once they have all been diffed. */
+	private static class EncodingCounts {
+		private int mDeltas = 0;
+		private int mFull = 0;
+		private int mReplaced = 0;
+		private int mTouched = 0;
+		private int mRemoved = 0;
+
+		void count(ChunkDiffTask task, ChunkDelta cd) {
+			if (cd.getLengthInBytes() == 0) {
+				mRemoved++;
+			} else if (cd.isTouch()) {
+				mTouched++;
+			} else if (cd.isRaw()) {
+				mFull++;
+				if (task.mReplaced) {
+					mReplaced++;
+				}
+			} else {
+				mDeltas++;
+			}
+		}
+
+		void print() {
+			System.out.println("*********************************************************************************");
+			System.out.println(mDeltas + " chunks were encoded as deltas");
+			System.out.println(mFull + " chunks were encoded as whole chunks, " + mReplaced + " of them because the delta was larger");
+			System.out.println(mTouched + " chunks were encoded as a timestamp");
+			System.out.println(mRemoved + " chunks were encoded as removed");
+			System.out.println("*********************************************************************************");
+		}
 	}
 
-	private void calculateChunkDeltas(Region src, Region dst) {
+	private void calculateChunkDeltas(Region src, Region dst, DiffOptions options) {
+		mSourceTimestamp = src.getNewestTimestamp();
+		mDestTimestamp = dst.getNewestTimestamp();
+		runChunkDiffTasks(planChunkDiffTasks(src, dst, options, null), options.getExecutor());
+	}
+
+	/** Works out which chunks need a chunk delta from their timestamps, and sets their bits in mChangedChunkBits. No chunk is
+	 * decoded here.
+	 * 
+	 * @param scan
+	 *            The pre-scan of the region files, used to find chunks that were only touched. May be null.
+	 * @return A task for each set bit, in bitmask order. */
+	private List<ChunkDiffTask> planChunkDiffTasks(Region src, Region dst, DiffOptions options, RegionPreScan scan) {
+		// Tasks are queued in bitmask order, so mChunkDeltas ends up in the same order however they are run
+		List<ChunkDiffTask> tasks = new ArrayList<>();
 
 		// If these two regions are not for the correct space, then an exception should be thrown TODO
 		if (!(src.getX() == dst.getX()) || !(src.getZ() == dst.getZ()))
-			return;
+			return tasks;
 		int regionX = src.getX();
 		int regionZ = src.getZ();
 
 		// For outputting result.
 		int changedChunks = 0;
+		int touchedChunks = 0;
 		int newChunks = 0;
 		int removedChunks = 0;
 		int ignoredChunks = 0;
@@ -136,15 +335,15 @@ public class RegionDelta {
 				if (src.hasChunk(x, z) && dst.hasChunk(x, z)) {
 					if (src.getChunkTimestamp(x, z) != dst.getChunkTimestamp(x, z)) {
 
-						CompoundTag sourceChunk = getChunkTag(src, x, z);
-						CompoundTag destChunk = getChunkTag(dst, x, z);
-
 						setMaskBit(mChangedChunkBits, x, z);
 
-
-						ChunkDelta cd = new ChunkDelta(new Chunk(sourceChunk, x, z, src.getChunkTimestamp(x, z)), new Chunk(destChunk, x, z, dst.getChunkTimestamp(x, z)));
-						mChunkDeltas.add(cd);
-						changedChunks++;
+						boolean touched = scan != null && scan.getChange(x, z) == RegionPreScan.ChunkChange.TOUCHED;
+						tasks.add(new ChunkDiffTask(src, dst, x, z, options, touched));
+						if (touched) {
+							touchedChunks++;
+						} else {
+							changedChunks++;
+						}
 						continue;
 					} else {
 						ignoredChunks++;
@@ -154,12 +353,9 @@ public class RegionDelta {
 
 				// If region2 has new chunks
 				if (!src.hasChunk(x, z) && dst.hasChunk(x, z)) {
-					CompoundTag destChunk = getChunkTag(dst, x, z);
-
 					setMaskBit(mChangedChunkBits, x, z);
 
-					ChunkDelta cd = new ChunkDelta(new Chunk(destChunk, x, z, dst.getChunkTimestamp(x, z)));
-					mChunkDeltas.add(cd);
+					tasks.add(new ChunkDiffTask(src, dst, x, z, options));
 					newChunks++;
 					continue;
 				}
@@ -167,8 +363,7 @@ public class RegionDelta {
 				if (src.hasChunk(x, z) && !dst.hasChunk(x, z)) {
 					setMaskBit(mChangedChunkBits, x, z);
 
-					ChunkDelta cd = new ChunkDelta();
-					mChunkDeltas.add(cd);
+					tasks.add(new ChunkDiffTask(src, dst, x, z, options));
 					removedChunks++;
 					continue;
 				}
@@ -178,18 +373,176 @@ public class RegionDelta {
 
 		// DELTA REPORT
 		System.out.println("*********************************************************************************");
-		System.out.println(mChunkDeltas.size() + " chunk deltas created out of a possible " + totalPossible);
+		System.out.println(tasks.size() + " chunk deltas created out of a possible " + totalPossible);
 		System.out.println(changedChunks + " chunks have been changed.");
+		if (touchedChunks > 0) {
+			System.out.println(touchedChunks + " chunks have only been touched");
+		}
 		System.out.println(newChunks + " chunks have been created");
 		System.out.println(removedChunks + " chunks have been removed");
 		System.out.println(ignoredChunks + " have been ignored");
 		System.out.println("*********************************************************************************");
 
+		return tasks;
 	}
 	
+	private void runChunkDiffTasks(List<ChunkDiffTask> tasks, ExecutorService executor) {
+		EncodingCounts counts = new EncodingCounts();
+		if (executor == null) {
+			for (ChunkDiffTask task : tasks) {
+				ChunkDelta cd = task.call();
+				counts.count(task, cd);
+				mChunkDeltas.add(cd);
+			}
+			counts.print();
+			return;
+		}
+
+		try {
+			// invokeAll returns the futures in the same order as the tasks
+			List<Future<ChunkDelta>> futures = executor.invokeAll(tasks);
+			for (int i = 0; i < futures.size(); i++) {
+				ChunkDelta cd = futures.get(i).get();
+				counts.count(tasks.get(i), cd);
+				mChunkDeltas.add(cd);
+			}
+			counts.print();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while diffing chunks", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not diff chunk", e.getCause());
+		}
+	}
+
+	/** Diffs two region files straight into a .mcad file. Each chunk delta is serialized and compressed as soon as it has been
+	 * created and is not kept afterwards, and both regions are lazy, so peak memory is about one chunk per diffing thread
+	 * rather than the whole delta plus the whole destination region.
+	 * 
+	 * @param executor
+	 *            The executor to diff chunks on, or null to diff them on the calling thread. */
+	public static void writeDelta(File src, File dst, File mcad, ExecutorService executor) throws IOException {
+		writeDelta(src, dst, mcad, new DiffOptions(executor));
+	}
+
+	/** As writeDelta, with the executor, verification policy and container taken from the options.
+	 * 
+	 * @see IndexedRegionDelta */
+	public static void writeDelta(File src, File dst, File mcad, DiffOptions options) throws IOException {
+		RegionPreScan scan = new RegionPreScan(src, dst, options.isContentCheck());
+		scan.printReport();
+
+		RegionDelta delta = new RegionDelta(scan.getSourceTimestamp(), scan.getDestTimestamp(), new ArrayList<ChunkDelta>(), new byte[128]);
+		if (scan.isIdentical()) {
+			System.out.println("Regions are identical, no chunks need to be decoded");
+		}
+		// Region files stay open until closed, which matters when many regions are diffed in one run
+		try (Region source = scan.isIdentical() ? null : openRegion(src, options);
+				Region dest = scan.isIdentical() ? null : openRegion(dst, options)) {
+			List<ChunkDiffTask> tasks = source == null ? new ArrayList<ChunkDiffTask>() : delta.planChunkDiffTasks(source, dest, options, scan);
+
+			ChunkDeltaOutput writer = null;
+			try {
+				writer = openOutput(mcad, delta, options);
+				writeChunkDiffTasks(tasks, options.getExecutor(), writer);
+				writer.close();
+			} catch (Throwable t) {
+				// A peer must never pick up a truncated .mcad, and the original failure is what is thrown
+				if (writer != null) {
+					try {
+						writer.abort();
+					} catch (IOException e) {
+						t.addSuppressed(e);
+					}
+				}
+				try {
+					Files.deleteIfExists(mcad.toPath());
+				} catch (IOException e) {
+					t.addSuppressed(e);
+				}
+				throw t;
+			}
+			System.out.println("Streamed " + writer.getChunkDeltasWritten() + " chunk deltas [" + writer.getLength() + "]");
+			System.out.println("after compression " + mcad.length() + " bytes");
+		}
+	}
+
+	/** Opens the .mcad for writing, closing the file again if its header can not be written. */
+	private static ChunkDeltaOutput openOutput(File mcad, RegionDelta delta, DiffOptions options) throws IOException {
+		if (options.isIndexed()) {
+			return new IndexedRegionDeltaWriter(mcad, delta.mSourceTimestamp, delta.mDestTimestamp, delta.mChangedChunkBits);
+		}
+		FileOutputStream out = new FileOutputStream(mcad);
+		try {
+			return new RegionDeltaWriter(out, delta.mSourceTimestamp, delta.mDestTimestamp, delta.mChangedChunkBits);
+		} catch (IOException | RuntimeException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	private static void writeChunkDiffTasks(List<ChunkDiffTask> tasks, ExecutorService executor, ChunkDeltaOutput writer) throws IOException {
+		EncodingCounts counts = new EncodingCounts();
+		if (executor == null) {
+			for (ChunkDiffTask task : tasks) {
+				ChunkDelta cd = task.call();
+				counts.count(task, cd);
+				writer.write(cd);
+			}
+			counts.print();
+			return;
+		}
+
+		// Only a bounded number of chunk deltas are in flight, and they are written in the order they were submitted
+		int window = getThreads(executor) * 2;
+		LinkedList<Future<ChunkDelta>> pending = new LinkedList<>();
+		int next = 0;
+		int written = 0;
+		try {
+			while (next < tasks.size() || !pending.isEmpty()) {
+				while (next < tasks.size() && pending.size() < window) {
+					pending.add(executor.submit(tasks.get(next)));
+					next++;
+				}
+				ChunkDelta cd = pending.removeFirst().get();
+				counts.count(tasks.get(written++), cd);
+				writer.write(cd);
+			}
+			counts.print();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while diffing chunks", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not diff chunk", e.getCause());
+		} finally {
+			// Empty unless the diff failed, in which case nothing more is written and the regions are about to be closed
+			for (Future<ChunkDelta> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/** @return The number of threads the executor runs tasks on, or the number of processors if that can not be told. */
+	private static int getThreads(ExecutorService executor) {
+		if (executor instanceof ForkJoinPool) {
+			return ((ForkJoinPool) executor).getParallelism();
+		}
+		if (executor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			// A cached pool has no maximum, and starts as many threads as it is given tasks
+			if (pool.getMaximumPoolSize() < Integer.MAX_VALUE) {
+				return pool.getMaximumPoolSize();
+			}
+			return Math.max(pool.getCorePoolSize(), Runtime.getRuntime().availableProcessors());
+		}
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/** Sets the bit of the chunk at world coordinates x, z, which is indexed by its position within the region. */
 	public void setMaskBit(byte[] array, int x, int z){
-		array[(int) Math.floor((x + z * 32) / 8d)] |= 1 << ((x + z * 32) % 8);
-		System.out.println("Set bit " + (int) Math.floor((x + z * 32)) + " for " + x + ", "  + z);
+		int bit = RegionHeader.getIndex(x, z);
+		array[bit / 8] |= 1 << (bit % 8);
+		System.out.println("Set bit " + bit + " for " + x + ", "  + z);
 	}
 	
 	public int getXFromMask(int bit){
@@ -200,108 +553,408 @@ public class RegionDelta {
 		return (int) Math.floor((bit - getXFromMask(bit)) / 32);
 	}
 
-	private CompoundTag getChunkTag(Region r, int x, int z) {
+	public long getSourceTimestamp() {
+		return mSourceTimestamp;
+	}
+
+	public long getDestTimestamp() {
+		return mDestTimestamp;
+	}
+
+	public byte[] getChangedChunkBits() {
+		return mChangedChunkBits;
+	}
+
+	public List<ChunkDelta> getChunkDeltas() {
+		return mChunkDeltas;
+	}
+
+	private static CompoundTag getChunkTag(Region r, int x, int z) {
 		return r.getChunk(x, z).getTag();
 	}
 
+	/** @return The stored payload of a chunk, or null if it can not be read, in which case the chunk should be decoded. */
+	private static byte[] getRawPayload(Region r, int x, int z) {
+		try {
+			return r.getRawChunk(x, z);
+		} catch (IOException e) {
+			System.out.println("Could not read the payload of chunk [" + x + ", " + z + "].");
+			return null;
+		}
+	}
+
+	static final int CHUNK_CHANGED = 0;
+	static final int CHUNK_CREATED = 1;
+	static final int CHUNK_REMOVED = 2;
+	static final int CHUNK_TOUCHED = 3;
+
 	public Region applyDelta(Region src) throws Exception {
 		//TODO CLONE
 		
 		
 		int totalChunks = src.getNumberOfChunks();
-		int chunksCreated = 0;
-		int chunksChanged = 0;
-		int chunksRemoved = 0;
+		int[] counts = new int[4];
 		
 		System.out.println("Preparing to process " + mChunkDeltas.size() + " changes to " + totalChunks + " chunks");
 		
-		int bit = 0;
+		int bit = -1;
 		for (ChunkDelta cDelta : mChunkDeltas) {
 			//Use the bitmask to determine the x+y of this chunk 
-			while(!isBitSet(mChangedChunkBits, bit)){
-				bit++;
-			}
+			bit = BitmaskKernel.nextSetBit(mChangedChunkBits, bit + 1);
 			
 			int x = getXFromMask(bit);
 			int z = getZFromMask(bit);
 			
-			
-			bit++;
-			
-			Chunk srcChunk = src.getChunk(x, z);
+			counts[applyChunkDelta(src, cDelta, x, z, mDestTimestamp)]++;
+		}
+		
+		printMergeReport(totalChunks, counts);
+		return src;
+	}
+
+	/** Applies a chain of .mcad files, in order, to one region in memory. Every link is checked before anything is applied:
+	 * each delta must start from the destination timestamp of the one before it. Write the region once afterwards. With a
+	 * lazy region, chunks that no delta touches are never decoded, and are copied as they are stored when it is written.
+	 * 
+	 * @throws IOException
+	 *             If a file can not be read, or the files do not form a chain.
+	 * @throws IllegalStateException
+	 *             If a chunk does not match the hash of its destination once its delta has been applied. */
+	public static Region applyChain(Region src, List<File> mcads) throws IOException {
+		long previousDest = 0;
+		for (int i = 0; i < mcads.size(); i++) {
+			long[] timestamps = readTimestamps(mcads.get(i));
+			if (i > 0 && timestamps[0] != previousDest) {
+				throw new IOException(mcads.get(i).getName() + " starts from " + timestamps[0] + ", not from " + previousDest + " where "
+						+ mcads.get(i - 1).getName() + " ends");
+			}
+			previousDest = timestamps[1];
+		}
 
-			if (cDelta.getLengthInBytes() == 0) {
-				src.removeChunk(x, z);
-				chunksRemoved++;
+		for (File mcad : mcads) {
+			if (DeltaFormat.isIndexed(mcad)) {
+				new IndexedRegionDelta(mcad).applyTo(src);
+				continue;
+			}
+			RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+			try {
+				reader.applyTo(src);
+			} finally {
+				reader.close();
+			}
+		}
+		return src;
+	}
+
+	/** Applies a .mcad to a region file in place. Only the sectors of the chunks the delta changes and the header are
+	 * written, and the header is journaled, so an interrupted apply leaves the region as it was or finishes it the next time
+	 * it is patched. See RegionPatcher.
+	 * 
+	 * @throws IOException
+	 *             If the region is not named r.x.z.mca, is not the one the delta was diffed from, or a patched chunk does not
+	 *             match the hash of its destination. Nothing is committed then, and the region is left as it was. */
+	public static void applyInPlace(File region, File mcad) throws IOException {
+		int[] position = parseRegionName(region);
+		long sourceTimestamp = readTimestamps(mcad)[0];
+		RegionPatcher patcher = new RegionPatcher(region);
+		try {
+			// Deltas written before VERSION_CHUNK_TIMESTAMP have no source timestamp to check
+			if (sourceTimestamp != 0 && patcher.getNewestTimestamp() != sourceTimestamp) {
+				throw new IOException(mcad.getName() + " applies to " + region.getName() + " at " + sourceTimestamp + ", not at "
+						+ patcher.getNewestTimestamp());
+			}
+			int totalChunks = patcher.getNumberOfChunks();
+			int[] counts = new int[4];
+			if (DeltaFormat.isIndexed(mcad)) {
+				IndexedRegionDelta delta = new IndexedRegionDelta(mcad);
+				byte[] bits = delta.getChangedChunkBits();
+				for (int bit = BitmaskKernel.nextSetBit(bits, 0); bit != -1; bit = BitmaskKernel.nextSetBit(bits, bit + 1)) {
+					int x = bit % 32;
+					int z = bit / 32;
+					counts[patchChunk(patcher, delta.getChunkDelta(x, z), position[0] * 32 + x, position[1] * 32 + z, delta.getDestTimestamp())]++;
+				}
 			} else {
-				if (srcChunk == null) {
-					// Create an empty chunk, then apply delta to it
-					Map<String, Tag> contents = new HashMap<>();
-					Map<String, Tag> levelContents = new HashMap<>();
-					CompoundTag levelTag = new CompoundTag("Level", levelContents);
-					contents.put("Level", levelTag);
-					levelTag.getValue().put("xPos", new IntTag("xPos", x));
-					levelTag.getValue().put("zPos", new IntTag("zPos", z));
-					
-					Chunk c = new Chunk(new CompoundTag("", contents), x, z, mDestTimestamp);
-					cDelta.applyDelta(c);
-					src.setChunk(c);
-					chunksCreated++;
-				} else {
-					// Apply delta to srcChunk
-					srcChunk.setLastModified(mDestTimestamp);
-					Chunk c = cDelta.applyDelta(srcChunk);
-					src.setChunk(c);
-					chunksChanged++;
+				RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+				try {
+					while (reader.hasNext()) {
+						ChunkDelta cDelta = reader.next();
+						counts[patchChunk(patcher, cDelta, position[0] * 32 + reader.getX(), position[1] * 32 + reader.getZ(), reader.getDestTimestamp())]++;
+					}
+				} finally {
+					reader.close();
 				}
 			}
+			patcher.commit();
+			printMergeReport(totalChunks, counts);
+			System.out.println("Patched " + region.getName() + " in place [" + patcher.getBytesWritten() + "]");
+		} finally {
+			patcher.close();
+		}
+	}
+
+	/** @return The region x and z of a file named r.x.z.mca.
+	 * @throws IOException
+	 *             If the file is not named that way, as its chunks would be patched with the wrong world coordinates. */
+	private static int[] parseRegionName(File region) throws IOException {
+		String[] parts = region.getName().split("\\.");
+		if (parts.length == 4 && parts[0].equalsIgnoreCase("r") && parts[3].equalsIgnoreCase("mca")) {
+			try {
+				return new int[] { Integer.parseInt(parts[1]), Integer.parseInt(parts[2]) };
+			} catch (NumberFormatException e) {
+			}
+		}
+		throw new IOException(region.getName() + " is not named r.x.z.mca, so the position of its region is not known");
+	}
+
+	/** As applyChunkDelta, on the stored payload of the chunk rather than a region. Only changed chunks are decoded.
+	 * x and z are world coordinates.
+	 * 
+	 * @return CHUNK_CHANGED, CHUNK_CREATED, CHUNK_REMOVED or CHUNK_TOUCHED */
+	private static int patchChunk(RegionPatcher patcher, ChunkDelta cDelta, int x, int z, long destTimestamp) throws IOException {
+		long timestamp = cDelta.hasTimestamp() ? cDelta.getTimestamp() : destTimestamp;
+		boolean existed = patcher.hasChunk(x, z);
+		if (cDelta.isRaw()) {
+			patcher.writePayload(x, z, cDelta.getPayload(), timestamp);
+			return existed ? CHUNK_CHANGED : CHUNK_CREATED;
+		}
+		if (cDelta.getLengthInBytes() == 0) {
+			patcher.removeChunk(x, z);
+			return CHUNK_REMOVED;
+		}
+		if (cDelta.isTouch()) {
+			if (!existed) {
+				throw new IllegalStateException("Chunk " + x + ", " + z + " was touched but is not in the source region");
+			}
+			patcher.setTimestamp(x, z, timestamp);
+			return CHUNK_TOUCHED;
+		}
+		Chunk c = existed ? new Chunk(RawRegionFile.readPayload(patcher.readPayload(x, z)), x, z, timestamp) : createEmptyChunk(x, z, timestamp);
+		c = cDelta.applyDelta(c);
+		if (!cDelta.verify(c)) {
+			// Thrown before the commit, so the region file is not changed
+			throw new IOException("Chunk " + x + ", " + z + " does not match the hash of its destination");
+		}
+		patcher.writePayload(x, z, RawRegionFile.createPayload(c.getTag()), timestamp);
+		return existed ? CHUNK_CHANGED : CHUNK_CREATED;
+	}
+
+	/** @return The source and destination timestamps of a .mcad, without reading its chunk deltas. */
+	private static long[] readTimestamps(File mcad) throws IOException {
+		if (DeltaFormat.isIndexed(mcad)) {
+			IndexedRegionDelta delta = new IndexedRegionDelta(mcad);
+			return new long[] { delta.getSourceTimestamp(), delta.getDestTimestamp() };
+		}
+		RegionDeltaReader reader = new RegionDeltaReader(new FileInputStream(mcad));
+		try {
+			return new long[] { reader.getSourceTimestamp(), reader.getDestTimestamp() };
+		} finally {
+			reader.close();
+		}
+	}
+
+	/** Reads a stream or indexed .mcad into memory. */
+	public static RegionDelta read(File mcad) throws IOException {
+		if (!DeltaFormat.isIndexed(mcad)) {
+			return new RegionDelta(new FileInputStream(mcad));
+		}
+		IndexedRegionDelta indexed = new IndexedRegionDelta(mcad);
+		byte[] bits = indexed.getChangedChunkBits();
+		List<ChunkDelta> deltas = new ArrayList<>();
+		for (int bit = BitmaskKernel.nextSetBit(bits, 0); bit != -1; bit = BitmaskKernel.nextSetBit(bits, bit + 1)) {
+			deltas.add(indexed.getChunkDelta(bit % 32, bit / 32));
+		}
+		return new RegionDelta(indexed.getSourceTimestamp(), indexed.getDestTimestamp(), deltas, bits);
+	}
+
+	/** Squashes a chain of deltas into one, see squash(RegionDelta). */
+	public static RegionDelta squash(List<RegionDelta> chain) {
+		RegionDelta result = chain.get(0);
+		for (int i = 1; i < chain.size(); i++) {
+			result = result.squash(chain.get(i));
+		}
+		return result;
+	}
+
+	/** Combines this delta with the one that follows it into a single delta, from this delta's source to the next delta's
+	 * destination. Only the chunk delta records are worked on, no region is read.
+	 * 
+	 * A removed or raw chunk replaces whatever came before it, and a touch only moves the timestamp of the record before it.
+	 * A delta after a raw or removed chunk is applied to that chunk here, giving a raw chunk. Two deltas of a chunk only the
+	 * applier has are kept as a chain and applied one after the other, as their list and section patches refer to positions
+	 * in their own source chunk.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If next does not start from this delta's destination. */
+	public RegionDelta squash(RegionDelta next) {
+		if (next.mSourceTimestamp != mDestTimestamp) {
+			throw new IllegalArgumentException("A delta from " + next.mSourceTimestamp + " does not follow a delta to " + mDestTimestamp);
+		}
+		ChunkDelta[] records = getRecords();
+		ChunkDelta[] later = next.getRecords();
+
+		byte[] bits = new byte[128];
+		List<ChunkDelta> deltas = new ArrayList<>();
+		for (int bit = 0; bit < records.length; bit++) {
+			ChunkDelta record = records[bit];
+			if (later[bit] != null) {
+				record = record == null ? later[bit] : squashChunk(record, later[bit], getXFromMask(bit), getZFromMask(bit));
+			}
+			if (record != null) {
+				bits[bit / 8] |= 1 << (bit % 8);
+				deltas.add(record);
+			}
+		}
+		return new RegionDelta(mSourceTimestamp, next.mDestTimestamp, deltas, bits);
+	}
+
+	/** @return The chunk delta of each chunk by its bit, null for unchanged chunks. Deltas without a timestamp are given the
+	 *         region's destination timestamp, as they would be when applied. */
+	private ChunkDelta[] getRecords() {
+		ChunkDelta[] records = new ChunkDelta[RegionHeader.CHUNKS];
+		int bit = -1;
+		for (ChunkDelta cDelta : mChunkDeltas) {
+			bit = BitmaskKernel.nextSetBit(mChangedChunkBits, bit + 1);
+			records[bit] = cDelta.getLengthInBytes() == 0 || cDelta.hasTimestamp() ? cDelta : cDelta.withTimestamp(mDestTimestamp);
+		}
+		return records;
+	}
+
+	/** @return One record with the effect of applying first and then second to the chunk. */
+	private static ChunkDelta squashChunk(ChunkDelta first, ChunkDelta second, int x, int z) {
+		if (second.getLengthInBytes() == 0 || second.isRaw()) {
+			return second;
+		}
+		if (second.isTouch()) {
+			if (first.getLengthInBytes() == 0) {
+				throw new IllegalStateException("Chunk " + x + ", " + z + " was touched after it was removed");
+			}
+			return first.withTimestamp(second.getTimestamp());
+		}
+		if (first.isTouch()) {
+			return second;
+		}
+		if (first.getLengthInBytes() == 0 || first.isRaw()) {
+			// The whole chunk is known, so the delta can be applied to it now
+			try {
+				Chunk c = first.isRaw() ? new Chunk(RawRegionFile.readPayload(first.getPayload()), x, z, second.getTimestamp())
+						: createEmptyChunk(x, z, second.getTimestamp());
+				second.applyDelta(c);
+				verifyChunk(second, c);
+				return ChunkDelta.createRaw(RawRegionFile.createPayload(c.getTag()), second.getTimestamp());
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not squash chunk " + x + ", " + z, e);
+			}
+		}
+		return ChunkDelta.createChain(Arrays.asList(first, second));
+	}
+
+	/** Applies one chunk delta to the chunk at x, z in the region.
+	 * 
+	 * @param destTimestamp
+	 *            The timestamp to give the chunk if the delta does not have one.
+	 * @return CHUNK_CHANGED, CHUNK_CREATED, CHUNK_REMOVED or CHUNK_TOUCHED */
+	static int applyChunkDelta(Region src, ChunkDelta cDelta, int x, int z, long destTimestamp) {
+		// Deltas hold positions within the region, a region is addressed by world coordinates
+		x = src.getX() * 32 + (x & 31);
+		z = src.getZ() * 32 + (z & 31);
+		if (cDelta.hasTimestamp()) {
+			destTimestamp = cDelta.getTimestamp();
+		}
+		if (cDelta.isRaw()) {
+			// Written back to the region file as it is, neither chunk is decoded
+			boolean existed = src.hasChunk(x, z);
+			src.setRawChunk(x, z, cDelta.getPayload(), cDelta.getTimestamp());
+			return existed ? CHUNK_CHANGED : CHUNK_CREATED;
+		}
+		if (cDelta.getLengthInBytes() == 0) {
+			src.removeChunk(x, z);
+			return CHUNK_REMOVED;
+		}
+		if (cDelta.isTouch()) {
+			// Only the timestamp changes, so the chunk is not decoded and its stored payload is written as it is
+			if (!src.setChunkTimestamp(x, z, cDelta.getTimestamp())) {
+				throw new IllegalStateException("Chunk " + x + ", " + z + " was touched but is not in the source region");
+			}
+			return CHUNK_TOUCHED;
+		}
+		Chunk srcChunk = src.getChunk(x, z);
+		if (srcChunk == null) {
+			// Create an empty chunk, then apply delta to it
+			Chunk c = createEmptyChunk(x, z, destTimestamp);
+			cDelta.applyDelta(c);
+			verifyChunk(cDelta, c);
+			src.setChunk(c);
+			return CHUNK_CREATED;
+		}
+		// Apply delta to srcChunk
+		srcChunk.setLastModified(destTimestamp);
+		Chunk c = cDelta.applyDelta(srcChunk);
+		verifyChunk(cDelta, c);
+		src.setChunk(c);
+		return CHUNK_CHANGED;
+	}
+
+	/** @return A chunk with nothing but its position, for a delta of a new chunk to be applied to. */
+	private static Chunk createEmptyChunk(int x, int z, long timestamp) {
+		Map<String, Tag> contents = new HashMap<>();
+		Map<String, Tag> levelContents = new HashMap<>();
+		CompoundTag levelTag = new CompoundTag("Level", levelContents);
+		contents.put("Level", levelTag);
+		levelTag.getValue().put("xPos", new IntTag("xPos", x));
+		levelTag.getValue().put("zPos", new IntTag("zPos", z));
+		return new Chunk(new CompoundTag("", contents), x, z, timestamp);
+	}
+
+	/** @throws IllegalStateException
+	 *             If the chunk does not match the hash of the delta's destination, as applyInPlace refuses such a chunk too. */
+	private static void verifyChunk(ChunkDelta cDelta, Chunk c) {
+		if (!cDelta.verify(c)) {
+			throw new IllegalStateException("Chunk " + c.getX() + ", " + c.getZ() + " does not match the hash of its destination");
 		}
-		
-		printMergeReport(totalChunks, chunksChanged, chunksCreated, chunksRemoved);
-		return src;
 	}
 	
-	private void printMergeReport(int totalChunks, int chunksChanged, int chunksCreated, int chunksRemoved){
+	/** @param counts
+	 *            The number of chunk deltas applied, indexed by the result of applyChunkDelta. */
+	static void printMergeReport(int totalChunks, int[] counts){
 		System.out.println("*********************************************************************************");
 		System.out.println(totalChunks + " chunks in region file");
-		System.out.println(chunksChanged + " chunks were changed.");
-		System.out.println(chunksCreated + " chunks were created");
-		System.out.println(chunksRemoved + " chunks were removed");
+		System.out.println(counts[CHUNK_CHANGED] + " chunks were changed.");
+		if (counts[CHUNK_TOUCHED] > 0) {
+			System.out.println(counts[CHUNK_TOUCHED] + " chunks were touched");
+		}
+		System.out.println(counts[CHUNK_CREATED] + " chunks were created");
+		System.out.println(counts[CHUNK_REMOVED] + " chunks were removed");
 		System.out.println("*********************************************************************************");
 	}
 
-	private boolean isBitSet(byte[] target, int bitOffset) {
-		int index = (int) Math.floor(bitOffset / 8);
-		int bitIndex = bitOffset % 8;
-		byte result = (byte) ((target[index] >> bitIndex) & 1);
-		return result == 1;
-	}
-
 	public void writeToFile(File f) throws IOException {
 		if (!f.exists()) {
 			System.out.println("Creating " + f.getName() + "...");
 			f.createNewFile();
 		}
-		int length = 16 + 128;
-		for (ChunkDelta cd : mChunkDeltas) {
-			length += cd.getLengthInBytes() + 4;// +4 because of size field;
+		RegionDeltaWriter writer = new RegionDeltaWriter(new FileOutputStream(f), mSourceTimestamp, mDestTimestamp, mChangedChunkBits);
+		try {
+			for (ChunkDelta d : mChunkDeltas) {
+				writer.write(d);
+			}
+		} finally {
+			writer.close();
 		}
-		OutputStream out = new GZIPOutputStream(new FileOutputStream(f));
-		ByteBuffer buffer = ByteBuffer.allocate(length);
-
-		buffer.putLong(mSourceTimestamp);
-		buffer.putLong(mDestTimestamp);
-		buffer.put(mChangedChunkBits);
+		System.out.println("Wrote " + mChunkDeltas.size() + " chunk deltas [" + writer.getLength() + "]");
+		System.out.println("after compression " + f.length() + " bytes");
+	}
 
-		for (ChunkDelta d : mChunkDeltas) {
-			buffer.putInt(d.getLengthInBytes());
-			buffer.put(d.getBytes());
+	/** Writes this delta as an indexed .mcad, where each chunk delta can be read without reading the rest of the file. */
+	public void writeToIndexedFile(File f) throws IOException {
+		IndexedRegionDeltaWriter writer = new IndexedRegionDeltaWriter(f, mSourceTimestamp, mDestTimestamp, mChangedChunkBits);
+		try {
+			for (ChunkDelta d : mChunkDeltas) {
+				writer.write(d);
+			}
+		} finally {
+			writer.close();
 		}
-		System.out.println("Wrote " + mChunkDeltas.size() + " chunk deltas [" + buffer.array().length + "]");
-
-		out.write(buffer.array());
-		out.flush();
-		out.close();
+		System.out.println("Wrote " + mChunkDeltas.size() + " indexed chunk deltas [" + writer.getLength() + "]");
 		System.out.println("after compression " + f.length() + " bytes");
 	}
 
@@ -0,0 +1,116 @@
+package com.cusackj.mcad.delta;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import com.cusackj.mcad.model.Region;
+
+/** Reads a .mcad stream one chunk delta at a time, so only the header, the bitmask and the current chunk delta are ever held
+ * in memory. */
+public class RegionDeltaReader implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private DataInputStream mIn;
+	private int mVersion;
+
+	private long mSourceTimestamp;
+	private long mDestTimestamp;
+	private byte[] mChangedChunkBits = new byte[128];
+
+	/** Number of chunk deltas that have not been read yet, one for each set bit left in mChangedChunkBits. */
+	private int mRemaining;
+	/** The bit of the chunk delta that was read last, -1 before the first one. */
+	private int mBit = -1;
+
+	public RegionDeltaReader(InputStream inputStream) throws IOException {
+		// Version 1 files are a bare gzip stream, later versions start with STREAM_MAGIC and a version byte
+		BufferedInputStream buffered = new BufferedInputStream(inputStream, BUFFER_SIZE);
+		buffered.mark(5);
+		DataInputStream header = new DataInputStream(buffered);
+		if (header.readInt() == DeltaFormat.STREAM_MAGIC) {
+			mVersion = header.readUnsignedByte();
+			if (mVersion > DeltaFormat.VERSION) {
+				throw new IOException("Stream is version " + mVersion + ", only up to " + DeltaFormat.VERSION + " can be read");
+			}
+		} else {
+			buffered.reset();
+			mVersion = DeltaFormat.VERSION_LEGACY;
+		}
+
+		mIn = new DataInputStream(new BufferedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE), BUFFER_SIZE));
+
+		mSourceTimestamp = mIn.readLong();
+		mDestTimestamp = mIn.readLong();
+		mIn.readFully(mChangedChunkBits);
+
+		mRemaining = BitmaskKernel.countBits(mChangedChunkBits);
+	}
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	public long getSourceTimestamp() {
+		return mSourceTimestamp;
+	}
+
+	public long getDestTimestamp() {
+		return mDestTimestamp;
+	}
+
+	public byte[] getChangedChunkBits() {
+		return mChangedChunkBits;
+	}
+
+	public boolean hasNext() {
+		return mRemaining > 0;
+	}
+
+	/** Reads the next chunk delta, in bitmask order. Its position is given by getX and getZ afterwards. */
+	public ChunkDelta next() throws IOException {
+		if (mRemaining == 0) {
+			throw new IllegalStateException("No chunk deltas left in the stream");
+		}
+		mBit = BitmaskKernel.nextSetBit(mChangedChunkBits, mBit + 1);
+		mRemaining--;
+
+		byte[] chunkBytes = new byte[mIn.readInt()];
+		mIn.readFully(chunkBytes);
+		return new ChunkDelta(chunkBytes, mVersion);
+	}
+
+	/** @return The x position of the chunk delta last returned by next. */
+	public int getX() {
+		return mBit % 32;
+	}
+
+	/** @return The z position of the chunk delta last returned by next. */
+	public int getZ() {
+		return mBit / 32;
+	}
+
+	/** Applies every remaining chunk delta to the region as it is read, without keeping any of them. */
+	public Region applyTo(Region src) throws IOException {
+		int totalChunks = src.getNumberOfChunks();
+		int[] counts = new int[4];
+
+		System.out.println("Preparing to stream " + mRemaining + " changes to " + totalChunks + " chunks");
+
+		while (hasNext()) {
+			ChunkDelta cDelta = next();
+			counts[RegionDelta.applyChunkDelta(src, cDelta, getX(), getZ(), mDestTimestamp)]++;
+		}
+
+		RegionDelta.printMergeReport(totalChunks, counts);
+		return src;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mIn.close();
+	}
+}
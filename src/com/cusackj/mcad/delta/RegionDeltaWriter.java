@@ -0,0 +1,76 @@
+package com.cusackj.mcad.delta;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/** Writes a .mcad stream one chunk delta at a time. The header and bitmask are written up front, then each chunk delta is
+ * serialized and compressed as soon as it is written, so the caller can drop it straight away.
+ *
+ * Chunk deltas must be written in bitmask order, one for each set bit. */
+public class RegionDeltaWriter implements ChunkDeltaOutput {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private DataOutputStream mOut;
+
+	/** Number of chunk deltas still expected, one for each set bit in the bitmask. */
+	private int mRemaining;
+	private int mChunkDeltasWritten = 0;
+	/** Uncompressed length of everything written so far. */
+	private long mLength = 0;
+
+	public RegionDeltaWriter(OutputStream outputStream, long sourceTimestamp, long destTimestamp, byte[] changedChunkBits) throws IOException {
+		BufferedOutputStream buffered = new BufferedOutputStream(outputStream, BUFFER_SIZE);
+		DataOutputStream header = new DataOutputStream(buffered);
+		header.writeInt(DeltaFormat.STREAM_MAGIC);
+		header.writeByte(DeltaFormat.VERSION);
+
+		mOut = new DataOutputStream(new GZIPOutputStream(buffered, BUFFER_SIZE));
+
+		mOut.writeLong(sourceTimestamp);
+		mOut.writeLong(destTimestamp);
+		mOut.write(changedChunkBits);
+		mLength += 16 + changedChunkBits.length;
+
+		mRemaining = BitmaskKernel.countBits(changedChunkBits);
+	}
+
+	@Override
+	public void write(ChunkDelta chunkDelta) throws IOException {
+		if (mRemaining == 0) {
+			throw new IllegalStateException("More chunk deltas written than bits set in the bitmask");
+		}
+		mRemaining--;
+
+		byte[] bytes = chunkDelta.getBytes();
+		mOut.writeInt(bytes.length);
+		mOut.write(bytes);
+		mLength += bytes.length + 4;
+		mChunkDeltasWritten++;
+	}
+
+	@Override
+	public int getChunkDeltasWritten() {
+		return mChunkDeltasWritten;
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	@Override
+	public void abort() throws IOException {
+		mOut.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		mOut.close();
+		if (mRemaining != 0) {
+			throw new IllegalStateException(mRemaining + " chunk deltas missing from the stream");
+		}
+	}
+}
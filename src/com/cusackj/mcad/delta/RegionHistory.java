@@ -0,0 +1,276 @@
+package com.cusackj.mcad.delta;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.cusackj.mcad.model.Region;
+import com.cusackj.mcad.model.RegionHeader;
+
+/** Every version of one region, kept as full keyframes with deltas between them, so any version can be restored without
+ * replaying the region's whole history.
+ *
+ * Restoring a version reads the keyframe before it and applies each delta after that keyframe. A keyframe is stored instead
+ * of a delta once the chain since the last keyframe would be longer than the maximum chain length, or once its deltas add
+ * up to more than the keyframe threshold times the size of the region, when reading them costs more than reading a new
+ * keyframe would.
+ *
+ * The directory holds an append-only index, a .mcad for each delta, a directory for each keyframe and a copy of the newest
+ * version to diff the next one against. The index is int HISTORY_MAGIC, byte version and the region file name, then for
+ * each version its timestamp, sequence number, whether it is a keyframe and the length of its file. */
+public class RegionHistory {
+	public static final String INDEX_NAME = "history.idx";
+	public static final int VERSION = 1;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: RegionHistory <history directory> append <region file>");
+			System.out.println("   or: RegionHistory <history directory> restore <timestamp> <output file>");
+			return;
+		}
+		RegionHistory history = new RegionHistory(new File(args[0]));
+		if (args[1].equals("append")) {
+			System.out.println(history.append(new File(args[2])) ? "Appended a new version" : "The region has not changed");
+		} else if (args[1].equals("restore") && args.length > 3) {
+			history.restore(Long.parseLong(args[2]), new File(args[3]));
+		}
+	}
+
+	/** One version of the region. */
+	public static class Version {
+		private long mTimestamp;
+		private int mSequence;
+		private boolean mKeyframe;
+		private long mLength;
+
+		Version(long timestamp, int sequence, boolean keyframe, long length) {
+			mTimestamp = timestamp;
+			mSequence = sequence;
+			mKeyframe = keyframe;
+			mLength = length;
+		}
+
+		/** @return The newest chunk timestamp of the region at this version. */
+		public long getTimestamp() {
+			return mTimestamp;
+		}
+
+		public int getSequence() {
+			return mSequence;
+		}
+
+		public boolean isKeyframe() {
+			return mKeyframe;
+		}
+
+		/** @return The length of the keyframe or the .mcad. */
+		public long getLength() {
+			return mLength;
+		}
+	}
+
+	private File mDir;
+	private String mRegionName;
+	private List<Version> mVersions = new ArrayList<>();
+
+	private int mMaxChainLength = 16;
+	private double mKeyframeThreshold = 1;
+	private DiffOptions mOptions = new DiffOptions();
+
+	/** Opens the history in the directory, or starts a new one if it has none. */
+	public RegionHistory(File dir) throws IOException {
+		mDir = dir;
+		File index = new File(dir, INDEX_NAME);
+		if (!index.exists()) {
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+		try {
+			if (in.readInt() != DeltaFormat.HISTORY_MAGIC) {
+				throw new IOException(index.getAbsolutePath() + " is not a region history index");
+			}
+			int version = in.readUnsignedByte();
+			if (version > VERSION) {
+				throw new IOException(index.getName() + " is version " + version + ", only up to " + VERSION + " can be read");
+			}
+			mRegionName = in.readUTF();
+			while (true) {
+				long timestamp;
+				try {
+					timestamp = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				mVersions.add(new Version(timestamp, in.readInt(), in.readBoolean(), in.readLong()));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** @return The most deltas applied to restore any version. */
+	public int getMaxChainLength() {
+		return mMaxChainLength;
+	}
+
+	public void setMaxChainLength(int maxChainLength) {
+		mMaxChainLength = maxChainLength;
+	}
+
+	/** @return How large the deltas since the last keyframe can get, relative to the region file, before a keyframe is
+	 *         stored. At 1 a keyframe is stored once the deltas are larger than it, lower values restore faster and use more
+	 *         space. */
+	public double getKeyframeThreshold() {
+		return mKeyframeThreshold;
+	}
+
+	public void setKeyframeThreshold(double keyframeThreshold) {
+		mKeyframeThreshold = keyframeThreshold;
+	}
+
+	/** @param options
+	 *            Used to diff each new version. */
+	public void setDiffOptions(DiffOptions options) {
+		mOptions = options;
+	}
+
+	public List<Version> getVersions() {
+		return mVersions;
+	}
+
+	/** Adds the region file as the newest version.
+	 *
+	 * @return false if it is the same as the newest version, which is not stored again.
+	 * @throws IOException
+	 *             If the file can not be read, is for another region or is older than the newest version. */
+	public boolean append(File region) throws IOException {
+		long timestamp = new RegionHeader(region).getNewestTimestamp();
+		if (mVersions.isEmpty()) {
+			if (!mDir.isDirectory() && !mDir.mkdirs()) {
+				throw new IOException("Could not create " + mDir.getAbsolutePath());
+			}
+			mRegionName = region.getName();
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(mDir, INDEX_NAME)));
+			try {
+				out.writeInt(DeltaFormat.HISTORY_MAGIC);
+				out.writeByte(VERSION);
+				out.writeUTF(mRegionName);
+			} finally {
+				out.close();
+			}
+			return addVersion(region, new Version(timestamp, 0, true, 0));
+		}
+
+		if (!region.getName().equals(mRegionName)) {
+			throw new IOException(region.getName() + " can not be added to the history of " + mRegionName);
+		}
+		File head = getHead();
+		if (new RegionPreScan(head, region).isIdentical()) {
+			return false;
+		}
+		Version newest = mVersions.get(mVersions.size() - 1);
+		if (timestamp <= newest.getTimestamp()) {
+			throw new IOException(region.getName() + " at " + timestamp + " is not newer than the newest version at " + newest.getTimestamp());
+		}
+
+		Version version = new Version(timestamp, newest.getSequence() + 1, false, 0);
+		File mcad = getDeltaFile(version);
+		RegionDelta.writeDelta(head, region, mcad, mOptions);
+		version.mLength = mcad.length();
+
+		// The cost of restoring this version from the last keyframe
+		int chainLength = 1;
+		long chainBytes = version.mLength;
+		for (int i = mVersions.size() - 1; !mVersions.get(i).isKeyframe(); i--) {
+			chainLength++;
+			chainBytes += mVersions.get(i).getLength();
+		}
+		if (chainLength > mMaxChainLength || chainBytes >= mKeyframeThreshold * region.length()) {
+			Files.delete(mcad.toPath());
+			version.mKeyframe = true;
+		}
+		return addVersion(region, version);
+	}
+
+	private boolean addVersion(File region, Version version) throws IOException {
+		if (version.isKeyframe()) {
+			File keyframe = getKeyframeFile(version);
+			keyframe.getParentFile().mkdirs();
+			Files.copy(region.toPath(), keyframe.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			version.mLength = keyframe.length();
+		}
+		File head = getHead();
+		head.getParentFile().mkdirs();
+		Files.copy(region.toPath(), head.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(mDir, INDEX_NAME), true));
+		try {
+			out.writeLong(version.getTimestamp());
+			out.writeInt(version.getSequence());
+			out.writeBoolean(version.isKeyframe());
+			out.writeLong(version.getLength());
+		} finally {
+			out.close();
+		}
+		mVersions.add(version);
+		System.out.println("Stored version " + version.getSequence() + " of " + mRegionName + " as a " + (version.isKeyframe() ? "keyframe" : "delta") + " ["
+				+ version.getLength() + "]");
+		return true;
+	}
+
+	/** Writes the region as it was at the timestamp, the newest version at or before it.
+	 *
+	 * @throws IOException
+	 *             If there is no version that old, or a file of the history can not be read. */
+	public void restore(long timestamp, File out) throws IOException {
+		int index = -1;
+		for (int i = 0; i < mVersions.size() && mVersions.get(i).getTimestamp() <= timestamp; i++) {
+			index = i;
+		}
+		if (index == -1) {
+			throw new IOException("There is no version of " + mRegionName + " at or before " + timestamp);
+		}
+		int keyframe = index;
+		while (!mVersions.get(keyframe).isKeyframe()) {
+			keyframe--;
+		}
+
+		if (keyframe == index) {
+			Files.copy(getKeyframeFile(mVersions.get(keyframe)).toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		List<File> mcads = new ArrayList<>();
+		for (int i = keyframe + 1; i <= index; i++) {
+			mcads.add(getDeltaFile(mVersions.get(i)));
+		}
+		Files.deleteIfExists(out.toPath());
+		Region region = new Region(getKeyframeFile(mVersions.get(keyframe)), true);
+		try {
+			RegionDelta.applyChain(region, mcads).write(out, mOptions.getExecutor());
+		} finally {
+			region.close();
+		}
+	}
+
+	/** Region files have to keep their name, so each keyframe has a directory of its own. */
+	private File getKeyframeFile(Version version) {
+		return new File(new File(mDir, "keyframe-" + version.getSequence()), mRegionName);
+	}
+
+	private File getDeltaFile(Version version) {
+		return new File(mDir, "delta-" + version.getSequence() + ".mcad");
+	}
+
+	private File getHead() {
+		return new File(new File(mDir, "head"), mRegionName);
+	}
+}
@@ -0,0 +1,158 @@
+package com.cusackj.mcad.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import com.cusackj.mcad.model.RegionHeader;
+
+/** Classifies every chunk of a region pair using only the .mca headers, so unchanged chunks never need to be decoded.
+ *
+ * A chunk is classified the same way RegionDelta decides whether it needs a chunk delta: present in both with a different
+ * timestamp is changed, present in only one of them is created or removed. Optionally the stored payloads of changed chunks
+ * are compared too, and chunks that were saved again without changing are only touched. */
+public class RegionPreScan {
+
+	public enum ChunkChange {
+		/** Not present in either region. */
+		ABSENT,
+		/** Present in both regions with the same timestamp. */
+		UNCHANGED,
+		/** Present in both regions with different timestamps. */
+		CHANGED,
+		/** Present in both regions with different timestamps, but the same compressed payload. Only found when contents are
+		 * compared. */
+		TOUCHED,
+		/** Only present in the destination region. */
+		CREATED,
+		/** Only present in the source region. */
+		REMOVED
+	}
+
+	private RegionHeader mSourceHeader;
+	private RegionHeader mDestHeader;
+
+	private ChunkChange[] mChanges = new ChunkChange[RegionHeader.CHUNKS];
+
+	/** Same layout as the changed chunk bitmask of a RegionDelta. */
+	private byte[] mChangedChunkBits = new byte[128];
+
+	private int mChangedChunks = 0;
+	private int mTouchedChunks = 0;
+	private int mCreatedChunks = 0;
+	private int mRemovedChunks = 0;
+	private int mUnchangedChunks = 0;
+
+	public RegionPreScan(File src, File dst) throws IOException {
+		this(src, dst, false);
+	}
+
+	/** @param compareContents
+	 *            If true, the payloads of chunks with different timestamps are read and compared byte for byte, without being
+	 *            inflated, and chunks whose payloads are identical are TOUCHED rather than CHANGED. */
+	public RegionPreScan(File src, File dst, boolean compareContents) throws IOException {
+		this(new RegionHeader(src), new RegionHeader(dst));
+		if (compareContents && mChangedChunks > 0) {
+			compareContents(src, dst);
+		}
+	}
+
+	public RegionPreScan(RegionHeader src, RegionHeader dst) {
+		mSourceHeader = src;
+		mDestHeader = dst;
+		for (int i = 0; i < RegionHeader.CHUNKS; i++) {
+			boolean inSource = src.hasChunk(i);
+			boolean inDest = dst.hasChunk(i);
+
+			if (inSource && inDest) {
+				if (src.getTimestamp(i) != dst.getTimestamp(i)) {
+					mChanges[i] = ChunkChange.CHANGED;
+					mChangedChunks++;
+				} else {
+					mChanges[i] = ChunkChange.UNCHANGED;
+					mUnchangedChunks++;
+				}
+			} else if (inDest) {
+				mChanges[i] = ChunkChange.CREATED;
+				mCreatedChunks++;
+			} else if (inSource) {
+				mChanges[i] = ChunkChange.REMOVED;
+				mRemovedChunks++;
+			} else {
+				mChanges[i] = ChunkChange.ABSENT;
+			}
+
+			if (isFlagged(i)) {
+				mChangedChunkBits[i / 8] |= 1 << (i % 8);
+			}
+		}
+	}
+
+	private void compareContents(File src, File dst) throws IOException {
+		try (RandomAccessFile srcFile = new RandomAccessFile(src, "r"); RandomAccessFile dstFile = new RandomAccessFile(dst, "r")) {
+			for (int i = 0; i < RegionHeader.CHUNKS; i++) {
+				if (mChanges[i] != ChunkChange.CHANGED) {
+					continue;
+				}
+				// Only read the source payload once the lengths are known to match
+				int srcLength = readLength(srcFile, mSourceHeader, i);
+				int dstLength = readLength(dstFile, mDestHeader, i);
+				if (srcLength != dstLength) {
+					continue;
+				}
+				if (Arrays.equals(mSourceHeader.readPayload(srcFile, i), mDestHeader.readPayload(dstFile, i))) {
+					mChanges[i] = ChunkChange.TOUCHED;
+					mChangedChunks--;
+					mTouchedChunks++;
+				}
+			}
+		}
+	}
+
+	private static int readLength(RandomAccessFile file, RegionHeader header, int index) throws IOException {
+		file.seek((long) header.getSectorOffset(index) * RegionHeader.SECTOR_BYTES);
+		return file.readInt();
+	}
+
+	public ChunkChange getChange(int x, int z) {
+		return mChanges[RegionHeader.getIndex(x, z)];
+	}
+
+	/** @return true if the chunk at this index needs a chunk delta. */
+	public boolean isFlagged(int index) {
+		ChunkChange change = mChanges[index];
+		return change == ChunkChange.CHANGED || change == ChunkChange.TOUCHED || change == ChunkChange.CREATED || change == ChunkChange.REMOVED;
+	}
+
+	/** @return true if no chunk in the region pair needs a chunk delta. */
+	public boolean isIdentical() {
+		return mChangedChunks + mTouchedChunks + mCreatedChunks + mRemovedChunks == 0;
+	}
+
+	/** @return The newest chunk timestamp of the source region, see RegionHeader.getNewestTimestamp. */
+	public long getSourceTimestamp() {
+		return mSourceHeader.getNewestTimestamp();
+	}
+
+	public long getDestTimestamp() {
+		return mDestHeader.getNewestTimestamp();
+	}
+
+	public byte[] getChangedChunkBits() {
+		return mChangedChunkBits;
+	}
+
+	public void printReport() {
+		System.out.println("*********************************************************************************");
+		System.out.println("Pre-scan of region headers");
+		System.out.println(mChangedChunks + " chunks have been changed.");
+		if (mTouchedChunks > 0) {
+			System.out.println(mTouchedChunks + " chunks have only been touched and will not be decoded");
+		}
+		System.out.println(mCreatedChunks + " chunks have been created");
+		System.out.println(mRemovedChunks + " chunks have been removed");
+		System.out.println(mUnchangedChunks + " chunks are unchanged and will not be decoded");
+		System.out.println("*********************************************************************************");
+	}
+}
@@ -3,7 +3,9 @@ package com.cusackj.mcad.delta;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.jnbt.ByteArrayTag;
 import org.jnbt.ByteTag;
@@ -13,7 +15,37 @@ import org.jnbt.Tag;
 
 import com.cusackj.utils.PrintUtils;
 
+/** The changes to one 16 block high section of a chunk.
+ * 
+ * Each of the four arrays is written with whichever encoding is smallest for its changes: nothing, a list of changed
+ * indices, a list of changed runs, a bitmap of changed elements or the whole array. Data, BlockLight and SkyLight hold a
+ * nibble per block, so they can also be encoded per nibble, without unpacking them. Any other tags of the section, such as
+ * Add, are written as a TagDelta after the arrays. */
 public class SectionDelta {
+	/** The array is unchanged. */
+	static final byte ENCODING_ABSENT = 0;
+	/** A count, an unsigned short index for each changed element, then the values. */
+	static final byte ENCODING_INDICES = 1;
+	/** A count, an unsigned short start and length for each run of changed elements, then the values. */
+	static final byte ENCODING_RUNS = 2;
+	/** A bitmap of the changed elements, then the values. */
+	static final byte ENCODING_BITMAP = 3;
+	/** The whole array. */
+	static final byte ENCODING_FULL = 4;
+	/** As ENCODING_INDICES, for the 4 bit arrays. Indices are nibble indices and the values are packed 2 to a byte. */
+	static final byte ENCODING_NIBBLE_INDICES = 5;
+	/** As ENCODING_RUNS, in nibbles. */
+	static final byte ENCODING_NIBBLE_RUNS = 6;
+	/** As ENCODING_BITMAP, with a bit for each nibble. */
+	static final byte ENCODING_NIBBLE_BITMAP = 7;
+	
+	private static final int BLOCK_LIGHT_LENGTH = 2048;
+	private static final int BLOCKS_LENGTH = 4096;
+	private static final int DATA_LENGTH = 2048;
+	private static final int SKY_LIGHT_LENGTH = 2048;
+	
+	/** The tags with their own encoding, every other tag is carried by mOtherTagsDelta. */
+	private static final Set<String> SECTION_TAGS = new HashSet<>(Arrays.asList("Y", "BlockLight", "Data", "Blocks", "SkyLight"));
 	
 	ByteTag mY;
 	ByteArrayTag mBlockLight;
@@ -26,26 +58,41 @@ public class SectionDelta {
 	DeltaArray mBlocksDelta;
 	DeltaArray mSkyLightDelta;
 	
+	/** The changes to the tags of the section other than Y and the arrays, null if there are none. */
+	TagDelta mOtherTagsDelta;
+	
 	boolean isEmpty = false;
 	
 	public SectionDelta(CompoundTag source, CompoundTag dest){
+		this(source, dest, true);
+	}
+	
+	/** @param verify If true, the delta is applied to a copy of the source and compared with the destination. */
+	public SectionDelta(CompoundTag source, CompoundTag dest, boolean verify){
 		setDestTags(dest);
 				
 		byte[] blockLightSource = ((ByteArrayTag) source.getValue().get("BlockLight")).getValue();
 		byte[] blockLightDest = mBlockLight.getValue();
-		mBlockLightDelta = calculateDeltaArray(blockLightSource, blockLightDest);
+		mBlockLightDelta = calculateDeltaArray(blockLightSource, blockLightDest, true);
 		
 		byte[] dataSource = ((ByteArrayTag) source.getValue().get("Data")).getValue();
 		byte[] dataDest = mData.getValue();
-		mDataDelta = calculateDeltaArray(dataSource, dataDest);
+		mDataDelta = calculateDeltaArray(dataSource, dataDest, true);
 		
 		byte[] blockSource = ((ByteArrayTag) source.getValue().get("Blocks")).getValue();
 		byte[] blockDest = mBlocks.getValue();
-		mBlocksDelta = calculateDeltaArray(blockSource, blockDest);
+		mBlocksDelta = calculateDeltaArray(blockSource, blockDest, false);
 		
 		byte[] skyLightSource = ((ByteArrayTag) source.getValue().get("SkyLight")).getValue();
 		byte[] skyLightDest = mSkyLight.getValue();
-		mSkyLightDelta = calculateDeltaArray(skyLightSource, skyLightDest);
+		mSkyLightDelta = calculateDeltaArray(skyLightSource, skyLightDest, true);
+		
+		setOtherTagsDelta(new TagDelta(source, dest, SECTION_TAGS));
+		
+		if(!verify){
+			releaseDestTags();
+			return;
+		}
 		
 		//Assertions that the section is at least equal length, if not identical!
 		byte[] sourceBytes = NBTUtils.writeTagToBytes(source);
@@ -66,6 +113,7 @@ public class SectionDelta {
 			}
 			System.out.println("******");
 		}
+		releaseDestTags();
 	}
 	
 	public int getY(){
@@ -73,12 +121,24 @@ public class SectionDelta {
 	}
 	
 	public SectionDelta(CompoundTag dest){
+		this(dest, true);
+	}
+	
+	/** @param verify If true, the delta is applied to an empty section and compared with the destination. */
+	public SectionDelta(CompoundTag dest, boolean verify){
 		setDestTags(dest);
 		
-		mBlockLightDelta =  createDeltaArray(mBlockLight.getValue());
-		mDataDelta =  createDeltaArray(mData.getValue());
-		mBlocksDelta =  createDeltaArray(mBlocks.getValue());
-		mSkyLightDelta =  createDeltaArray(mSkyLight.getValue());
+		mBlockLightDelta =  createDeltaArray(mBlockLight.getValue(), true);
+		mDataDelta =  createDeltaArray(mData.getValue(), true);
+		mBlocksDelta =  createDeltaArray(mBlocks.getValue(), false);
+		mSkyLightDelta =  createDeltaArray(mSkyLight.getValue(), true);
+		
+		setOtherTagsDelta(new TagDelta(null, dest, SECTION_TAGS));
+		
+		if(!verify){
+			releaseDestTags();
+			return;
+		}
 		
 		//Verify identical
 		Map<String, Tag> sectionMap = new HashMap<>();
@@ -109,9 +169,18 @@ public class SectionDelta {
 			System.out.println("but are not identical in bytes! :(");
 		}
 		System.out.println("******");
+		releaseDestTags();
 	}
 	
 	public SectionDelta(byte[] bytes){
+		this(bytes, DeltaFormat.VERSION);
+	}
+	
+	/** Reads a section delta record.
+	 * 
+	 * @param version
+	 *            The version of the .mcad it was read from, see DeltaFormat. */
+	public SectionDelta(byte[] bytes, int version){
 		if(bytes.length==1) {
 			mY = new ByteTag("Y", bytes[0]);
 			isEmpty = true;
@@ -121,34 +190,112 @@ public class SectionDelta {
 		
 		mY = new ByteTag("Y", bb.get());
 		
-		int blockLightLength = bb.getInt() - 256;
-		mBlockLightDelta = new DeltaArray();
-		mBlockLightDelta.changeArray = new byte[256];
-		mBlockLightDelta.changeValues = new byte[blockLightLength];
-		bb.get(mBlockLightDelta.changeArray);
-		bb.get(mBlockLightDelta.changeValues);
-		
-		int blocksLength = bb.getInt() - 512;
-		mBlocksDelta = new DeltaArray();
-		mBlocksDelta.changeArray = new byte[512];
-		mBlocksDelta.changeValues = new byte[blocksLength];
-		bb.get(mBlocksDelta.changeArray);
-		bb.get(mBlocksDelta.changeValues);
-		
-		int dataLength = bb.getInt() - 256;
-		mDataDelta = new DeltaArray();
-		mDataDelta.changeArray = new byte[256];
-		mDataDelta.changeValues = new byte[dataLength];
-		bb.get(mDataDelta.changeArray);
-		bb.get(mDataDelta.changeValues);
+		if(version < DeltaFormat.VERSION_ARRAY_ENCODING){
+			mBlockLightDelta = readBitmapDeltaArray(bb, BLOCK_LIGHT_LENGTH);
+			mBlocksDelta = readBitmapDeltaArray(bb, BLOCKS_LENGTH);
+			mDataDelta = readBitmapDeltaArray(bb, DATA_LENGTH);
+			mSkyLightDelta = readBitmapDeltaArray(bb, SKY_LIGHT_LENGTH);
+			return;
+		}
 		
-		int skyLightLength = bb.getInt() - 256;
-		mSkyLightDelta = new DeltaArray();
-		mSkyLightDelta.changeArray = new byte[256];
-		mSkyLightDelta.changeValues = new byte[skyLightLength];
-		bb.get(mSkyLightDelta.changeArray);
-		bb.get(mSkyLightDelta.changeValues);
+		mBlockLightDelta = readDeltaArray(bb, BLOCK_LIGHT_LENGTH);
+		mBlocksDelta = readDeltaArray(bb, BLOCKS_LENGTH);
+		mDataDelta = readDeltaArray(bb, DATA_LENGTH);
+		mSkyLightDelta = readDeltaArray(bb, SKY_LIGHT_LENGTH);
 		
+		// Only written if the section has other tags that changed
+		if(version >= DeltaFormat.VERSION_SECTION_TAGS && bb.hasRemaining()){
+			mOtherTagsDelta = new TagDelta(bb);
+		}
+	}
+	
+	private void setOtherTagsDelta(TagDelta delta){
+		mOtherTagsDelta = delta.isEmpty() ? null : delta;
+	}
+	
+	/** Reads an array written before VERSION_ARRAY_ENCODING, always a size, a bitmap and the changed values. */
+	private DeltaArray readBitmapDeltaArray(ByteBuffer bb, int arrayLength){
+		DeltaArray result = new DeltaArray();
+		result.encoding = ENCODING_BITMAP;
+		result.changeArray = new byte[arrayLength / 8];
+		result.changeValues = new byte[bb.getInt() - result.changeArray.length];
+		bb.get(result.changeArray);
+		bb.get(result.changeValues);
+		return result;
+	}
+	
+	private DeltaArray readDeltaArray(ByteBuffer bb, int arrayLength){
+		DeltaArray result = new DeltaArray();
+		result.encoding = bb.get();
+		switch(result.encoding){
+		case ENCODING_ABSENT:
+			break;
+		case ENCODING_INDICES:
+		case ENCODING_RUNS:
+		case ENCODING_NIBBLE_INDICES:
+		case ENCODING_NIBBLE_RUNS:
+			boolean runs = result.encoding == ENCODING_RUNS || result.encoding == ENCODING_NIBBLE_RUNS;
+			result.positions = new int[(bb.getShort() & 0xFFFF) * (runs ? 2 : 1)];
+			int valueCount = 0;
+			for(int i = 0 ; i < result.positions.length ; i++){
+				result.positions[i] = bb.getShort() & 0xFFFF;
+			}
+			if(runs){
+				for(int i = 1 ; i < result.positions.length ; i += 2){
+					valueCount += result.positions[i];
+				}
+			}else{
+				valueCount = result.positions.length;
+			}
+			result.changeValues = new byte[result.isNibbles() ? (valueCount + 1) / 2 : valueCount];
+			bb.get(result.changeValues);
+			break;
+		case ENCODING_BITMAP:
+		case ENCODING_NIBBLE_BITMAP:
+			result.changeArray = new byte[result.isNibbles() ? arrayLength / 4 : arrayLength / 8];
+			bb.get(result.changeArray);
+			int bitCount = BitmaskKernel.countBits(result.changeArray);
+			result.changeValues = new byte[result.isNibbles() ? (bitCount + 1) / 2 : bitCount];
+			bb.get(result.changeValues);
+			break;
+		case ENCODING_FULL:
+			result.changeValues = new byte[arrayLength];
+			bb.get(result.changeValues);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown section array encoding " + result.encoding);
+		}
+		return result;
+	}
+	
+	private void writeDeltaArray(ByteBuffer bb, DeltaArray da){
+		bb.put(da.encoding);
+		switch(da.encoding){
+		case ENCODING_INDICES:
+		case ENCODING_NIBBLE_INDICES:
+			bb.putShort((short) da.positions.length);
+			for(int position : da.positions){
+				bb.putShort((short) position);
+			}
+			bb.put(da.changeValues);
+			break;
+		case ENCODING_RUNS:
+		case ENCODING_NIBBLE_RUNS:
+			bb.putShort((short) (da.positions.length / 2));
+			for(int position : da.positions){
+				bb.putShort((short) position);
+			}
+			bb.put(da.changeValues);
+			break;
+		case ENCODING_BITMAP:
+		case ENCODING_NIBBLE_BITMAP:
+			bb.put(da.changeArray);
+			bb.put(da.changeValues);
+			break;
+		case ENCODING_FULL:
+			bb.put(da.changeValues);
+			break;
+		}
 	}
 	
 	private void setDestTags(CompoundTag dest){
@@ -159,79 +306,207 @@ public class SectionDelta {
 		mSkyLight = (ByteArrayTag) dest.getValue().get("SkyLight");
 	}
 	
-	private DeltaArray calculateDeltaArray(byte[] source, byte[] dest){
-		DeltaArray result = new DeltaArray();
+	/** Only the delta arrays are serialized, so the destination arrays are not kept once they have been created. */
+	private void releaseDestTags(){
+		mBlockLight = null;
+		mData = null;
+		mBlocks = null;
+		mSkyLight = null;
+	}
+	
+	/** Encodes the changes from source to dest with whichever encoding is smallest.
+	 * 
+	 * @param nibbles If true the arrays hold a nibble per block, and the nibble encodings are considered as well. */
+	private DeltaArray calculateDeltaArray(byte[] source, byte[] dest, boolean nibbles){
+		byte[] mask = new byte[source.length / 8];
+		int count = BitmaskKernel.diff(source, dest, mask);
+		if(count == 0){
+			DeltaArray result = new DeltaArray();
+			result.encoding = ENCODING_ABSENT;
+			return result;
+		}
+		int runs = BitmaskKernel.countRuns(mask);
 		
-		result.changeArray = new byte[source.length / 8];
+		byte encoding = ENCODING_FULL;
+		int size = dest.length;
+		if(mask.length + count < size){
+			encoding = ENCODING_BITMAP;
+			size = mask.length + count;
+		}
+		if(2 + runs * 4 + count < size){
+			encoding = ENCODING_RUNS;
+			size = 2 + runs * 4 + count;
+		}
+		if(2 + count * 3 < size){
+			encoding = ENCODING_INDICES;
+			size = 2 + count * 3;
+		}
 		
-		int arrayLength = 0;
-		for (int i = 0; i < source.length; i++) {
-			if (source[i] != dest[i]) {
-				int bit = i % 8;
-				result.changeArray[(int) Math.floor(i/8d)] |= 1 << bit;
-				arrayLength += 1;
+		if(nibbles){
+			// A changed byte may only have one changed nibble, so compare the nibble encodings too
+			byte[] nibbleMask = new byte[source.length / 4];
+			int nibbleCount = BitmaskKernel.diffNibbles(source, dest, nibbleMask);
+			int nibbleRuns = BitmaskKernel.countRuns(nibbleMask);
+			int packedCount = (nibbleCount + 1) / 2;
+			
+			byte nibbleEncoding = ENCODING_NIBBLE_BITMAP;
+			int nibbleSize = nibbleMask.length + packedCount;
+			if(2 + nibbleRuns * 4 + packedCount < nibbleSize){
+				nibbleEncoding = ENCODING_NIBBLE_RUNS;
+				nibbleSize = 2 + nibbleRuns * 4 + packedCount;
 			}
-		}
-		result.changeValues = new byte[arrayLength];
-		int bit = 0;
-		for (int i = 0; i < arrayLength; i++) {
-			// loop through each bit in mHeightMapChanges
-			while (!isBitSet(result.changeArray, bit)) {
-				bit++;
+			if(2 + nibbleCount * 2 + packedCount < nibbleSize){
+				nibbleEncoding = ENCODING_NIBBLE_INDICES;
+				nibbleSize = 2 + nibbleCount * 2 + packedCount;
+			}
+			if(nibbleSize < size){
+				return buildDeltaArray(nibbleEncoding, dest, nibbleMask, nibbleCount, nibbleRuns);
 			}
-			result.changeValues[i] = dest[bit];
-			bit++;
 		}
-		return result;
+		return buildDeltaArray(encoding, dest, mask, count, runs);
 	}
 	
-	private DeltaArray createDeltaArray(byte[] dest){
+	/** @param mask The changed elements, or nibbles for the nibble encodings.
+	 * @param count The number of bits set in mask.
+	 * @param runs The number of runs of bits set in mask. */
+	private DeltaArray buildDeltaArray(byte encoding, byte[] dest, byte[] mask, int count, int runs){
 		DeltaArray result = new DeltaArray();
-		result.changeArray = new byte[dest.length / 8];
-		for(int i = 0 ; i < result.changeArray.length ; i++){
-			result.changeArray[i] = (byte) 0xff;
+		result.encoding = encoding;
+		switch(encoding){
+		case ENCODING_FULL:
+			result.changeValues = dest.clone();
+			return result;
+		case ENCODING_BITMAP:
+		case ENCODING_NIBBLE_BITMAP:
+			result.changeArray = mask;
+			break;
+		case ENCODING_INDICES:
+		case ENCODING_NIBBLE_INDICES:
+			result.positions = new int[count];
+			int i = 0;
+			for(int bit = BitmaskKernel.nextSetBit(mask, 0) ; bit != -1 ; bit = BitmaskKernel.nextSetBit(mask, bit + 1)){
+				result.positions[i++] = bit;
+			}
+			break;
+		case ENCODING_RUNS:
+		case ENCODING_NIBBLE_RUNS:
+			result.positions = new int[runs * 2];
+			int run = -2;
+			int previous = -2;
+			for(int bit = BitmaskKernel.nextSetBit(mask, 0) ; bit != -1 ; bit = BitmaskKernel.nextSetBit(mask, bit + 1)){
+				if(bit != previous + 1){
+					run += 2;
+					result.positions[run] = bit;
+				}
+				result.positions[run + 1]++;
+				previous = bit;
+			}
+			break;
+		}
+		
+		if(result.isNibbles()){
+			result.changeValues = new byte[(count + 1) / 2];
+			BitmaskKernel.gatherNibbles(dest, mask, result.changeValues);
+		}else{
+			result.changeValues = new byte[count];
+			BitmaskKernel.gather(dest, mask, result.changeValues);
 		}
-		result.changeValues = new byte[dest.length];
-		System.arraycopy(dest, 0, result.changeValues, 0, dest.length);
 		return result;
 	}
 	
+	/** New sections are applied to zeroed arrays, so only the non zero elements need to be written. */
+	private DeltaArray createDeltaArray(byte[] dest, boolean nibbles){
+		return calculateDeltaArray(new byte[dest.length], dest, nibbles);
+	}
+	
 	private void applyDeltaArray(DeltaArray da, byte[] dest){
-		int bit = 0;
-		for(int i = 0; i < da.changeValues.length ; i++){
-			while(!isBitSet(da.changeArray, bit)){
-				bit++;
+		switch(da.encoding){
+		case ENCODING_ABSENT:
+			break;
+		case ENCODING_INDICES:
+			for(int i = 0 ; i < da.positions.length ; i++){
+				dest[da.positions[i]] = da.changeValues[i];
+			}
+			break;
+		case ENCODING_RUNS:
+			int offset = 0;
+			for(int i = 0 ; i < da.positions.length ; i += 2){
+				System.arraycopy(da.changeValues, offset, dest, da.positions[i], da.positions[i + 1]);
+				offset += da.positions[i + 1];
+			}
+			break;
+		case ENCODING_BITMAP:
+			BitmaskKernel.scatter(da.changeValues, da.changeArray, dest);
+			break;
+		case ENCODING_FULL:
+			System.arraycopy(da.changeValues, 0, dest, 0, da.changeValues.length);
+			break;
+		case ENCODING_NIBBLE_INDICES:
+			for(int i = 0 ; i < da.positions.length ; i++){
+				BitmaskKernel.setNibble(dest, da.positions[i], BitmaskKernel.getNibble(da.changeValues, i));
+			}
+			break;
+		case ENCODING_NIBBLE_RUNS:
+			int v = 0;
+			for(int i = 0 ; i < da.positions.length ; i += 2){
+				int end = da.positions[i] + da.positions[i + 1];
+				for(int n = da.positions[i] ; n < end ; n++){
+					BitmaskKernel.setNibble(dest, n, BitmaskKernel.getNibble(da.changeValues, v++));
+				}
 			}
-			dest[bit] = da.changeValues[i];
-			bit++;
+			break;
+		case ENCODING_NIBBLE_BITMAP:
+			BitmaskKernel.scatterNibbles(da.changeValues, da.changeArray, dest);
+			break;
 		}
 	}
 	
-	private boolean isBitSet(byte[] target, int bitOffset) {
-		int index = (int) Math.floor(bitOffset / 8);
-		int bitIndex = bitOffset % 8;
-		byte result = (byte) ((target[index] >> bitIndex) & 1);
-		return result == 1;
-	}
-	
 	public SectionDelta(byte y){
 		mY = new ByteTag("Y", y);
 		isEmpty =true;
 	}
 	
 	
+	/** The changes to one array, written as an encoding byte followed by the data that encoding needs. */
 	private class DeltaArray{
+		byte encoding;
+		/** The changed indices for ENCODING_INDICES, or start and length pairs for ENCODING_RUNS. */
+		int[] positions;
+		/** The bitmap for ENCODING_BITMAP and ENCODING_NIBBLE_BITMAP. */
 		byte[] changeArray;
+		/** The changed values in order, or the whole array for ENCODING_FULL. Packed 2 to a byte for the nibble encodings. */
 		byte[] changeValues;
 		
+		/** The changed values are packed 2 to a byte. */
+		private boolean isNibbles(){
+			return encoding >= ENCODING_NIBBLE_INDICES;
+		}
+		
 		private int getSize(){
-			return changeArray.length + changeValues.length;
+			switch(encoding){
+			case ENCODING_INDICES:
+			case ENCODING_RUNS:
+			case ENCODING_NIBBLE_INDICES:
+			case ENCODING_NIBBLE_RUNS:
+				return 1 + 2 + positions.length * 2 + changeValues.length;
+			case ENCODING_BITMAP:
+			case ENCODING_NIBBLE_BITMAP:
+				return 1 + changeArray.length + changeValues.length;
+			case ENCODING_FULL:
+				return 1 + changeValues.length;
+			default:
+				return 1;
+			}
 		}
 	}
 
 	public int getLengthInBytes() {
 		if(isEmpty) return 1;
-		return 1 + mBlockLightDelta.getSize()+4 + mBlocksDelta.getSize()+4 + mDataDelta.getSize()+4 + mSkyLightDelta.getSize()+4;
+		int length = 1 + mBlockLightDelta.getSize() + mBlocksDelta.getSize() + mDataDelta.getSize() + mSkyLightDelta.getSize();
+		if(mOtherTagsDelta != null){
+			length += mOtherTagsDelta.getLengthInBytes();
+		}
+		return length;
 	}
 
 
@@ -240,23 +515,13 @@ public class SectionDelta {
 		ByteBuffer bb = ByteBuffer.allocate(getLengthInBytes());
 		
 		bb.put(mY.getValue());
-		
-		bb.putInt(mBlockLightDelta.getSize());
-		bb.put(mBlockLightDelta.changeArray);
-		bb.put(mBlockLightDelta.changeValues);
-		
-		bb.putInt(mBlocksDelta.getSize());
-		bb.put(mBlocksDelta.changeArray);
-		bb.put(mBlocksDelta.changeValues);
-		
-		
-		bb.putInt(mDataDelta.getSize());
-		bb.put(mDataDelta.changeArray);
-		bb.put(mDataDelta.changeValues);
-		
-		bb.putInt(mSkyLightDelta.getSize());
-		bb.put(mSkyLightDelta.changeArray);
-		bb.put(mSkyLightDelta.changeValues);
+		writeDeltaArray(bb, mBlockLightDelta);
+		writeDeltaArray(bb, mBlocksDelta);
+		writeDeltaArray(bb, mDataDelta);
+		writeDeltaArray(bb, mSkyLightDelta);
+		if(mOtherTagsDelta != null){
+			mOtherTagsDelta.write(bb);
+		}
 		
 		return bb.array();
 	}
@@ -274,5 +539,9 @@ public class SectionDelta {
 		
 		byte[] skyLightArray = ((ByteArrayTag)sectionTag.getValue().get("SkyLight")).getValue();
 		applyDeltaArray(mSkyLightDelta, skyLightArray);
+		
+		if(mOtherTagsDelta != null){
+			mOtherTagsDelta.applyTo(sectionTag);
+		}
 	}
 }
@@ -0,0 +1,360 @@
+package com.cusackj.mcad.delta;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.IntArrayTag;
+import org.jnbt.ListTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.Tag;
+
+/** The changes to a compound tag, for any tags a chunk delta has no dedicated encoding for.
+ *
+ * The delta is a list of operations on the entries of the compound: remove an entry, put a whole serialized tag, or patch a
+ * compound, list or array entry in place. Compounds are diffed recursively, lists are spliced with a ListDelta, and arrays
+ * of the same length are patched in runs of changed elements. A patch is only used where it is smaller than the whole tag. */
+public class TagDelta {
+	private static final byte OP_REMOVE = 0;
+	/** A length and the whole serialized tag. */
+	private static final byte OP_PUT = 1;
+	/** A TagDelta for a compound entry. */
+	private static final byte OP_COMPOUND = 2;
+	/** A ListDelta for a list entry. */
+	private static final byte OP_LIST = 3;
+	/** A count of runs, then the start, length and values of each run of changed elements. */
+	private static final byte OP_BYTE_ARRAY = 4;
+	private static final byte OP_INT_ARRAY = 5;
+
+	/** Runs closer together than this many bytes are joined, as a run costs 8 bytes. */
+	private static final int RUN_GAP_BYTES = 8;
+
+	private static class Op {
+		byte kind;
+		String name;
+		/** The serialized tag of OP_PUT, or the values of OP_BYTE_ARRAY. */
+		byte[] bytes;
+		/** The values of OP_INT_ARRAY. */
+		int[] ints;
+		/** The start and length of each run of an array patch. */
+		int[] runs;
+		TagDelta compound;
+		ListDelta list;
+
+		Op(byte kind, String name) {
+			this.kind = kind;
+			this.name = name;
+		}
+	}
+
+	private List<Op> mOps = new ArrayList<>();
+
+	/** @param source
+	 *            The source compound, or null to put every entry of the destination.
+	 * @param ignored
+	 *            Names of entries that are left alone, as they are encoded some other way. */
+	public TagDelta(CompoundTag source, CompoundTag dest, Set<String> ignored) {
+		Map<String, Tag> sourceValues = source == null ? new HashMap<String, Tag>() : source.getValue();
+		for (Map.Entry<String, Tag> entry : dest.getValue().entrySet()) {
+			if (ignored.contains(entry.getKey())) {
+				continue;
+			}
+			Op op = diff(entry.getKey(), sourceValues.get(entry.getKey()), entry.getValue());
+			if (op != null) {
+				mOps.add(op);
+			}
+		}
+		for (String name : sourceValues.keySet()) {
+			if (!ignored.contains(name) && !dest.getValue().containsKey(name)) {
+				mOps.add(new Op(OP_REMOVE, name));
+			}
+		}
+	}
+
+	public TagDelta(CompoundTag source, CompoundTag dest) {
+		this(source, dest, Collections.<String> emptySet());
+	}
+
+	/** Reads a tag delta written by write. */
+	public TagDelta(ByteBuffer bb) {
+		int count = bb.getInt();
+		for (int i = 0; i < count; i++) {
+			Op op = new Op(bb.get(), readName(bb));
+			switch (op.kind) {
+			case OP_REMOVE:
+				break;
+			case OP_PUT:
+				op.bytes = new byte[bb.getInt()];
+				bb.get(op.bytes);
+				break;
+			case OP_COMPOUND:
+				op.compound = new TagDelta(bb);
+				break;
+			case OP_LIST:
+				op.list = new ListDelta(bb);
+				break;
+			case OP_BYTE_ARRAY:
+			case OP_INT_ARRAY:
+				op.runs = new int[bb.getInt() * 2];
+				int values = 0;
+				for (int r = 0; r < op.runs.length; r += 2) {
+					op.runs[r] = bb.getInt();
+					op.runs[r + 1] = bb.getInt();
+					values += op.runs[r + 1];
+				}
+				if (op.kind == OP_BYTE_ARRAY) {
+					op.bytes = new byte[values];
+					bb.get(op.bytes);
+				} else {
+					op.ints = new int[values];
+					bb.asIntBuffer().get(op.ints);
+					bb.position(bb.position() + values * 4);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown tag delta operation " + op.kind);
+			}
+			mOps.add(op);
+		}
+	}
+
+	/** @return The smallest operation that turns source into dest, or null if they are equal. */
+	private static Op diff(String name, Tag source, Tag dest) {
+		if (source == null || source.getClass() != dest.getClass()) {
+			return put(name, dest);
+		}
+
+		Op patch;
+		if (dest instanceof CompoundTag) {
+			TagDelta delta = new TagDelta((CompoundTag) source, (CompoundTag) dest);
+			if (delta.isEmpty()) {
+				return null;
+			}
+			patch = new Op(OP_COMPOUND, name);
+			patch.compound = delta;
+		} else if (dest instanceof ListTag) {
+			byte[] sourceBytes = NBTUtils.writeTagToBytes(source);
+			byte[] destBytes = NBTUtils.writeTagToBytes(dest);
+			if (Arrays.equals(sourceBytes, destBytes)) {
+				return null;
+			}
+			// Nothing is known about what identifies the entries, and the list delta already falls back to the whole list
+			patch = new Op(OP_LIST, name);
+			patch.list = new ListDelta((ListTag) source, (ListTag) dest, ListDelta.NO_KEY);
+			return patch;
+		} else if (dest instanceof ByteArrayTag) {
+			byte[] sourceArray = ((ByteArrayTag) source).getValue();
+			byte[] destArray = ((ByteArrayTag) dest).getValue();
+			if (Arrays.equals(sourceArray, destArray)) {
+				return null;
+			}
+			if (sourceArray.length != destArray.length) {
+				return put(name, dest);
+			}
+			byte[] mask = new byte[(destArray.length + 7) / 8];
+			BitmaskKernel.diff(sourceArray, destArray, mask);
+			patch = new Op(OP_BYTE_ARRAY, name);
+			patch.runs = findRuns(mask, RUN_GAP_BYTES);
+			patch.bytes = new byte[countValues(patch.runs)];
+			int v = 0;
+			for (int r = 0; r < patch.runs.length; r += 2) {
+				System.arraycopy(destArray, patch.runs[r], patch.bytes, v, patch.runs[r + 1]);
+				v += patch.runs[r + 1];
+			}
+		} else if (dest instanceof IntArrayTag) {
+			int[] sourceArray = ((IntArrayTag) source).getValue();
+			int[] destArray = ((IntArrayTag) dest).getValue();
+			if (Arrays.equals(sourceArray, destArray)) {
+				return null;
+			}
+			if (sourceArray.length != destArray.length) {
+				return put(name, dest);
+			}
+			byte[] mask = new byte[(destArray.length + 7) / 8];
+			BitmaskKernel.diff(sourceArray, destArray, mask);
+			patch = new Op(OP_INT_ARRAY, name);
+			patch.runs = findRuns(mask, RUN_GAP_BYTES / 4);
+			patch.ints = new int[countValues(patch.runs)];
+			int v = 0;
+			for (int r = 0; r < patch.runs.length; r += 2) {
+				System.arraycopy(destArray, patch.runs[r], patch.ints, v, patch.runs[r + 1]);
+				v += patch.runs[r + 1];
+			}
+		} else {
+			// Every other tag is a single value
+			if (source.getValue().equals(dest.getValue())) {
+				return null;
+			}
+			return put(name, dest);
+		}
+
+		Op whole = put(name, dest);
+		return getLength(patch) < getLength(whole) ? patch : whole;
+	}
+
+	private static Op put(String name, Tag dest) {
+		Op op = new Op(OP_PUT, name);
+		op.bytes = NBTUtils.writeTagToBytes(dest);
+		return op;
+	}
+
+	/** @param maxGap
+	 *            The most unchanged elements a run can span to join two runs of changed elements.
+	 * @return The start and length of each run of set bits. */
+	private static int[] findRuns(byte[] mask, int maxGap) {
+		List<Integer> runs = new ArrayList<>();
+		int start = -1;
+		int end = -1;
+		for (int bit = BitmaskKernel.nextSetBit(mask, 0); bit != -1; bit = BitmaskKernel.nextSetBit(mask, bit + 1)) {
+			if (start >= 0 && bit - end <= maxGap) {
+				end = bit + 1;
+				continue;
+			}
+			if (start >= 0) {
+				runs.add(start);
+				runs.add(end - start);
+			}
+			start = bit;
+			end = bit + 1;
+		}
+		if (start >= 0) {
+			runs.add(start);
+			runs.add(end - start);
+		}
+		int[] result = new int[runs.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = runs.get(i);
+		}
+		return result;
+	}
+
+	private static int countValues(int[] runs) {
+		int count = 0;
+		for (int r = 1; r < runs.length; r += 2) {
+			count += runs[r];
+		}
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return mOps.isEmpty();
+	}
+
+	public int getLengthInBytes() {
+		int length = 4;
+		for (Op op : mOps) {
+			length += getLength(op);
+		}
+		return length;
+	}
+
+	private static int getLength(Op op) {
+		int length = 1 + 2 + op.name.getBytes(StandardCharsets.UTF_8).length;
+		switch (op.kind) {
+		case OP_PUT:
+			return length + 4 + op.bytes.length;
+		case OP_COMPOUND:
+			return length + op.compound.getLengthInBytes();
+		case OP_LIST:
+			return length + op.list.getLengthInBytes();
+		case OP_BYTE_ARRAY:
+			return length + 4 + op.runs.length * 4 + op.bytes.length;
+		case OP_INT_ARRAY:
+			return length + 4 + op.runs.length * 4 + op.ints.length * 4;
+		default:
+			return length;
+		}
+	}
+
+	public void write(ByteBuffer bb) {
+		bb.putInt(mOps.size());
+		for (Op op : mOps) {
+			bb.put(op.kind);
+			byte[] name = op.name.getBytes(StandardCharsets.UTF_8);
+			bb.putShort((short) name.length);
+			bb.put(name);
+			switch (op.kind) {
+			case OP_PUT:
+				bb.putInt(op.bytes.length);
+				bb.put(op.bytes);
+				break;
+			case OP_COMPOUND:
+				op.compound.write(bb);
+				break;
+			case OP_LIST:
+				op.list.write(bb);
+				break;
+			case OP_BYTE_ARRAY:
+			case OP_INT_ARRAY:
+				bb.putInt(op.runs.length / 2);
+				for (int run : op.runs) {
+					bb.putInt(run);
+				}
+				if (op.kind == OP_BYTE_ARRAY) {
+					bb.put(op.bytes);
+				} else {
+					for (int value : op.ints) {
+						bb.putInt(value);
+					}
+				}
+				break;
+			}
+		}
+	}
+
+	private static String readName(ByteBuffer bb) {
+		byte[] name = new byte[bb.getShort() & 0xFFFF];
+		bb.get(name);
+		return new String(name, StandardCharsets.UTF_8);
+	}
+
+	/** Turns the source compound into the destination compound. Entries that are patched are changed in place. */
+	public void applyTo(CompoundTag target) {
+		Map<String, Tag> values = target.getValue();
+		for (Op op : mOps) {
+			switch (op.kind) {
+			case OP_REMOVE:
+				values.remove(op.name);
+				break;
+			case OP_PUT:
+				values.put(op.name, NBTUtils.bytesToTag(op.bytes));
+				break;
+			case OP_COMPOUND:
+				CompoundTag compound = (CompoundTag) values.get(op.name);
+				if (compound == null) {
+					compound = new CompoundTag(op.name, new HashMap<String, Tag>());
+					values.put(op.name, compound);
+				}
+				op.compound.applyTo(compound);
+				break;
+			case OP_LIST:
+				op.list.applyTo(target, op.name);
+				break;
+			case OP_BYTE_ARRAY:
+				byte[] bytes = ((ByteArrayTag) values.get(op.name)).getValue();
+				int v = 0;
+				for (int r = 0; r < op.runs.length; r += 2) {
+					System.arraycopy(op.bytes, v, bytes, op.runs[r], op.runs[r + 1]);
+					v += op.runs[r + 1];
+				}
+				break;
+			case OP_INT_ARRAY:
+				int[] ints = ((IntArrayTag) values.get(op.name)).getValue();
+				int w = 0;
+				for (int r = 0; r < op.runs.length; r += 2) {
+					System.arraycopy(op.ints, w, ints, op.runs[r], op.runs[r + 1]);
+					w += op.runs[r + 1];
+				}
+				break;
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.cusackj.mcad.delta;
+
+/** How much checking is done while chunk deltas are created.
+ *
+ * Every chunk delta stores a hash of its destination chunk whatever the policy, so the apply side can always check its result
+ * cheaply. The policy only decides how often a new delta is re-applied to a copy of its source and compared with the
+ * destination, which costs about twice as much as creating the delta. */
+public enum VerificationPolicy {
+	/** Never re-apply chunk deltas while creating them. */
+	OFF,
+	/** Re-apply about 1 in SAMPLE_RATE chunk deltas, picked from their position so a run is repeatable. */
+	SAMPLED,
+	/** Re-apply every chunk delta and section delta. */
+	FULL;
+
+	public static final int SAMPLE_RATE = 16;
+
+	public boolean shouldVerify(int x, int z) {
+		switch (this) {
+		case FULL:
+			return true;
+		case SAMPLED:
+			int mixed = x * 0x9E3779B1 + z * 0x85EBCA6B;
+			return ((mixed ^ (mixed >>> 15)) & (SAMPLE_RATE - 1)) == 0;
+		default:
+			return false;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.cusackj.mcad.delta;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import com.cusackj.mcad.delta.WorldManifest.Entry;
+import com.cusackj.mcad.delta.WorldManifest.RegionChange;
+/** Diffs every region of two worlds in one run, and applies the result to a world.
+ *
+ * Region files are paired by name and diffed on a fixed number of threads, each region on a single thread. A world delta is
+ * a directory with a .mcad for each changed region, a copy of each created region and a WorldManifest. Regions are only
+ * started while their files fit in the memory budget, so a few very large regions can not all be decoded at once. */
+public class WorldDelta {
+	private static final Pattern REGION_NAME = Pattern.compile("r\\.-?\\d+\\.-?\\d+\\.mca");
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.out.println("Usage: WorldDelta <source world> <destination world> <output directory> [threads] [memory budget in MiB]");
+			System.out.println("   or: WorldDelta apply <world delta> <world> [threads] [memory budget in MiB]");
+			return;
+		}
+		int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		long memoryBudget = args.length > 4 ? Long.parseLong(args[4]) * 1024 * 1024 : getDefaultMemoryBudget();
+
+		WorldDelta world = new WorldDelta(threads, memoryBudget);
+		if (args[0].equals("apply")) {
+			world.applyDelta(new File(args[1]), new File(args[2]));
+		} else {
+			world.writeDelta(new File(args[0]), new File(args[1]), new File(args[2]), new DiffOptions());
+		}
+	}
+
+	private int mThreads;
+	/** In KiB, the size of a permit. */
+	private int mMemoryBudget;
+
+	/** @param threads
+	 *            The number of regions diffed or applied at once.
+	 * @param memoryBudget
+	 *            In bytes, how much region data may be in use at once. Each region is charged the size of its files, see
+	 *            getCost. */
+	public WorldDelta(int threads, long memoryBudget) {
+		mThreads = Math.max(1, threads);
+		mMemoryBudget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / 1024));
+	}
+
+	/** @return Half of the heap the JVM may grow to. */
+	public static long getDefaultMemoryBudget() {
+		return Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/** @return The region directory of a world, or the directory itself if it has none and holds the region files. */
+	public static File getRegionDirectory(File world) {
+		File region = new File(world, "region");
+		return region.isDirectory() ? region : world;
+	}
+
+	/** @return The names of the region files in the directory, sorted. */
+	private static TreeSet<String> listRegions(File dir) throws IOException {
+		String[] names = dir.list();
+		if (names == null) {
+			throw new IOException("Could not list " + dir.getAbsolutePath());
+		}
+		TreeSet<String> regions = new TreeSet<>();
+		for (String name : names) {
+			if (REGION_NAME.matcher(name).matches()) {
+				regions.add(name);
+			}
+		}
+		return regions;
+	}
+
+	/** Diffs every region of the source world against the destination world, writing the world delta into the output
+	 * directory.
+	 *
+	 * @param options
+	 *            Used for each region. Its executor, if any, diffs the chunks of a region and is shared by every region. */
+	public WorldManifest writeDelta(File sourceWorld, File destWorld, File outputDir, DiffOptions options) throws IOException {
+		File sourceDir = getRegionDirectory(sourceWorld);
+		File destDir = getRegionDirectory(destWorld);
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("Could not create " + outputDir.getAbsolutePath());
+		}
+
+		TreeSet<String> names = listRegions(sourceDir);
+		names.addAll(listRegions(destDir));
+
+		List<RegionTask> tasks = new ArrayList<>();
+		for (String name : names) {
+			tasks.add(new DiffTask(new File(sourceDir, name), new File(destDir, name), outputDir, options));
+		}
+		WorldManifest manifest = new WorldManifest();
+		for (Entry entry : runRegionTasks(tasks)) {
+			manifest.add(entry);
+		}
+		manifest.write(new File(outputDir, WorldManifest.FILE_NAME));
+		manifest.printReport();
+		return manifest;
+	}
+
+	/** Brings a world up to date with a world delta written by writeDelta. Each changed region is patched in place, see
+	 * RegionDelta.applyInPlace, and unchanged regions are not opened. */
+	public WorldManifest applyDelta(File deltaDir, File world) throws IOException {
+		File regionDir = getRegionDirectory(world);
+		WorldManifest manifest = new WorldManifest(new File(deltaDir, WorldManifest.FILE_NAME));
+
+		List<RegionTask> tasks = new ArrayList<>();
+		for (Entry entry : manifest.getEntries()) {
+			if (entry.getChange() != RegionChange.UNCHANGED) {
+				tasks.add(new ApplyTask(entry, deltaDir, regionDir));
+			}
+		}
+		runRegionTasks(tasks);
+		manifest.printReport();
+		return manifest;
+	}
+
+	/** Runs each task on the pool once its cost fits in the memory budget.
+	 *
+	 * @return The result of each task, in the same order as the tasks. */
+	private List<Entry> runRegionTasks(List<RegionTask> tasks) throws IOException {
+		final Semaphore budget = new Semaphore(mMemoryBudget, true);
+		ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+		try {
+			List<Future<Entry>> futures = new ArrayList<>();
+			for (final RegionTask task : tasks) {
+				// A region larger than the whole budget still runs, on its own
+				final int permits = (int) Math.min(mMemoryBudget, Math.max(1, task.getCost() / 1024));
+				futures.add(executor.submit(new Callable<Entry>() {
+					@Override
+					public Entry call() throws IOException, InterruptedException {
+						budget.acquire(permits);
+						try {
+							return task.call();
+						} finally {
+							budget.release(permits);
+						}
+					}
+				}));
+			}
+
+			List<Entry> results = new ArrayList<>();
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw new IOException("Could not process region " + tasks.get(i).getName(), e.getCause());
+					}
+					throw new IllegalStateException("Could not process region " + tasks.get(i).getName(), e.getCause());
+				}
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while processing regions", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static abstract class RegionTask implements Callable<Entry> {
+		abstract String getName();
+
+		/** @return In bytes, an estimate of the memory the task needs. Regions are charged the size of their files, as a lazy
+		 *         region decodes at most those chunks while it is diffed, and usually far fewer. */
+		abstract long getCost();
+
+		@Override
+		public abstract Entry call() throws IOException;
+	}
+
+	private static class DiffTask extends RegionTask {
+		private File mSource;
+		private File mDest;
+		private File mOutputDir;
+		private DiffOptions mOptions;
+
+		DiffTask(File source, File dest, File outputDir, DiffOptions options) {
+			mSource = source;
+			mDest = dest;
+			mOutputDir = outputDir;
+			mOptions = options;
+		}
+
+		@Override
+		String getName() {
+			return mDest.getName();
+		}
+
+		@Override
+		long getCost() {
+			return mSource.length() + mDest.length();
+		}
+
+		@Override
+		public Entry call() throws IOException {
+			if (!mDest.exists()) {
+				return new Entry(getName(), RegionChange.REMOVED);
+			}
+			if (!mSource.exists()) {
+				// Every chunk would be copied from it anyway
+				Entry entry = new Entry(getName(), RegionChange.CREATED);
+				Files.copy(mDest.toPath(), new File(mOutputDir, entry.getDeltaName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				return entry;
+			}
+			if (new RegionPreScan(mSource, mDest, mOptions.isContentCheck()).isIdentical()) {
+				return new Entry(getName(), RegionChange.UNCHANGED);
+			}
+			Entry entry = new Entry(getName(), RegionChange.CHANGED);
+			RegionDelta.writeDelta(mSource, mDest, new File(mOutputDir, entry.getDeltaName()), mOptions);
+			return entry;
+		}
+	}
+
+	private static class ApplyTask extends RegionTask {
+		private Entry mEntry;
+		private File mDeltaDir;
+		private File mRegionDir;
+
+		ApplyTask(Entry entry, File deltaDir, File regionDir) {
+			mEntry = entry;
+			mDeltaDir = deltaDir;
+			mRegionDir = regionDir;
+		}
+
+		@Override
+		String getName() {
+			return mEntry.getName();
+		}
+
+		@Override
+		long getCost() {
+			File delta = mEntry.getDeltaName() == null ? null : new File(mDeltaDir, mEntry.getDeltaName());
+			return new File(mRegionDir, getName()).length() + (delta == null ? 0 : delta.length());
+		}
+
+		@Override
+		public Entry call() throws IOException {
+			File region = new File(mRegionDir, getName());
+			switch (mEntry.getChange()) {
+			case REMOVED:
+				Files.deleteIfExists(region.toPath());
+				break;
+			case CREATED:
+				Files.copy(new File(mDeltaDir, mEntry.getDeltaName()).toPath(), region.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				break;
+			case CHANGED:
+				if (!region.exists()) {
+					throw new IOException("Could not find " + region.getAbsolutePath() + " to apply its delta to");
+				}
+				RegionDelta.applyInPlace(region, new File(mDeltaDir, mEntry.getDeltaName()));
+				break;
+			default:
+				break;
+			}
+			return mEntry;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.cusackj.mcad.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Lists every region of a world delta and what happened to it, so a world can be brought up to date without looking at
+ * regions that did not change.
+ *
+ * Layout: int WORLD_MAGIC, byte version, int number of regions, then for each region its file name and a RegionChange byte.
+ * A changed region has a .mcad named after the region file, a created region is copied whole under its own name, and
+ * unchanged or removed regions have no file. */
+public class WorldManifest {
+	/** The name of the manifest in a world delta directory. */
+	public static final String FILE_NAME = "world.mcadw";
+	public static final int VERSION = 1;
+
+	public enum RegionChange {
+		/** No chunk of the region has changed. */
+		UNCHANGED,
+		/** Written as a .mcad of the region. */
+		CHANGED,
+		/** Only in the destination world, the whole region file is copied. */
+		CREATED,
+		/** Only in the source world. */
+		REMOVED
+	}
+
+	public static class Entry {
+		private String mName;
+		private RegionChange mChange;
+
+		public Entry(String name, RegionChange change) {
+			mName = name;
+			mChange = change;
+		}
+
+		/** @return The name of the region file, r.x.z.mca */
+		public String getName() {
+			return mName;
+		}
+
+		public RegionChange getChange() {
+			return mChange;
+		}
+
+		/** @return The name of this region's file in the world delta, or null if it has none. */
+		public String getDeltaName() {
+			switch (mChange) {
+			case CHANGED:
+				return mName + "d";
+			case CREATED:
+				return mName;
+			default:
+				return null;
+			}
+		}
+	}
+
+	private List<Entry> mEntries = new ArrayList<>();
+
+	public WorldManifest() {
+	}
+
+	public WorldManifest(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (in.readInt() != DeltaFormat.WORLD_MAGIC) {
+				throw new IOException(f.getName() + " is not a world manifest");
+			}
+			int version = in.readUnsignedByte();
+			if (version > VERSION) {
+				throw new IOException(f.getName() + " is version " + version + ", only up to " + VERSION + " can be read");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = in.readUTF();
+				int change = in.readUnsignedByte();
+				if (change >= RegionChange.values().length) {
+					throw new IOException("Unknown change " + change + " for region " + name);
+				}
+				mEntries.add(new Entry(name, RegionChange.values()[change]));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	public void add(Entry entry) {
+		mEntries.add(entry);
+	}
+
+	public List<Entry> getEntries() {
+		return mEntries;
+	}
+
+	public int count(RegionChange change) {
+		int count = 0;
+		for (Entry entry : mEntries) {
+			if (entry.getChange() == change) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void write(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+		try {
+			out.writeInt(DeltaFormat.WORLD_MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(mEntries.size());
+			for (Entry entry : mEntries) {
+				out.writeUTF(entry.getName());
+				out.writeByte(entry.getChange().ordinal());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	public void printReport() {
+		System.out.println("*********************************************************************************");
+		System.out.println(mEntries.size() + " regions in the world delta");
+		System.out.println(count(RegionChange.CHANGED) + " regions have been changed.");
+		System.out.println(count(RegionChange.CREATED) + " regions have been created");
+		System.out.println(count(RegionChange.REMOVED) + " regions have been removed");
+		System.out.println(count(RegionChange.UNCHANGED) + " regions are unchanged");
+		System.out.println("*********************************************************************************");
+	}
+}
@@ -0,0 +1,169 @@
+package com.cusackj.mcad.model;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Stored chunk payloads kept compressed in direct memory, outside the heap, so a long-lived process can keep many regions
+ * resident without the garbage collector having to walk their tags. Chunks are only decoded when they are asked for from a
+ * Region.
+ *
+ * Chunks are keyed by the canonical path of their region file, their index and timestamp. A chunk is taken to be unchanged
+ * for as long as its timestamp is, as RegionPreScan does, but only within the one file: another world or a copy of the file
+ * can have other contents under the same timestamps, so it has entries of its own. Payloads are split over fixed size
+ * blocks of a few large buffers that are allocated up front, tracked in a bitmap of used blocks, and the least recently used
+ * chunks are evicted once the budget is full. */
+public class ChunkCache {
+	public static final int BLOCK_BYTES = 4096;
+	/** Each buffer is at most this large, a ByteBuffer is indexed by int. */
+	private static final int BUFFER_BYTES = 1 << 30;
+
+	private static class Key {
+		private String mFile;
+		private int mIndex;
+		private long mTimestamp;
+
+		Key(String file, int index, long timestamp) {
+			mFile = file;
+			mIndex = index;
+			mTimestamp = timestamp;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key) o;
+			return mIndex == k.mIndex && mTimestamp == k.mTimestamp && mFile.equals(k.mFile);
+		}
+
+		@Override
+		public int hashCode() {
+			return (mFile.hashCode() * 1031 + mIndex) * 31 + (int) (mTimestamp ^ mTimestamp >>> 32);
+		}
+	}
+
+	private static class Entry {
+		private int mLength;
+		private int[] mBlocks;
+	}
+
+	private ByteBuffer[] mBuffers;
+	private int mBlocksPerBuffer = BUFFER_BYTES / BLOCK_BYTES;
+	private int mBlocks;
+	private BitSet mUsedBlocks = new BitSet();
+	private int mFreeBlocks;
+	/** In access order, so the first entry is the least recently used. */
+	private LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+	private long mHits = 0;
+	private long mMisses = 0;
+	private long mEvictions = 0;
+
+	/** @param budget
+	 *            The bytes of direct memory to keep payloads in, all of which is allocated now. */
+	public ChunkCache(long budget) {
+		mBlocks = (int) Math.min(budget / BLOCK_BYTES, Integer.MAX_VALUE);
+		mFreeBlocks = mBlocks;
+		mBuffers = new ByteBuffer[(mBlocks + mBlocksPerBuffer - 1) / mBlocksPerBuffer];
+		for (int i = 0; i < mBuffers.length; i++) {
+			int blocks = Math.min(mBlocksPerBuffer, mBlocks - i * mBlocksPerBuffer);
+			mBuffers[i] = ByteBuffer.allocateDirect(blocks * BLOCK_BYTES);
+		}
+	}
+
+	/** @param file
+	 *            The canonical path of the region file the chunk is stored in.
+	 * @return A copy of the cached payload, or null if the chunk at this timestamp is not cached. */
+	public synchronized byte[] get(String file, int index, long timestamp) {
+		Entry entry = mEntries.get(new Key(file, index, timestamp));
+		if (entry == null) {
+			mMisses++;
+			return null;
+		}
+		mHits++;
+		byte[] payload = new byte[entry.mLength];
+		for (int i = 0, offset = 0; offset < payload.length; i++, offset += BLOCK_BYTES) {
+			getBlock(entry.mBlocks[i]).get(payload, offset, Math.min(BLOCK_BYTES, payload.length - offset));
+		}
+		return payload;
+	}
+
+	/** Caches a chunk's stored payload, evicting the least recently used chunks to make room. A payload larger than the whole
+	 * budget is not cached. */
+	public synchronized void put(String file, int index, long timestamp, byte[] payload) {
+		Key key = new Key(file, index, timestamp);
+		Entry old = mEntries.remove(key);
+		if (old != null) {
+			free(old);
+		}
+		int blocks = (payload.length + BLOCK_BYTES - 1) / BLOCK_BYTES;
+		if (blocks > mBlocks) {
+			return;
+		}
+		Iterator<Entry> eldest = mEntries.values().iterator();
+		while (mFreeBlocks < blocks) {
+			free(eldest.next());
+			eldest.remove();
+			mEvictions++;
+		}
+
+		Entry entry = new Entry();
+		entry.mLength = payload.length;
+		entry.mBlocks = new int[blocks];
+		int block = 0;
+		for (int i = 0, offset = 0; i < blocks; i++, offset += BLOCK_BYTES) {
+			block = mUsedBlocks.nextClearBit(block);
+			mUsedBlocks.set(block);
+			entry.mBlocks[i] = block;
+			getBlock(block).put(payload, offset, Math.min(BLOCK_BYTES, payload.length - offset));
+		}
+		mFreeBlocks -= blocks;
+		mEntries.put(key, entry);
+	}
+
+	private void free(Entry entry) {
+		for (int block : entry.mBlocks) {
+			mUsedBlocks.clear(block);
+		}
+		mFreeBlocks += entry.mBlocks.length;
+	}
+
+	/** @return A buffer positioned at the start of the block. */
+	private ByteBuffer getBlock(int block) {
+		ByteBuffer buffer = mBuffers[block / mBlocksPerBuffer].duplicate();
+		buffer.position(block % mBlocksPerBuffer * BLOCK_BYTES);
+		return buffer;
+	}
+
+	/** @return The bytes of direct memory the cache was given, rounded down to whole blocks. */
+	public long getCapacity() {
+		return (long) mBlocks * BLOCK_BYTES;
+	}
+
+	/** @return The bytes of blocks in use, including the unused end of each chunk's last block. */
+	public synchronized long getUsedBytes() {
+		return (long) (mBlocks - mFreeBlocks) * BLOCK_BYTES;
+	}
+
+	public synchronized int getNumberOfChunks() {
+		return mEntries.size();
+	}
+
+	public synchronized void printReport() {
+		System.out.println("*********************************************************************************");
+		System.out.println(mEntries.size() + " chunks cached in " + getUsedBytes() + " of " + getCapacity() + " bytes");
+		System.out.println(mHits + " hits, " + mMisses + " misses, " + mEvictions + " evictions");
+		System.out.println("*********************************************************************************");
+	}
+
+	/** Drops every chunk. The direct memory stays allocated until the cache is garbage collected. */
+	public synchronized void clear() {
+		mEntries.clear();
+		mUsedBlocks.clear();
+		mFreeBlocks = mBlocks;
+	}
+}
@@ -0,0 +1,59 @@
+package com.cusackj.mcad.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.NBTInputStream;
+import org.jnbt.NBTOutputStream;
+import org.jnbt.RegionFile;
+
+/** A RegionFile that can also be given a chunk's stored payload, which is written to its sectors as it is without being
+ * inflated or deflated again. */
+public class RawRegionFile extends RegionFile {
+	/** The compression type byte of a zlib payload, the only kind RegionFile writes. */
+	public static final byte COMPRESSION_DEFLATE = 2;
+
+	public RawRegionFile(File f) {
+		super(f);
+	}
+
+	/** @param payload
+	 *            The compression type byte followed by the compressed NBT, as read by RegionHeader.readPayload. */
+	public void writePayload(int x, int z, byte[] payload, long timestamp) {
+		if (payload[0] != COMPRESSION_DEFLATE) {
+			throw new IllegalArgumentException("Only zlib chunk payloads can be written, not compression type " + payload[0]);
+		}
+		// RegionFile writes the length and the type byte itself
+		write(x & 31, z & 31, Arrays.copyOfRange(payload, 1, payload.length), payload.length - 1, timestamp);
+	}
+
+	/** @return The zlib payload of a chunk, as writePayload takes it. */
+	public static byte[] createPayload(CompoundTag chunkTag) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.write(COMPRESSION_DEFLATE);
+		NBTOutputStream out = new NBTOutputStream(new DeflaterOutputStream(bytes));
+		out.writeTag(chunkTag);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Inflates and parses a stored payload, gzip or zlib. */
+	public static CompoundTag readPayload(byte[] payload) throws IOException {
+		InputStream data = new ByteArrayInputStream(payload, 1, payload.length - 1);
+		data = payload[0] == COMPRESSION_DEFLATE ? new InflaterInputStream(data) : new GZIPInputStream(data);
+		NBTInputStream in = new NBTInputStream(data);
+		try {
+			return (CompoundTag) in.readTag();
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -1,69 +1,158 @@
 package com.cusackj.mcad.model;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-import org.jnbt.CompoundTag;
 import org.jnbt.IntTag;
-import org.jnbt.NBTInputStream;
-import org.jnbt.NBTOutputStream;
-import org.jnbt.NBTUtils;
-import org.jnbt.RegionFile;
 
-import com.cusackj.mcad.debug.ChunkCompare;
-
-public class Region {
-	private RegionFile mRegionFile;
+public class Region implements Closeable {
+	/** The file the region was read from, for reading stored chunk payloads. null for an empty region. */
+	private File mFile;
+	/** Opened the first time a stored chunk payload is read and kept open until the region is closed, rather than opening
+	 * the file for every chunk. Guarded by the region's lock. */
+	private RandomAccessFile mStored;
+	private boolean mClosed = false;
+	/** Read when a lazy region is opened, otherwise the first time a stored chunk payload is asked for. */
+	private RegionHeader mHeader;
 	private int mX;
 	private int mZ;
 	private List<Chunk> mChunks = new ArrayList<Chunk>();
 
+	/** If true, chunks are only decoded from the file when they are first asked for. */
+	private boolean mLazy = false;
+	/** Lazy mode only, chunks that have been removed and must not be read from the file again. */
+	private boolean[] mRemoved = new boolean[RegionHeader.CHUNKS];
+	/** Lazy mode only, chunks that have been set and can not be released. */
+	private boolean[] mModified = new boolean[RegionHeader.CHUNKS];
+	/** Lazy mode only, stored chunks whose timestamp has been changed without changing their payload. */
+	private boolean[] mTouched = new boolean[RegionHeader.CHUNKS];
+	private long[] mTouchedTimestamps = new long[RegionHeader.CHUNKS];
+
+	/** Chunks that have been set from their stored payload, which is written out as it is. They are only decoded if they
+	 * are asked for. */
+	private byte[][] mRawPayloads = new byte[RegionHeader.CHUNKS][];
+	private long[] mRawTimestamps = new long[RegionHeader.CHUNKS];
+	private int mRawChunks = 0;
+
+	/** Lazy mode only, stored payloads shared with other regions. null if chunks are always read from the file. */
+	private ChunkCache mCache;
+	/** The canonical path of the file, which the cache keys its chunks by. */
+	private String mCachePath;
+
 	public Region(File f) {
-		String[] parts = f.getName().split("\\.");
-		if (parts.length != 4 || !parts[0].equalsIgnoreCase("r") || !parts[3].equalsIgnoreCase("mca")) {
-			System.out.println((parts.length != 4) + " " + !parts[0].equalsIgnoreCase("r") + " " + !parts[3].equalsIgnoreCase("mca"));
-			throw new IllegalArgumentException("Filename must follow the format r.x.z.mca!");
+		this(f, null);
+	}
+
+	/** @param lazy
+	 *            If true, only the region header is read up front. Each chunk is inflated and parsed the first time it is asked
+	 *            for, and can be dropped again with releaseChunk. */
+	public Region(File f, boolean lazy) {
+		parseName(f);
+		mFile = f;
+		mLazy = lazy;
+		if (!lazy) {
+			readData(null, null);
+			return;
 		}
-		mX = Integer.parseInt(parts[1]);
-		mZ = Integer.parseInt(parts[2]);
-		mRegionFile = new RegionFile(f);
+		// Chunk presence and timestamps come from the header, the file is only opened again once a chunk is read
+		try {
+			mHeader = new RegionHeader(f);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Could not read the header of " + f.getName(), e);
+		}
+	}
 
-		readData();
+	/** Loads only some of the chunks in a region file.
+	 * 
+	 * @param chunkMask
+	 *            A bit for each chunk in the region, indexed by (x & 31) + (z & 31) * 32. Only chunks with a set bit are loaded.
+	 *            If null, every chunk is loaded. */
+	public Region(File f, byte[] chunkMask) {
+		this(f, chunkMask, null);
+	}
+
+	/** As Region(File, byte[]), with the chunks inflated and parsed on the executor, or on the calling thread if it is
+	 * null. */
+	public Region(File f, byte[] chunkMask, ExecutorService executor) {
+		parseName(f);
+		mFile = f;
+
+		readData(chunkMask, executor);
 	}
 
 	public Region() {
 		// TODO Auto-generated constructor stub
 	}
 
-	public int getNumberOfChunks() {
-		return mChunks.size();
+	private void parseName(File f) {
+		String[] parts = f.getName().split("\\.");
+		if (parts.length != 4 || !parts[0].equalsIgnoreCase("r") || !parts[3].equalsIgnoreCase("mca")) {
+			System.out.println((parts.length != 4) + " " + !parts[0].equalsIgnoreCase("r") + " " + !parts[3].equalsIgnoreCase("mca"));
+			throw new IllegalArgumentException("Filename must follow the format r.x.z.mca!");
+		}
+		mX = Integer.parseInt(parts[1]);
+		mZ = Integer.parseInt(parts[2]);
 	}
 
-	private void readData() {
+	public synchronized int getNumberOfChunks() {
+		if (!mLazy) {
+			return mChunks.size() + mRawChunks;
+		}
+		int count = 0;
 		for (int x = mX * 32; x < mX * 32 + 32; x++) {
 			for (int z = mZ * 32; z < mZ * 32 + 32; z++) {
-				// For each chunk that exists, extract NBT data
-				if (mRegionFile.hasChunk(x, z)) {
-					try {
-						long chunkLastModified = mRegionFile.getTimeStamp(x, z);
-						NBTInputStream in = new NBTInputStream(mRegionFile.getChunkDataInputStream(x, z));
-						CompoundTag chunkTag = (CompoundTag) in.readTag();
-
-						mChunks.add(new Chunk(chunkTag, x, z, chunkLastModified));
-						in.close();
-					} catch (Exception e) {
-						System.out.println("Could not load chunk [" + x + ", " + z + "].");
-						e.printStackTrace();
-					}
+				if (hasChunk(x, z)) {
+					count++;
 				}
 			}
 		}
+		return count;
+	}
+
+	public boolean isLazy() {
+		return mLazy;
+	}
+
+	/** @param cache
+	 *            Lazy mode only. Chunks are decoded from their payload in the cache if it is there, and their payload is cached
+	 *            when it is read from the file. null to always read from the file. */
+	public void setChunkCache(ChunkCache cache) {
+		mCache = cache;
+	}
+
+	private void readData(byte[] chunkMask, ExecutorService executor) {
+		try {
+			mChunks.addAll(new RegionReader(mFile).readChunks(mX, mZ, chunkMask, executor));
+		} catch (IOException e) {
+			System.out.println("Could not read " + mFile.getName() + ".");
+			e.printStackTrace();
+		}
 		System.out.println("Loaded " + mChunks.size() + " chunks.");
 	}
 
+	/** Lazy mode only, reads a chunk from its stored payload. Does not touch the region's state, so it can be called without
+	 * holding the lock. */
+	private Chunk readChunk(int x, int z) {
+		int index = RegionHeader.getIndex(x, z);
+		try {
+			return new Chunk(RawRegionFile.readPayload(readStoredPayload(index)), x, z, mHeader.getTimestamp(index));
+		} catch (Exception e) {
+			System.out.println("Could not load chunk [" + x + ", " + z + "].");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public int getX() {
 		return mX;
 	}
@@ -73,25 +162,147 @@ public class Region {
 	}
 
 	public void write(File file) throws IOException {
-		RegionFile regionFile = new RegionFile(file);
-		for (Chunk ac : mChunks) {
-			NBTOutputStream outs = new NBTOutputStream(regionFile.getChunkDataOutputStream(ac.getX(), ac.getZ(), ac.getLastModified()));
-			outs.writeTag(ac.getTag());
-			outs.close();
-			ChunkCompare.compareBytes(ac.getX(), ac.getZ(), NBTUtils.writeTagToBytes(ac.getTag()));
-			if(ac.getX()!=NBTUtils.getXPosFromChunkTag(ac.getTag()) ||ac.getZ() != NBTUtils.getZPosFromChunkTag(ac.getTag())){
-				System.out.println("are these equal? " + ac.getX() + "=" + NBTUtils.getXPosFromChunkTag(ac.getTag()) + ", " + ac.getZ() + "=" + NBTUtils.getZPosFromChunkTag(ac.getTag()));
+		write(file, null);
+	}
+
+	/** Writes the region to a file in one pass, see RegionWriter. Chunks that were set from or are still stored as a payload
+	 * are written as they are, the rest are deflated first. The whole file is replaced, and may be the file this region was
+	 * read from, as every chunk has been read before it is opened.
+	 * 
+	 * @param executor
+	 *            The executor to deflate chunks on, or null to deflate them on the calling thread. */
+	public void write(File file, ExecutorService executor) throws IOException {
+		RegionWriter writer = new RegionWriter();
+		List<DeflateTask> tasks = new ArrayList<>();
+		for (int index = 0; index < RegionHeader.CHUNKS; index++) {
+			int x = mX * 32 + (index & 31);
+			int z = mZ * 32 + index / 32;
+			byte[] payload = getStoredPayload(x, z);
+			if (payload != null) {
+				writer.setPayload(index, payload, getChunkTimestamp(x, z));
+			} else if (hasChunk(x, z)) {
+				tasks.add(new DeflateTask(x, z));
+			}
+		}
+
+		if (executor == null) {
+			for (DeflateTask task : tasks) {
+				writer.setPayload(RegionHeader.getIndex(task.mX, task.mZ), task.call(), task.mTimestamp);
+			}
+		} else {
+			try {
+				List<Future<byte[]>> futures = executor.invokeAll(tasks);
+				for (int i = 0; i < futures.size(); i++) {
+					DeflateTask task = tasks.get(i);
+					writer.setPayload(RegionHeader.getIndex(task.mX, task.mZ), futures.get(i).get(), task.mTimestamp);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while deflating chunks");
+			} catch (ExecutionException e) {
+				throw new IOException("Could not deflate chunk", e.getCause());
+			}
+		}
+		writer.write(file);
+		System.out.println("Wrote " + writer.getNumberOfChunks() + " chunks to a region file");
+	}
+
+	/** Deflates one chunk that has no stored payload to write, releasing it afterwards in lazy mode. */
+	private class DeflateTask implements Callable<byte[]> {
+		private int mX;
+		private int mZ;
+		private long mTimestamp;
+
+		DeflateTask(int x, int z) {
+			mX = x;
+			mZ = z;
+		}
+
+		/** @return The payload, or null if the chunk could not be decoded and is left out. */
+		@Override
+		public byte[] call() throws IOException {
+			Chunk c = getChunk(mX, mZ);
+			if (c == null) {
+				return null;
 			}
-			
+			mTimestamp = c.getLastModified();
+			byte[] payload = RawRegionFile.createPayload(c.getTag());
+			releaseChunk(mX, mZ);
+			return payload;
+		}
+	}
+
+	/** @return The payload a chunk was set from, or in lazy mode the payload stored in the file for a chunk that has not been
+	 *         set or removed since it was opened. null if the chunk has to be deflated. */
+	private synchronized byte[] getStoredPayload(int x, int z) throws IOException {
+		int index = RegionHeader.getIndex(x, z);
+		if (mRawPayloads[index] != null) {
+			return mRawPayloads[index];
+		}
+		if (!mLazy || mModified[index] || mRemoved[index] || !mHeader.hasChunk(index)) {
+			return null;
+		}
+		return readStoredPayload(index);
+	}
+
+	/** Closes the region file. A lazy region can not decode any more chunks afterwards. */
+	@Override
+	public synchronized void close() throws IOException {
+		mClosed = true;
+		if (mStored != null) {
+			mStored.close();
+			mStored = null;
 		}
-		System.out.println("Wrote " + mChunks.size() + " chunks to a region file");
 	}
 
 	public long getLastModified() {
-		return mRegionFile.lastModified();
+		return mFile.lastModified();
 	}
 
+	/** Returns a loaded chunk, or decodes it. Chunks are decoded without holding the region's lock, so several threads can
+	 * decode chunks of the same region at once. */
 	public Chunk getChunk(int x, int z) {
+		int index = RegionHeader.getIndex(x, z);
+		while (true) {
+			byte[] raw;
+			long rawTimestamp;
+			synchronized (this) {
+				Chunk loaded = getLoadedChunk(x, z);
+				if (loaded != null) {
+					return loaded;
+				}
+				raw = mRawPayloads[index];
+				rawTimestamp = mRawTimestamps[index];
+				if (raw == null && (!mLazy || mRemoved[index] || mModified[index] || !mHeader.hasChunk(index))) {
+					return null;
+				}
+			}
+
+			Chunk c = raw != null ? decodePayload(raw, x, z, rawTimestamp) : readChunk(x, z);
+
+			synchronized (this) {
+				Chunk loaded = getLoadedChunk(x, z);
+				if (loaded != null) {
+					// Decoded by another thread in the meantime
+					return loaded;
+				}
+				boolean unchanged = raw != null ? mRawPayloads[index] == raw : mRawPayloads[index] == null && !mRemoved[index] && !mModified[index];
+				if (unchanged) {
+					// Once it has been asked for it may be changed, so a raw chunk is kept decoded from now on
+					clearRawChunk(index);
+					if (c != null) {
+						// The timestamp may have been changed in the meantime
+						c.setLastModified(raw != null ? mRawTimestamps[index] : getStoredTimestamp(index));
+						mChunks.add(c);
+					}
+					return c;
+				}
+			}
+			// The chunk was set or removed while it was being decoded, so what was decoded is out of date
+		}
+	}
+
+	private Chunk getLoadedChunk(int x, int z) {
 		for (Chunk c : mChunks) {
 			if (c.getX() == x && c.getZ() == z) {
 				return c;
@@ -100,27 +311,178 @@ public class Region {
 		return null;
 	}
 
-	public void setChunk(Chunk c) {
-		if (getChunk(c.getX(), c.getZ()) == null) {
-			mChunks.add(c);
-		} else {
-			mChunks.remove(getChunk(c.getX(), c.getZ()));
-			mChunks.add(c);
+	public synchronized void setChunk(Chunk c) {
+		Chunk existing = getLoadedChunk(c.getX(), c.getZ());
+		if (existing != null) {
+			mChunks.remove(existing);
+		}
+		mChunks.add(c);
+		clearRawChunk(RegionHeader.getIndex(c.getX(), c.getZ()));
+		mModified[RegionHeader.getIndex(c.getX(), c.getZ())] = true;
+		mTouched[RegionHeader.getIndex(c.getX(), c.getZ())] = false;
+	}
+
+	/** Changes only the timestamp of a chunk. A chunk that is still stored in the file, or was set from its payload, is not
+	 * decoded and is written out with the payload it has.
+	 * 
+	 * @return false if the region does not have the chunk. */
+	public synchronized boolean setChunkTimestamp(int x, int z, long timestamp) {
+		if (!hasChunk(x, z)) {
+			return false;
+		}
+		int index = RegionHeader.getIndex(x, z);
+		Chunk loaded = getLoadedChunk(x, z);
+		if (loaded != null) {
+			loaded.setLastModified(timestamp);
+		}
+		if (mRawPayloads[index] != null) {
+			mRawTimestamps[index] = timestamp;
+		} else if (mLazy && !mModified[index]) {
+			// Kept even if the decoded chunk is released
+			mTouched[index] = true;
+			mTouchedTimestamps[index] = timestamp;
+		}
+		return true;
+	}
+
+	/** Lazy mode only, the timestamp of a chunk that is stored in the file. */
+	private long getStoredTimestamp(int index) {
+		return mTouched[index] ? mTouchedTimestamps[index] : mHeader.getTimestamp(index);
+	}
+
+	/** Sets a chunk from its stored payload, which is written to the region file as it is. Nothing is decoded.
+	 * 
+	 * @param payload
+	 *            The compression type byte followed by the compressed NBT, as read by getRawChunk. */
+	public synchronized void setRawChunk(int x, int z, byte[] payload, long timestamp) {
+		Chunk existing = getLoadedChunk(x, z);
+		if (existing != null) {
+			mChunks.remove(existing);
+		}
+		int index = RegionHeader.getIndex(x, z);
+		if (mRawPayloads[index] == null) {
+			mRawChunks++;
+		}
+		mRawPayloads[index] = payload;
+		mRawTimestamps[index] = timestamp;
+		mRemoved[index] = false;
+		mModified[index] = true;
+		mTouched[index] = false;
+	}
+
+	/** Reads the stored payload of a chunk from the region file without inflating it.
+	 * 
+	 * @return The compression type byte followed by the compressed NBT, or null if the chunk is not present or no longer
+	 *         matches the file because it has been set or removed. */
+	public synchronized byte[] getRawChunk(int x, int z) throws IOException {
+		int index = RegionHeader.getIndex(x, z);
+		if (mRawPayloads[index] != null) {
+			return mRawPayloads[index];
+		}
+		if (mFile == null || mModified[index] || mRemoved[index]) {
+			return null;
+		}
+		return readStoredPayload(index);
+	}
+
+	/** Reads a chunk's payload from the file, or from the chunk cache if it is there. Only the read itself holds the lock,
+	 * not decoding the payload afterwards. */
+	private byte[] readStoredPayload(int index) throws IOException {
+		RegionHeader header;
+		synchronized (this) {
+			if (mHeader == null) {
+				mHeader = new RegionHeader(mFile);
+			}
+			if (mCache != null && mCachePath == null) {
+				mCachePath = mFile.getCanonicalPath();
+			}
+			header = mHeader;
+		}
+		byte[] payload = mCache == null ? null : mCache.get(mCachePath, index, header.getTimestamp(index));
+		if (payload != null) {
+			return payload;
+		}
+		synchronized (this) {
+			if (mClosed) {
+				throw new IOException(mFile.getName() + " has been closed");
+			}
+			if (mStored == null) {
+				mStored = new RandomAccessFile(mFile, "r");
+			}
+			payload = header.readPayload(mStored, index);
+		}
+		if (mCache != null && payload != null) {
+			mCache.put(mCachePath, index, header.getTimestamp(index), payload);
+		}
+		return payload;
+	}
+
+	private void clearRawChunk(int index) {
+		if (mRawPayloads[index] != null) {
+			mRawPayloads[index] = null;
+			mRawChunks--;
+		}
+	}
+
+	private static Chunk decodePayload(byte[] payload, int x, int z, long timestamp) {
+		try {
+			return new Chunk(RawRegionFile.readPayload(payload), x, z, timestamp);
+		} catch (IOException e) {
+			System.out.println("Could not decode chunk [" + x + ", " + z + "].");
+			e.printStackTrace();
+			return null;
 		}
 	}
 	
-	public void removeChunk(int x, int z){
-		Chunk toRemove = getChunk(x, z);
+	public synchronized void removeChunk(int x, int z){
+		Chunk toRemove = getLoadedChunk(x, z);
 		if(toRemove!=null) mChunks.remove(toRemove);
+		clearRawChunk(RegionHeader.getIndex(x, z));
+		mRemoved[RegionHeader.getIndex(x, z)] = true;
+		mModified[RegionHeader.getIndex(x, z)] = false;
+		mTouched[RegionHeader.getIndex(x, z)] = false;
+	}
+
+	/** Drops a decoded chunk in lazy mode, it will be decoded again if it is asked for. Chunks that have been set are kept, as
+	 * the file no longer holds their contents. Does nothing if the region is not lazy. */
+	public synchronized void releaseChunk(int x, int z) {
+		if (!mLazy || mModified[RegionHeader.getIndex(x, z)]) {
+			return;
+		}
+		Chunk toRelease = getLoadedChunk(x, z);
+		if (toRelease != null) mChunks.remove(toRelease);
+	}
+
+	public synchronized boolean hasChunk(int x, int z) {
+		if (getLoadedChunk(x, z) != null || mRawPayloads[RegionHeader.getIndex(x, z)] != null) {
+			return true;
+		}
+		return mLazy && !mRemoved[RegionHeader.getIndex(x, z)] && mHeader.hasChunk(RegionHeader.getIndex(x, z));
 	}
 
-	public boolean hasChunk(int x, int z) {
-		return (getChunk(x, z) != null);
+	/** @return The newest chunk timestamp in the region, 0 if it has no chunks. This identifies a state of the region, see
+	 *         RegionDelta.getSourceTimestamp. */
+	public synchronized long getNewestTimestamp() {
+		long newest = 0;
+		for (int x = mX * 32; x < mX * 32 + 32; x++) {
+			for (int z = mZ * 32; z < mZ * 32 + 32; z++) {
+				newest = Math.max(newest, getChunkTimestamp(x, z));
+			}
+		}
+		return newest;
 	}
 
-	public long getChunkTimestamp(int x, int z) {
+	/** The timestamp of a chunk, read from the region header in lazy mode so the chunk does not need to be decoded. */
+	public synchronized long getChunkTimestamp(int x, int z) {
+		Chunk loaded = getLoadedChunk(x, z);
+		if (loaded != null) {
+			return loaded.getLastModified();
+		}
+		if (mRawPayloads[RegionHeader.getIndex(x, z)] != null) {
+			return mRawTimestamps[RegionHeader.getIndex(x, z)];
+		}
 		if (hasChunk(x, z)) {
-			return getChunk(x, z).getLastModified();
+			return getStoredTimestamp(RegionHeader.getIndex(x, z));
 		} else {
 			return -1;
 		}
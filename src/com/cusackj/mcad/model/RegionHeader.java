@@ -0,0 +1,102 @@
+package com.cusackj.mcad.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** The location and timestamp tables at the start of a .mca file. Only the 8 KiB header is mapped, no chunk data is read
+ * unless readPayload is called.
+ *
+ * Chunks are indexed by their position within the region, (x & 31) + (z & 31) * 32. */
+public class RegionHeader {
+	public static final int SECTOR_BYTES = 4096;
+	public static final int CHUNKS = 32 * 32;
+	public static final int HEADER_BYTES = SECTOR_BYTES * 2;
+
+	/** Sector offset in the upper 3 bytes, sector count in the lowest byte. 0 if the chunk is not present. */
+	private int[] mLocations = new int[CHUNKS];
+	private int[] mTimestamps = new int[CHUNKS];
+
+	public RegionHeader(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			// A region file that has just been created may not have a header yet, in which case it has no chunks
+			long length = Math.min(channel.size(), HEADER_BYTES);
+			read(channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+		} finally {
+			file.close();
+		}
+	}
+
+	/** @param region
+	 *            The whole region file, or at least its header, from position 0. */
+	public RegionHeader(ByteBuffer region) {
+		ByteBuffer header = region.duplicate();
+		header.position(0);
+		header.limit(Math.min(header.capacity(), HEADER_BYTES));
+		read(header);
+	}
+
+	private void read(ByteBuffer header) {
+		for (int i = 0; i < CHUNKS && header.remaining() >= 4; i++) {
+			mLocations[i] = header.getInt();
+		}
+		for (int i = 0; i < CHUNKS && header.remaining() >= 4; i++) {
+			mTimestamps[i] = header.getInt();
+		}
+	}
+
+	public static int getIndex(int x, int z) {
+		return (x & 31) + (z & 31) * 32;
+	}
+
+	public boolean hasChunk(int index) {
+		return mLocations[index] != 0;
+	}
+
+	public int getSectorOffset(int index) {
+		return mLocations[index] >>> 8;
+	}
+
+	public int getSectorCount(int index) {
+		return mLocations[index] & 0xFF;
+	}
+
+	public int getTimestamp(int index) {
+		return mTimestamps[index];
+	}
+
+	/** @return The newest timestamp of any chunk in the region, 0 if it has no chunks. */
+	public long getNewestTimestamp() {
+		long newest = 0;
+		for (int i = 0; i < CHUNKS; i++) {
+			if (hasChunk(i)) {
+				newest = Math.max(newest, mTimestamps[i]);
+			}
+		}
+		return newest;
+	}
+
+	/** Reads the stored payload of a chunk as it is in the file, the compression type byte followed by the compressed NBT.
+	 * Nothing is inflated.
+	 * 
+	 * @param file
+	 *            The region file this header was read from.
+	 * @return The payload, or null if the chunk is not present. */
+	public byte[] readPayload(RandomAccessFile file, int index) throws IOException {
+		if (!hasChunk(index)) {
+			return null;
+		}
+		file.seek((long) getSectorOffset(index) * SECTOR_BYTES);
+		int length = file.readInt();
+		if (length <= 0 || length > getSectorCount(index) * SECTOR_BYTES - 4) {
+			throw new IOException("Chunk " + index + " has an invalid length of " + length);
+		}
+		byte[] payload = new byte[length];
+		file.readFully(payload);
+		return payload;
+	}
+}
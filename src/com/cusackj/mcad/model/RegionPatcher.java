@@ -0,0 +1,272 @@
+package com.cusackj.mcad.model;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import com.cusackj.utils.HashUtils;
+
+/** Changes chunks of a .mca file in place, writing only the sectors of the chunks that change and the header.
+ *
+ * A changed chunk is always written to free sectors, so the sectors the header points at are never overwritten, and its old
+ * sectors are only freed once the new header is in place. The new header is first written to a journal next to the region
+ * file, so a crash leaves either the old header or a journal that is replayed the next time the region is opened. Either
+ * way the header only points at complete chunks.
+ *
+ * Chunks are indexed by their position within the region, as in RegionHeader. */
+public class RegionPatcher implements Closeable {
+	/** "MCAJ", the first 4 bytes of a journal. */
+	private static final int JOURNAL_MAGIC = 0x4D43414A;
+	/** A chunk can span at most this many sectors, the count is a single byte. */
+	private static final int MAX_SECTORS = 255;
+
+	private File mFile;
+	private File mJournal;
+	private RandomAccessFile mRegion;
+
+	/** Sector offset in the upper 3 bytes, sector count in the lowest byte, as in the file. */
+	private int[] mLocations = new int[RegionHeader.CHUNKS];
+	private int[] mTimestamps = new int[RegionHeader.CHUNKS];
+	/** Sectors in use by the header, a chunk in the file, or a chunk written since the last commit. */
+	private BitSet mUsedSectors = new BitSet();
+	private int mSectors;
+
+	/** The locations in the file's header, as of the last commit. */
+	private int[] mCommittedLocations;
+	/** Committed locations that have been replaced, freed once the new header is committed. */
+	private List<Integer> mReplacedLocations = new ArrayList<>();
+	private boolean mDirty = false;
+
+	private long mBytesWritten = 0;
+
+	/** Opens a region file for patching, finishing a patch that was interrupted after its journal was written. */
+	public RegionPatcher(File f) throws IOException {
+		mFile = f;
+		mJournal = new File(f.getPath() + ".journal");
+		mRegion = new RandomAccessFile(f, "rw");
+		if (mJournal.exists()) {
+			recover();
+		}
+		if (mRegion.length() < RegionHeader.HEADER_BYTES) {
+			mRegion.setLength(RegionHeader.HEADER_BYTES);
+		}
+
+		RegionHeader header = new RegionHeader(f);
+		mSectors = (int) ((mRegion.length() + RegionHeader.SECTOR_BYTES - 1) / RegionHeader.SECTOR_BYTES);
+		mUsedSectors.set(0, 2);
+		for (int i = 0; i < RegionHeader.CHUNKS; i++) {
+			mTimestamps[i] = header.getTimestamp(i);
+			if (header.hasChunk(i)) {
+				mLocations[i] = header.getSectorOffset(i) << 8 | header.getSectorCount(i);
+				mUsedSectors.set(header.getSectorOffset(i), header.getSectorOffset(i) + header.getSectorCount(i));
+			}
+		}
+		mCommittedLocations = mLocations.clone();
+	}
+
+	/** Writes the header from a complete journal, or drops a journal that was not completely written, in which case the old
+	 * header is still in place. */
+	private void recover() throws IOException {
+		byte[] header = new byte[RegionHeader.HEADER_BYTES];
+		boolean complete = false;
+		if (mJournal.length() == 4 + header.length + 8) {
+			DataInputStream in = new DataInputStream(new FileInputStream(mJournal));
+			try {
+				if (in.readInt() == JOURNAL_MAGIC) {
+					in.readFully(header);
+					complete = in.readLong() == HashUtils.hash(header);
+				}
+			} finally {
+				in.close();
+			}
+		}
+		if (complete) {
+			System.out.println("Finishing an interrupted patch of " + mFile.getName());
+			mRegion.seek(0);
+			mRegion.write(header);
+			mRegion.getChannel().force(true);
+		}
+		Files.delete(mJournal.toPath());
+	}
+
+	public boolean hasChunk(int x, int z) {
+		return mLocations[RegionHeader.getIndex(x, z)] != 0;
+	}
+
+	public int getTimestamp(int x, int z) {
+		return mTimestamps[RegionHeader.getIndex(x, z)];
+	}
+
+	/** @return The stored payload, the compression type byte followed by the compressed NBT, or null if the chunk is not
+	 *         present. */
+	public byte[] readPayload(int x, int z) throws IOException {
+		int location = mLocations[RegionHeader.getIndex(x, z)];
+		if (location == 0) {
+			return null;
+		}
+		mRegion.seek((long) (location >>> 8) * RegionHeader.SECTOR_BYTES);
+		int length = mRegion.readInt();
+		if (length <= 0 || length > (location & 0xFF) * RegionHeader.SECTOR_BYTES - 4) {
+			throw new IOException("Chunk " + RegionHeader.getIndex(x, z) + " has an invalid length of " + length);
+		}
+		byte[] payload = new byte[length];
+		mRegion.readFully(payload);
+		return payload;
+	}
+
+	/** Writes a chunk's payload to free sectors. The header is not changed until commit.
+	 *
+	 * @param payload
+	 *            The compression type byte followed by the compressed NBT. */
+	public void writePayload(int x, int z, byte[] payload, long timestamp) throws IOException {
+		int count = (payload.length + 4 + RegionHeader.SECTOR_BYTES - 1) / RegionHeader.SECTOR_BYTES;
+		if (count > MAX_SECTORS) {
+			throw new IOException("Chunk " + x + ", " + z + " is too large for a region file at " + payload.length + " bytes");
+		}
+		int offset = allocate(count);
+
+		ByteBuffer sectors = ByteBuffer.allocate(count * RegionHeader.SECTOR_BYTES);
+		sectors.putInt(payload.length);
+		sectors.put(payload);
+		mRegion.seek((long) offset * RegionHeader.SECTOR_BYTES);
+		mRegion.write(sectors.array());
+		mBytesWritten += sectors.capacity();
+
+		setLocation(RegionHeader.getIndex(x, z), offset << 8 | count);
+		mTimestamps[RegionHeader.getIndex(x, z)] = (int) timestamp;
+	}
+
+	/** Changes only the timestamp of a chunk in the header. */
+	public void setTimestamp(int x, int z, long timestamp) {
+		mTimestamps[RegionHeader.getIndex(x, z)] = (int) timestamp;
+		mDirty = true;
+	}
+
+	public void removeChunk(int x, int z) {
+		int index = RegionHeader.getIndex(x, z);
+		setLocation(index, 0);
+		mTimestamps[index] = 0;
+	}
+
+	private void setLocation(int index, int location) {
+		int old = mLocations[index];
+		if (old == mCommittedLocations[index]) {
+			if (old != 0) {
+				mReplacedLocations.add(old);
+			}
+		} else if (old != 0) {
+			// Written since the last commit, so nothing points at it
+			free(old);
+		}
+		mLocations[index] = location;
+		mDirty = true;
+	}
+
+	/** @return The offset of the first run of free sectors long enough, at the end of the file if there is none. */
+	private int allocate(int count) throws IOException {
+		int start = mUsedSectors.nextClearBit(2);
+		while (start < mSectors) {
+			int end = mUsedSectors.nextSetBit(start);
+			if (end == -1 || end >= mSectors) {
+				// The free sectors at the end of the file, which can be extended
+				break;
+			}
+			if (end - start >= count) {
+				mUsedSectors.set(start, start + count);
+				return start;
+			}
+			start = mUsedSectors.nextClearBit(end);
+		}
+		if (start + count > mSectors) {
+			if (start + count > 1 << 24) {
+				throw new IOException(mFile.getName() + " has no room for another " + count + " sectors");
+			}
+			mSectors = start + count;
+			mRegion.setLength((long) mSectors * RegionHeader.SECTOR_BYTES);
+		}
+		mUsedSectors.set(start, start + count);
+		return start;
+	}
+
+	private void free(int location) {
+		mUsedSectors.clear(location >>> 8, (location >>> 8) + (location & 0xFF));
+	}
+
+	/** Makes the changes since the last commit durable. The chunk sectors are flushed first, then the new header is written to
+	 * the journal, then to the region file, and the journal is deleted. */
+	public void commit() throws IOException {
+		if (!mDirty) {
+			return;
+		}
+		mRegion.getChannel().force(false);
+
+		ByteBuffer header = ByteBuffer.allocate(RegionHeader.HEADER_BYTES);
+		header.asIntBuffer().put(mLocations).put(mTimestamps);
+		FileOutputStream journalFile = new FileOutputStream(mJournal);
+		DataOutputStream journal = new DataOutputStream(journalFile);
+		try {
+			journal.writeInt(JOURNAL_MAGIC);
+			journal.write(header.array());
+			journal.writeLong(HashUtils.hash(header.array()));
+			journal.flush();
+			journalFile.getFD().sync();
+		} finally {
+			journal.close();
+		}
+
+		mRegion.seek(0);
+		mRegion.write(header.array());
+		mRegion.getChannel().force(true);
+		mBytesWritten += header.capacity();
+		Files.delete(mJournal.toPath());
+
+		for (int location : mReplacedLocations) {
+			free(location);
+		}
+		mReplacedLocations.clear();
+		mCommittedLocations = mLocations.clone();
+		mDirty = false;
+	}
+
+	/** @return The bytes of chunk sectors and headers written so far. */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/** @return The newest timestamp of any chunk, as RegionHeader.getNewestTimestamp. */
+	public long getNewestTimestamp() {
+		long newest = 0;
+		for (int i = 0; i < RegionHeader.CHUNKS; i++) {
+			if (mLocations[i] != 0) {
+				newest = Math.max(newest, mTimestamps[i]);
+			}
+		}
+		return newest;
+	}
+
+	public int getNumberOfChunks() {
+		int count = 0;
+		for (int location : mLocations) {
+			if (location != 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Closes the file. Changes that have not been committed are lost, and the file is left as it was at the last commit. */
+	@Override
+	public void close() throws IOException {
+		mRegion.close();
+	}
+}
@@ -0,0 +1,202 @@
+package com.cusackj.mcad.model;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.jnbt.CompoundTag;
+import org.jnbt.NBTInputStream;
+
+/** Reads chunks from a memory mapped .mca file.
+ *
+ * Each chunk's payload is a slice of the mapping, so nothing is copied before it is inflated, and any number of chunks can
+ * be inflated and parsed at once. Every thread keeps one Inflater and resets it for each zlib chunk rather than allocating
+ * a new one. */
+public class RegionReader {
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private ByteBuffer mData;
+	private RegionHeader mHeader;
+
+	public RegionReader(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			// The mapping stays valid once the file is closed
+			mData = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+		} finally {
+			file.close();
+		}
+		mHeader = new RegionHeader(mData);
+	}
+
+	public RegionHeader getHeader() {
+		return mHeader;
+	}
+
+	/** @return The stored payload of a chunk, the compression type byte followed by the compressed NBT, as a slice of the
+	 *         mapped file. null if the chunk is not present. */
+	public ByteBuffer getPayload(int index) throws IOException {
+		if (!mHeader.hasChunk(index)) {
+			return null;
+		}
+		long position = (long) mHeader.getSectorOffset(index) * RegionHeader.SECTOR_BYTES;
+		if (position + 4 > mData.capacity()) {
+			throw new IOException("Chunk " + index + " starts past the end of the file");
+		}
+		int length = mData.getInt((int) position);
+		if (length <= 0 || length > mHeader.getSectorCount(index) * RegionHeader.SECTOR_BYTES - 4 || position + 4 + length > mData.capacity()) {
+			throw new IOException("Chunk " + index + " has an invalid length of " + length);
+		}
+		ByteBuffer payload = mData.duplicate();
+		payload.position((int) position + 4);
+		payload.limit((int) position + 4 + length);
+		return payload.slice();
+	}
+
+	/** Inflates and parses one chunk, on the calling thread.
+	 *
+	 * @return The chunk's tag, or null if the chunk is not present. */
+	public CompoundTag readTag(int index) throws IOException {
+		ByteBuffer payload = getPayload(index);
+		if (payload == null) {
+			return null;
+		}
+		byte compression = payload.get();
+		InputStream data = new ByteBufferInputStream(payload);
+		if (compression == RawRegionFile.COMPRESSION_DEFLATE) {
+			Inflater inflater = INFLATERS.get();
+			inflater.reset();
+			data = new InflaterInputStream(data, inflater, RegionHeader.SECTOR_BYTES);
+		} else {
+			data = new GZIPInputStream(data);
+		}
+		NBTInputStream in = new NBTInputStream(new BufferedInputStream(data));
+		try {
+			return (CompoundTag) in.readTag();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Reads the chunks of the region at region coordinates x, z. Chunks that can not be read are left out.
+	 *
+	 * @param chunkMask
+	 *            A bit for each chunk, indexed as in RegionHeader. Only chunks with a set bit are read. If null, every chunk is
+	 *            read.
+	 * @param executor
+	 *            The executor to inflate and parse chunks on, or null to read them on the calling thread.
+	 * @return The chunks, in the order Region has always loaded them, z within x. */
+	public List<Chunk> readChunks(int regionX, int regionZ, byte[] chunkMask, ExecutorService executor) throws IOException {
+		List<ReadTask> tasks = new ArrayList<>();
+		for (int x = regionX * 32; x < regionX * 32 + 32; x++) {
+			for (int z = regionZ * 32; z < regionZ * 32 + 32; z++) {
+				int index = RegionHeader.getIndex(x, z);
+				if (chunkMask != null && (chunkMask[index / 8] & (1 << (index % 8))) == 0) {
+					continue;
+				}
+				if (mHeader.hasChunk(index)) {
+					tasks.add(new ReadTask(x, z));
+				}
+			}
+		}
+
+		List<Chunk> chunks = new ArrayList<>();
+		if (executor == null) {
+			for (ReadTask task : tasks) {
+				Chunk c = task.call();
+				if (c != null) {
+					chunks.add(c);
+				}
+			}
+			return chunks;
+		}
+		try {
+			for (Future<Chunk> future : executor.invokeAll(tasks)) {
+				Chunk c = future.get();
+				if (c != null) {
+					chunks.add(c);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while reading chunks");
+		} catch (ExecutionException e) {
+			throw new IOException("Could not read chunk", e.getCause());
+		}
+		return chunks;
+	}
+
+	private class ReadTask implements Callable<Chunk> {
+		private int mX;
+		private int mZ;
+
+		ReadTask(int x, int z) {
+			mX = x;
+			mZ = z;
+		}
+
+		/** @return The chunk, or null if it could not be read. */
+		@Override
+		public Chunk call() {
+			int index = RegionHeader.getIndex(mX, mZ);
+			try {
+				return new Chunk(readTag(index), mX, mZ, mHeader.getTimestamp(index));
+			} catch (Exception e) {
+				System.out.println("Could not load chunk [" + mX + ", " + mZ + "].");
+				e.printStackTrace();
+				return null;
+			}
+		}
+	}
+
+	/** Reads a buffer from its position to its limit. */
+	private static class ByteBufferInputStream extends InputStream {
+		private ByteBuffer mBuffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, mBuffer.remaining());
+			mBuffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+	}
+}
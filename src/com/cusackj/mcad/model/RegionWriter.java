@@ -0,0 +1,94 @@
+package com.cusackj.mcad.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Writes a whole region file in one pass from the stored payload of every chunk.
+ *
+ * As every payload is known up front, the sector table is laid out before anything is written: chunks take consecutive
+ * sectors in index order after the header, with no free sectors between them. The header, each chunk's length, payload and
+ * padding are then written with one sequential gather write, rather than a seek and write for each chunk. */
+public class RegionWriter {
+	/** A chunk can span at most this many sectors, the count is a single byte. */
+	private static final int MAX_SECTORS = 255;
+	/** The most buffers passed to a single gather write, some platforms limit this. */
+	private static final int MAX_BUFFERS = 1024;
+	private static final ByteBuffer PADDING = ByteBuffer.allocate(RegionHeader.SECTOR_BYTES);
+
+	private byte[][] mPayloads = new byte[RegionHeader.CHUNKS][];
+	private int[] mTimestamps = new int[RegionHeader.CHUNKS];
+
+	/** @param payload
+	 *            The compression type byte followed by the compressed NBT, as RegionHeader.readPayload returns it. null to
+	 *            leave the chunk out. */
+	public void setPayload(int index, byte[] payload, long timestamp) throws IOException {
+		if (payload != null && getSectorCount(payload) > MAX_SECTORS) {
+			throw new IOException("Chunk " + index + " is too large for a region file at " + payload.length + " bytes");
+		}
+		mPayloads[index] = payload;
+		mTimestamps[index] = (int) timestamp;
+	}
+
+	public int getNumberOfChunks() {
+		int count = 0;
+		for (byte[] payload : mPayloads) {
+			if (payload != null) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** Replaces the file with a region file of the chunks that have been set. */
+	public void write(File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(RegionHeader.HEADER_BYTES);
+		ByteBuffer[] buffers = new ByteBuffer[1 + RegionHeader.CHUNKS * 3];
+		buffers[0] = header;
+		int count = 1;
+		int offset = RegionHeader.HEADER_BYTES / RegionHeader.SECTOR_BYTES;
+		for (int i = 0; i < RegionHeader.CHUNKS; i++) {
+			byte[] payload = mPayloads[i];
+			if (payload == null) {
+				continue;
+			}
+			int sectors = getSectorCount(payload);
+			header.putInt(i * 4, offset << 8 | sectors);
+			header.putInt(RegionHeader.CHUNKS * 4 + i * 4, mTimestamps[i]);
+			offset += sectors;
+
+			ByteBuffer length = ByteBuffer.allocate(4);
+			length.putInt(0, payload.length);
+			buffers[count++] = length;
+			buffers[count++] = ByteBuffer.wrap(payload);
+			int padding = sectors * RegionHeader.SECTOR_BYTES - 4 - payload.length;
+			if (padding > 0) {
+				ByteBuffer pad = PADDING.duplicate();
+				pad.limit(padding);
+				buffers[count++] = pad;
+			}
+		}
+		long length = (long) offset * RegionHeader.SECTOR_BYTES;
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = out.getChannel();
+			channel.truncate(0);
+			long written = 0;
+			int first = 0;
+			while (written < length) {
+				written += channel.write(buffers, first, Math.min(count - first, MAX_BUFFERS));
+				while (first < count && !buffers[first].hasRemaining()) {
+					first++;
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int getSectorCount(byte[] payload) {
+		return (payload.length + 4 + RegionHeader.SECTOR_BYTES - 1) / RegionHeader.SECTOR_BYTES;
+	}
+}
@@ -0,0 +1,109 @@
+package com.cusackj.utils;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.ByteTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.DoubleTag;
+import org.jnbt.FloatTag;
+import org.jnbt.IntArrayTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.LongTag;
+import org.jnbt.NBTUtils;
+import org.jnbt.ShortTag;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+
+/** 64 bit content hashes of byte arrays and NBT tags. These are for spotting changed or corrupted data, not for security. */
+public class HashUtils {
+	private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long SEED = 0x27D4EB2F165667C5L;
+
+	public static long hash(byte[] bytes) {
+		return hash(bytes, 0, bytes.length);
+	}
+
+	/** Hashes 8 bytes at a time, then any bytes left over. */
+	public static long hash(byte[] bytes, int offset, int length) {
+		long h = SEED + length;
+		int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			long k = (bytes[i] & 0xFFL) | (bytes[i + 1] & 0xFFL) << 8 | (bytes[i + 2] & 0xFFL) << 16 | (bytes[i + 3] & 0xFFL) << 24
+					| (bytes[i + 4] & 0xFFL) << 32 | (bytes[i + 5] & 0xFFL) << 40 | (bytes[i + 6] & 0xFFL) << 48 | (bytes[i + 7] & 0xFFL) << 56;
+			h = combine(h, k);
+		}
+		for (; i < end; i++) {
+			h = combine(h, bytes[i] & 0xFF);
+		}
+		return finish(h);
+	}
+
+	public static long hash(int[] ints) {
+		long h = SEED + ints.length;
+		for (int i : ints) {
+			h = combine(h, i);
+		}
+		return finish(h);
+	}
+
+	/** Hashes the contents of a tag tree. The order of entries in a compound tag does not matter, as it is not kept when a
+	 * chunk is read and written, but the order of list entries does. */
+	public static long hashTag(Tag tag) {
+		long h = SEED + NBTUtils.getTypeCode(tag.getClass());
+		if (tag instanceof CompoundTag) {
+			// Summing the entries makes the result independent of their order
+			long sum = 0;
+			for (Map.Entry<String, Tag> entry : ((CompoundTag) tag).getValue().entrySet()) {
+				sum += finish(combine(entry.getKey().hashCode(), hashTag(entry.getValue())));
+			}
+			h = combine(h, sum);
+		} else if (tag instanceof ListTag) {
+			List<Tag> list = ((ListTag) tag).getValue();
+			h = combine(h, list.size());
+			for (Tag t : list) {
+				h = combine(h, hashTag(t));
+			}
+		} else if (tag instanceof ByteArrayTag) {
+			h = combine(h, hash(((ByteArrayTag) tag).getValue()));
+		} else if (tag instanceof IntArrayTag) {
+			h = combine(h, hash(((IntArrayTag) tag).getValue()));
+		} else if (tag instanceof StringTag) {
+			h = combine(h, ((StringTag) tag).getValue().hashCode());
+		} else if (tag instanceof ByteTag) {
+			h = combine(h, ((ByteTag) tag).getValue());
+		} else if (tag instanceof ShortTag) {
+			h = combine(h, ((ShortTag) tag).getValue());
+		} else if (tag instanceof IntTag) {
+			h = combine(h, ((IntTag) tag).getValue());
+		} else if (tag instanceof LongTag) {
+			h = combine(h, ((LongTag) tag).getValue());
+		} else if (tag instanceof FloatTag) {
+			h = combine(h, Float.floatToIntBits(((FloatTag) tag).getValue()));
+		} else if (tag instanceof DoubleTag) {
+			h = combine(h, Double.doubleToLongBits(((DoubleTag) tag).getValue()));
+		}
+		return finish(h);
+	}
+
+	private static long combine(long h, long k) {
+		k *= PRIME_2;
+		k = Long.rotateLeft(k, 31);
+		k *= PRIME_1;
+		h ^= k;
+		return Long.rotateLeft(h, 27) * PRIME_1 + PRIME_2;
+	}
+
+	private static long finish(long h) {
+		h ^= h >>> 33;
+		h *= PRIME_2;
+		h ^= h >>> 29;
+		h *= PRIME_1;
+		h ^= h >>> 32;
+		return h;
+	}
+}
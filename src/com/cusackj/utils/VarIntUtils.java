@@ -0,0 +1,40 @@
+package com.cusackj.utils;
+
+import java.nio.ByteBuffer;
+
+/** Variable length longs, 7 bits to a byte with the top bit set on every byte but the last. Values are zigzag encoded first,
+ * so small negative values are as short as small positive ones. */
+public class VarIntUtils {
+
+	public static void putVarLong(ByteBuffer bb, long value) {
+		long v = (value << 1) ^ (value >> 63);
+		while ((v & ~0x7FL) != 0) {
+			bb.put((byte) (v & 0x7F | 0x80));
+			v >>>= 7;
+		}
+		bb.put((byte) v);
+	}
+
+	public static long getVarLong(ByteBuffer bb) {
+		long v = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = bb.get();
+			v |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+		}
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	/** @return The number of bytes putVarLong writes for the value. */
+	public static int getVarLongSize(long value) {
+		long v = (value << 1) ^ (value >> 63);
+		int size = 1;
+		while ((v & ~0x7FL) != 0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+}